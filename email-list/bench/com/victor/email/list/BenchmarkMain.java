@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.victor.email.list;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the list benchmarks with the allocation profiler, so every result carries
+ * gc.alloc.rate.norm (bytes allocated per operation) next to its throughput, and writes the
+ * results as JSON to bench-&lt;label&gt;.json.  Use the commit as the label to compare commits:
+ *
+ * <pre>
+ * java ... com.victor.email.list.BenchmarkMain $(git rev-parse --short HEAD) [regexp]
+ * </pre>
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws RunnerException {
+        String label = args.length > 0 ? args[0] : "local";
+        String include = args.length > 1 ? args[1] : "com\\.victor\\.email\\.list\\..*Benchmark";
+        Options options = new OptionsBuilder()
+                .include(include)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("bench-" + label + ".json")
+                .build();
+        new Runner(options).run();
+    }
+}
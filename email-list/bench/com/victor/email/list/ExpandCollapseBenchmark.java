@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.victor.email.list;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What expanding and collapsing groups costs.  Every operation ends by asking for the visible
+ * count, as the list does right after, so the cost of rebuilding the visible index is included.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class ExpandCollapseBenchmark {
+    private static final long MONTH_IN_MILLIS = 30 * 24 * 60 * 60 * 1000L;
+
+    private int mNext;
+    private boolean mExpanded;
+
+    @Setup(Level.Iteration)
+    public void expandAll(ListState s) {
+        s.mModel.setAllGroupsExpanded(true);
+        mExpanded = true;
+    }
+
+    /** A tap on a header. */
+    @Benchmark
+    public int toggleRandomGroup(ListState s) {
+        MessageListModel model = s.mModel;
+        model.toggleGroup(s.mRandomGroups[ListState.randomIndex(mNext++)]);
+        return model.getVisibleCount();
+    }
+
+    /** A tap on a header, then the list binding a row further down. */
+    @Benchmark
+    public int toggleAndMove(ListState s) {
+        MessageListModel model = s.mModel;
+        int i = ListState.randomIndex(mNext++);
+        model.toggleGroup(s.mRandomGroups[i]);
+        int position = s.mRandomPositions[i] % model.getVisibleCount();
+        return model.rowAt(model.getDisplayPosition(position));
+    }
+
+    @Benchmark
+    public int collapseAllExpandAll(ListState s) {
+        mExpanded = !mExpanded;
+        s.mModel.setAllGroupsExpanded(mExpanded);
+        return s.mModel.getVisibleCount();
+    }
+
+    @Benchmark
+    public int collapseOlderThanAMonth(ListState s) {
+        MessageListModel model = s.mModel;
+        model.setAllGroupsExpanded(true);
+        model.collapseGroupsOlderThan(s.mNow - MONTH_IN_MILLIS);
+        return model.getVisibleCount();
+    }
+
+    @Benchmark
+    public int expandOnlyUnread(ListState s) {
+        MessageListModel model = s.mModel;
+        model.setAllGroupsExpanded(true);
+        model.expandOnlyUnreadGroups();
+        return model.getVisibleCount();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.victor.email.list;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a load or a change of sort order or grouping costs: deriving the sort keys, sorting,
+ * finding the group boundaries and building the whole model.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class GroupingBenchmark {
+    /** Threads, ranks and collation of every distinct sender and subject. */
+    @Benchmark
+    public MessageListSnapshot buildSnapshot(ListState s) {
+        return new MessageListSnapshot(s.mRows);
+    }
+
+    @Benchmark
+    public int[] sort(ListState s) {
+        return s.mSnapshot.sort(s.mSortBy, s.mDescending);
+    }
+
+    /** The boundary scan alone, parallel above its threshold. */
+    @Benchmark
+    public boolean[] findGroupStarts(ListState s) {
+        return new SortedGrouper(s.mSnapshot, s.mOrder, s.mModel.getGroupBy(), s.mNow,
+                TimeZone.getDefault()).findGroupStarts();
+    }
+
+    /** Grouping with aggregates, header ids and, for date sorts, the date index. */
+    @Benchmark
+    public MessageListModel buildModel(ListState s) {
+        return s.newModel();
+    }
+
+    /** Switching between the two conversation groupings; each call regroups by hash. */
+    @Benchmark
+    public MessageListModel regroupConversations(ListState s) {
+        MessageListModel model = s.mModel;
+        model.setGroupingMode(
+                model.getGroupingMode() == MessageListModel.GROUPING_CONVERSATIONS_BY_SUBJECT
+                ? MessageListModel.GROUPING_CONVERSATIONS_BY_SENDER
+                : MessageListModel.GROUPING_CONVERSATIONS_BY_SUBJECT);
+        return model;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.victor.email.list;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * A synthetic folder, sorted and grouped, shared by the benchmarks of one trial.
+ */
+@State(Scope.Benchmark)
+public class ListState {
+    private static final long SEED = 42;
+    /** Number of precomputed random positions and groups; a power of two. */
+    private static final int RANDOM_COUNT = 1 << 12;
+
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int size;
+
+    @Param({ "DATE_DESC", "DATE_ASC", "SUBJECT_ASC", "SUBJECT_DESC", "SENDER_ASC",
+            "SENDER_DESC" })
+    public String sortOrder;
+
+    /** "heap", or "mapped" for the store the app uses for very large folders. */
+    @Param({ "heap" })
+    public String store;
+
+    long mNow;
+    MessageRowStore mRows;
+    MessageListSnapshot mSnapshot;
+    int mSortBy;
+    boolean mDescending;
+    int[] mOrder;
+    MessageListModel mModel;
+    /** Random visible positions and groups of mModel with every group expanded. */
+    int[] mRandomPositions;
+    int[] mRandomGroups;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mNow = System.currentTimeMillis();
+        mRows = SyntheticRows.createRows(size, store, mNow, SEED);
+        mSnapshot = new MessageListSnapshot(mRows);
+        mSortBy = SyntheticRows.sortKey(sortOrder);
+        mDescending = SyntheticRows.isDescending(sortOrder);
+        mOrder = mSnapshot.sort(mSortBy, mDescending);
+        mModel = newModel();
+
+        Random random = new Random(SEED);
+        mRandomPositions = new int[RANDOM_COUNT];
+        mRandomGroups = new int[RANDOM_COUNT];
+        for (int i = 0; i < RANDOM_COUNT; i++) {
+            mRandomPositions[i] = random.nextInt(mModel.getVisibleCount());
+            mRandomGroups[i] = random.nextInt(mModel.getGroupCount());
+        }
+    }
+
+    MessageListModel newModel() {
+        return new MessageListModel(mSnapshot, mOrder, mSortBy, mDescending,
+                TimeZone.getDefault());
+    }
+
+    static int randomIndex(int i) {
+        return i & (RANDOM_COUNT - 1);
+    }
+}
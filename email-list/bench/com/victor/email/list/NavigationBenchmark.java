@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.victor.email.list;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What positioning the list cursor costs: each operation is what moveToPosition() does with
+ * thread view on, i.e. finding out whether a visible position is a header and which row it
+ * shows.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class NavigationBenchmark {
+    private int mNext;
+
+    /** Scrolling: every position in turn, as the list binds rows. */
+    @Benchmark
+    public int moveSequential(ListState s) {
+        MessageListModel model = s.mModel;
+        int position = mNext;
+        mNext = position + 1 < model.getVisibleCount() ? position + 1 : 0;
+        return move(model, position);
+    }
+
+    /** Jumps, e.g. from the fast scroller or from restoring a position. */
+    @Benchmark
+    public int moveRandom(ListState s) {
+        return move(s.mModel, s.mRandomPositions[ListState.randomIndex(mNext++)]);
+    }
+
+    private static int move(MessageListModel model, int position) {
+        int header = model.headerAt(position);
+        return model.rowAt(model.getDisplayPosition(position)) + header;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Deterministic folders of messages for the benchmarks.
+ *
+ * Messages are spread over two years up to {@code now}, newest first as the provider returns
+ * them.  Senders and threads are skewed the way real mail is: a few of each account for most of
+ * the messages.  About a fifth of the messages are unread, and subjects carry the usual mix of
+ * reply and forward prefixes, so threading has work to do.
+ */
+/* package */ class SyntheticRows {
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final long SPAN = 2 * 365 * DAY_IN_MILLIS;
+    private static final String[] PREFIXES = { "", "", "Re: ", "RE: ", "Fwd: ", "Re: Re: " };
+
+    private SyntheticRows() {
+    }
+
+    /**
+     * @param store "heap" for a {@link HeapRowStore}, "mapped" for a {@link MappedRowStore} in
+     *     the temporary directory
+     */
+    public static MessageRowStore createRows(int count, String store, long now, long seed)
+            throws IOException {
+        MessageRowStore.Writer writer = "mapped".equals(store)
+                ? new MappedRowStore.Writer(new File(System.getProperty("java.io.tmpdir")), count)
+                : new HeapRowStore.Writer(count);
+        fill(writer, count, now, seed);
+        return writer.finish();
+    }
+
+    public static void fill(MessageRowStore.Writer writer, int count, long now, long seed) {
+        Random random = new Random(seed);
+        final int senders = Math.max(10, count / 50);
+        final int threads = Math.max(10, count / 8);
+        long time = now;
+        for (int i = 0; i < count; i++) {
+            time -= (long) (random.nextDouble() * 2 * SPAN / count);
+            int sender = (int) (senders * Math.pow(random.nextDouble(), 3));
+            int thread = (int) (threads * Math.pow(random.nextDouble(), 2));
+            int flags = 0;
+            if (random.nextInt(5) != 0) {
+                flags |= MessageListSnapshot.FLAG_READ;
+            }
+            if (random.nextInt(20) == 0) {
+                flags |= MessageListSnapshot.FLAG_FAVORITE;
+            }
+            if (random.nextInt(7) == 0) {
+                flags |= MessageListSnapshot.FLAG_ATTACHMENT;
+            }
+            String subject = PREFIXES[random.nextInt(PREFIXES.length)] + "Thread " + thread;
+            writer.addRow(i + 1, 1, 1, time, flags, subject, "Sender " + sender);
+        }
+    }
+
+    /** @return the SORT_BY_ key of a sort order name such as "SUBJECT_DESC". */
+    public static int sortKey(String sortOrder) {
+        if (sortOrder.startsWith("SUBJECT")) {
+            return MessageListSnapshot.SORT_BY_SUBJECT;
+        }
+        if (sortOrder.startsWith("SENDER")) {
+            return MessageListSnapshot.SORT_BY_SENDER;
+        }
+        return MessageListSnapshot.SORT_BY_DATE;
+    }
+
+    public static boolean isDescending(String sortOrder) {
+        return sortOrder.endsWith("_DESC");
+    }
+}
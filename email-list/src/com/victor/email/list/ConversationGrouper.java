@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+/**
+ * Groups rows by key with a hash aggregation, for lists that are not sorted by that key.
+ *
+ * This is what gives the date sorted list a conversation view: rows are grouped by sender or by
+ * thread key, each group is placed where its newest message would be, and the rows inside a group
+ * keep their date order.  Everything is done in two linear passes over the rows; memory is a few
+ * ints per row plus a hash map sized to the number of groups.
+ */
+/* package */ class ConversationGrouper {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /** The display positions of the rows, ordered group by group. */
+    public final int[] mPositions;
+    /** Index into {@link #mPositions} of the first row of each group, in group order. */
+    public final int[] mGroupStart;
+    /** Number of rows in each group, in group order. */
+    public final int[] mGroupSize;
+    public final int mGroupCount;
+
+    /**
+     * @param keys the group key of every row, indexed by display position
+     * @param newestLast true if the list is in ascending date order, so that a group's newest
+     *     message is its last row rather than its first
+     */
+    public ConversationGrouper(long[] keys, boolean newestLast) {
+        final int n = keys.length;
+        LongIntHashMap groupIds = new LongIntHashMap(Math.min(n, 1024));
+        int[] groupOf = new int[n];
+        int[] counts = new int[n];
+        int[] anchor = new int[n];
+
+        // Pass 1: assign group ids in order of first appearance, count rows and find each
+        // group's anchor row.
+        int groups = 0;
+        for (int position = 0; position < n; position++) {
+            int g = groupIds.get(keys[position], -1);
+            if (g < 0) {
+                g = groups++;
+                groupIds.put(keys[position], g);
+            }
+            groupOf[position] = g;
+            counts[g]++;
+            if (newestLast || counts[g] == 1) {
+                anchor[g] = position;
+            }
+        }
+
+        // Order groups by anchor position.  With first appearance anchors that is the id order;
+        // otherwise collect groups by scanning positions for anchors.
+        int[] groupOrder = new int[groups];
+        if (newestLast) {
+            int k = 0;
+            for (int position = 0; position < n; position++) {
+                int g = groupOf[position];
+                if (anchor[g] == position) {
+                    groupOrder[k++] = g;
+                }
+            }
+        } else {
+            for (int g = 0; g < groups; g++) {
+                groupOrder[g] = g;
+            }
+        }
+
+        // Pass 2: prefix sums give each group's slot, then rows are dropped into place.
+        mGroupStart = new int[groups];
+        mGroupSize = new int[groups];
+        int[] next = anchor; // reused: next free slot per group id
+        int offset = 0;
+        for (int i = 0; i < groups; i++) {
+            int g = groupOrder[i];
+            mGroupStart[i] = offset;
+            mGroupSize[i] = counts[g];
+            next[g] = offset;
+            offset += counts[g];
+        }
+        mPositions = new int[n];
+        for (int position = 0; position < n; position++) {
+            mPositions[next[groupOf[position]]++] = position;
+        }
+        mGroupCount = groups;
+    }
+
+    /**
+     * @return a 64 bit hash of a string, for use as a group key.  Null hashes like "".
+     */
+    public static long hashString(String value) {
+        long hash = FNV_OFFSET_BASIS;
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+}
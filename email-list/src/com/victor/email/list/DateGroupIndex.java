@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Year, month, week and day index over the rows of a date sorted list.
+ *
+ * Each level partitions the rows, in display order, into runs called nodes that fall in the same
+ * calendar year, month, week or day, going by each row's own timestamp.  The date groups of the
+ * list are relative to now (the last week by day, then by week, then by month) and a group may
+ * straddle a calendar month, so the index is not built over them.  Nodes are stored as the
+ * display position of their first row, so finding the node of a position is a binary search and
+ * a whole year or month is a contiguous range of positions.  Only the first row of every day is
+ * looked at on the calendar, and only the nodes are kept, not anything per row.
+ */
+public class DateGroupIndex {
+    public static final int LEVEL_YEAR = 0;
+    public static final int LEVEL_MONTH = 1;
+    public static final int LEVEL_WEEK = 2;
+    public static final int LEVEL_DAY = 3;
+    private static final int LEVELS = 4;
+
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final int mRowCount;
+    private final boolean mDescending;
+    private final TimeZone mTimeZone;
+    /** Per level, the display position of the first row of each node, followed by the count. */
+    private final int[][] mNodeStarts = new int[LEVELS][];
+    /** Per level, the timestamp of the first row of each node. */
+    private final long[][] mNodeTimes = new long[LEVELS][];
+
+    /**
+     * @param order the display order, order[position] = snapshot row, sorted by date either
+     *     ascending or descending; null for snapshot order
+     */
+    public DateGroupIndex(MessageListSnapshot snapshot, int[] order, TimeZone timeZone) {
+        final int rows = snapshot.mCount;
+        mRowCount = rows;
+        mTimeZone = timeZone;
+        mDescending = rows > 1 && snapshot.getTimestamp(rowAt(order, 0))
+                > snapshot.getTimestamp(rowAt(order, rows - 1));
+        int[] counts = new int[LEVELS];
+        for (int level = 0; level < LEVELS; level++) {
+            mNodeStarts[level] = new int[16];
+            mNodeTimes[level] = new long[16];
+        }
+
+        Calendar calendar = Calendar.getInstance(timeZone);
+        long[] lastKeys = new long[LEVELS];
+        long[] keys = new long[LEVELS];
+        long lastDay = 0;
+        for (int position = 0; position < rows; position++) {
+            final long time = snapshot.getTimestamp(rowAt(order, position));
+            final long day = localDay(time, timeZone);
+            // Every node starts at the start of a day, and the rows are sorted by time.
+            if (position > 0 && day == lastDay) {
+                continue;
+            }
+            lastDay = day;
+            calendar.setTimeInMillis(time);
+            int daysIntoWeek = (calendar.get(Calendar.DAY_OF_WEEK)
+                    - calendar.getFirstDayOfWeek() + 7) % 7;
+            keys[LEVEL_YEAR] = calendar.get(Calendar.YEAR);
+            keys[LEVEL_MONTH] = keys[LEVEL_YEAR] * 12 + calendar.get(Calendar.MONTH);
+            keys[LEVEL_WEEK] = day - daysIntoWeek;
+            keys[LEVEL_DAY] = day;
+            for (int level = 0; level < LEVELS; level++) {
+                if (position == 0 || keys[level] != lastKeys[level]) {
+                    final int node = counts[level]++;
+                    if (node == mNodeTimes[level].length) {
+                        mNodeStarts[level] = Arrays.copyOf(mNodeStarts[level], node * 2);
+                        mNodeTimes[level] = Arrays.copyOf(mNodeTimes[level], node * 2);
+                    }
+                    mNodeStarts[level][node] = position;
+                    mNodeTimes[level][node] = time;
+                    lastKeys[level] = keys[level];
+                }
+            }
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            mNodeStarts[level] = Arrays.copyOf(mNodeStarts[level], counts[level] + 1);
+            mNodeStarts[level][counts[level]] = rows;
+            mNodeTimes[level] = Arrays.copyOf(mNodeTimes[level], counts[level]);
+        }
+    }
+
+    private static int rowAt(int[] order, int position) {
+        return order == null ? position : order[position];
+    }
+
+    /** @return the number of whole days from the epoch to {@code time}, in local time. */
+    private static long localDay(long time, TimeZone timeZone) {
+        long local = time + timeZone.getOffset(time);
+        return local >= 0 ? local / DAY_IN_MILLIS : (local + 1) / DAY_IN_MILLIS - 1;
+    }
+
+    /** @return an estimate of the heap the index retains; see {@link MemoryAccounting}. */
+    public long getRetainedBytes() {
+        long bytes = MemoryAccounting.object(3 * MemoryAccounting.REFERENCE + 4 + 1)
+                + MemoryAccounting.array(mNodeStarts) + MemoryAccounting.array(mNodeTimes);
+        for (int level = 0; level < LEVELS; level++) {
+            bytes += MemoryAccounting.array(mNodeStarts[level])
+                    + MemoryAccounting.array(mNodeTimes[level]);
+        }
+        return bytes;
+    }
+
+    public int getRowCount() {
+        return mRowCount;
+    }
+
+    public int getNodeCount(int level) {
+        return mNodeTimes[level].length;
+    }
+
+    /** @return the display position of the first row of a node. */
+    public int getFirstPosition(int level, int node) {
+        return mNodeStarts[level][node];
+    }
+
+    /** @return one past the display position of the last row of a node. */
+    public int getEndPosition(int level, int node) {
+        return mNodeStarts[level][node + 1];
+    }
+
+    /** @return the time of the first row of a node. */
+    public long getNodeTime(int level, int node) {
+        return mNodeTimes[level][node];
+    }
+
+    /**
+     * @return the node at {@code level} that contains the row at a display position.
+     */
+    public int findNode(int level, int position) {
+        int lo = 0;
+        int hi = getNodeCount(level) - 1;
+        final int[] starts = mNodeStarts[level];
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= position) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the display position of the first row on the day {@code time} falls on or, if no
+     *     row is from that day, of the first row past it in the direction of the sort.  Times
+     *     past the last row map to the last row.
+     */
+    public int findPosition(long time) {
+        final long day = localDay(time, mTimeZone);
+        final long[] times = mNodeTimes[LEVEL_DAY];
+        int lo = 0;
+        int hi = times.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long nodeDay = localDay(times[mid], mTimeZone);
+            boolean before = mDescending ? nodeDay > day : nodeDay < day;
+            if (before) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return Math.max(Math.min(mNodeStarts[LEVEL_DAY][lo], mRowCount - 1), 0);
+    }
+}
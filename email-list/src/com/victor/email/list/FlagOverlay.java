@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+/**
+ * Read and favorite changes that the loaded rows do not reflect yet, e.g. because they are still
+ * on their way to the provider.
+ */
+public interface FlagOverlay {
+    /**
+     * @return the read state the list should show for a message whose row says
+     *     {@code storedValue}.
+     */
+    boolean isRead(long messageId, boolean storedValue);
+
+    /**
+     * @return the favorite state the list should show for a message whose row says
+     *     {@code storedValue}.
+     */
+    boolean isFavorite(long messageId, boolean storedValue);
+
+    /** @return true if any message is overridden. */
+    boolean hasPendingChanges();
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+/**
+ * {@link MessageRowStore} held in Java arrays, one per column.  Senders and subjects are both
+ * dictionary encoded, so each distinct string is held once.
+ */
+public class HeapRowStore implements MessageRowStore {
+    private final int mCount;
+    private final long[] mIds;
+    private final long[] mMailboxKeys;
+    private final long[] mAccountKeys;
+    private final long[] mTimestamps;
+    private final int[] mFlags;
+    private final int[] mSubjectCodes;
+    private final int[] mSenderCodes;
+    private final StringDictionary mSubjects;
+    private final StringDictionary mSenders;
+
+    public static class Writer implements MessageRowStore.Writer {
+        private final long[] mIds;
+        private final long[] mMailboxKeys;
+        private final long[] mAccountKeys;
+        private final long[] mTimestamps;
+        private final int[] mFlags;
+        private final int[] mSubjectCodes;
+        private final int[] mSenderCodes;
+        private final StringDictionary mSubjects = new StringDictionary();
+        private final StringDictionary mSenders = new StringDictionary();
+        private int mCount;
+
+        public Writer(int count) {
+            mIds = new long[count];
+            mMailboxKeys = new long[count];
+            mAccountKeys = new long[count];
+            mTimestamps = new long[count];
+            mFlags = new int[count];
+            mSubjectCodes = new int[count];
+            mSenderCodes = new int[count];
+        }
+
+        @Override
+        public void addRow(long id, long mailboxKey, long accountKey, long timestamp, int flags,
+                String subject, String sender) {
+            int row = mCount++;
+            mIds[row] = id;
+            mMailboxKeys[row] = mailboxKey;
+            mAccountKeys[row] = accountKey;
+            mTimestamps[row] = timestamp;
+            mFlags[row] = flags;
+            mSubjectCodes[row] = mSubjects.encode(subject);
+            mSenderCodes[row] = mSenders.encode(sender);
+        }
+
+        @Override
+        public HeapRowStore finish() {
+            return new HeapRowStore(this);
+        }
+
+        @Override
+        public void abort() {
+            // nothing outside the heap
+        }
+    }
+
+    private HeapRowStore(Writer w) {
+        mCount = w.mCount;
+        mIds = w.mIds;
+        mMailboxKeys = w.mMailboxKeys;
+        mAccountKeys = w.mAccountKeys;
+        mTimestamps = w.mTimestamps;
+        mFlags = w.mFlags;
+        mSubjectCodes = w.mSubjectCodes;
+        mSenderCodes = w.mSenderCodes;
+        mSubjects = w.mSubjects;
+        mSenders = w.mSenders;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public long getId(int row) {
+        return mIds[row];
+    }
+
+    @Override
+    public long getMailboxKey(int row) {
+        return mMailboxKeys[row];
+    }
+
+    @Override
+    public long getAccountKey(int row) {
+        return mAccountKeys[row];
+    }
+
+    @Override
+    public long getTimestamp(int row) {
+        return mTimestamps[row];
+    }
+
+    @Override
+    public int getFlags(int row) {
+        return mFlags[row];
+    }
+
+    @Override
+    public int getSubjectCode(int row) {
+        return mSubjectCodes[row];
+    }
+
+    @Override
+    public int getSenderCode(int row) {
+        return mSenderCodes[row];
+    }
+
+    @Override
+    public int getSubjectCodeCount() {
+        return mSubjects.size();
+    }
+
+    @Override
+    public String getSubject(int code) {
+        return mSubjects.get(code);
+    }
+
+    @Override
+    public int getSenderCodeCount() {
+        return mSenders.size();
+    }
+
+    @Override
+    public String getSender(int code) {
+        return mSenders.get(code);
+    }
+
+    /** Everything is on the heap and left to the garbage collector. */
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        return MemoryAccounting.object(4 + 9 * MemoryAccounting.REFERENCE)
+                + MemoryAccounting.array(mIds) + MemoryAccounting.array(mMailboxKeys)
+                + MemoryAccounting.array(mAccountKeys) + MemoryAccounting.array(mTimestamps)
+                + MemoryAccounting.array(mFlags) + MemoryAccounting.array(mSubjectCodes)
+                + MemoryAccounting.array(mSenderCodes)
+                + mSubjects.getRetainedBytes() + mSenders.getRetainedBytes();
+    }
+}
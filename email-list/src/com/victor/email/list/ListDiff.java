@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import java.util.Arrays;
+
+/**
+ * The difference between two versions of a list, each given as the item id and content version
+ * of every position.
+ *
+ * Items are matched by id with Myers' O((N + M) D) algorithm, after stripping the common prefix
+ * and suffix, so the usual reload, in which a few messages arrived or went away, costs little
+ * more than one pass over the ids.  An id that the edit script removes in one place and inserts
+ * in another is reported as a move rather than as a removal and an insertion.  Items present in
+ * both lists whose version differs are reported as changed.
+ */
+public class ListDiff {
+    private static final int[] EMPTY = new int[0];
+
+    /** Positions in the old list of the items that are gone. */
+    private final int[] mRemoved;
+    /** Positions in the new list of the items that are new. */
+    private final int[] mInserted;
+    /** Old and new positions of the items that moved. */
+    private final int[] mMovedFrom;
+    private final int[] mMovedTo;
+    /** Positions in the new list of the items, moved or not, whose version differs. */
+    private final int[] mChanged;
+
+    private ListDiff(int[] removed, int[] inserted, int[] movedFrom, int[] movedTo,
+            int[] changed) {
+        mRemoved = removed;
+        mInserted = inserted;
+        mMovedFrom = movedFrom;
+        mMovedTo = movedTo;
+        mChanged = changed;
+    }
+
+    public int[] getRemoved() {
+        return mRemoved;
+    }
+
+    public int[] getInserted() {
+        return mInserted;
+    }
+
+    public int[] getMovedFrom() {
+        return mMovedFrom;
+    }
+
+    public int[] getMovedTo() {
+        return mMovedTo;
+    }
+
+    public int[] getChanged() {
+        return mChanged;
+    }
+
+    /** @return true if items were removed, inserted or moved, i.e. positions shifted. */
+    public boolean hasStructuralChanges() {
+        return mRemoved.length > 0 || mInserted.length > 0 || mMovedTo.length > 0;
+    }
+
+    public boolean isEmpty() {
+        return !hasStructuralChanges() && mChanged.length == 0;
+    }
+
+    /**
+     * @return the position in the new list of the item at an old position; for an item that is
+     *     gone, that of the first item after it that is still there, so that a list can keep what
+     *     was at the top of the screen in place across a reload.
+     */
+    public int getNewPosition(int oldPosition) {
+        for (int i = 0; i < mMovedFrom.length; i++) {
+            if (mMovedFrom[i] == oldPosition) {
+                return mMovedTo[i];
+            }
+        }
+        // The index of the item among those that stayed, in both lists...
+        int kept = oldPosition - countBelow(mRemoved, oldPosition);
+        for (int from : mMovedFrom) {
+            if (from < oldPosition) {
+                kept--;
+            }
+        }
+        // ...and the new position that leaves that many kept items in front of it.
+        int[] added = Arrays.copyOf(mInserted, mInserted.length + mMovedTo.length);
+        System.arraycopy(mMovedTo, 0, added, mInserted.length, mMovedTo.length);
+        Arrays.sort(added);
+        int position = kept;
+        for (int i = 0; i < added.length && added[i] <= position; i++) {
+            position++;
+        }
+        return position;
+    }
+
+    /** @return the number of entries of the sorted {@code positions} below {@code position}. */
+    private static int countBelow(int[] positions, int position) {
+        int found = Arrays.binarySearch(positions, position);
+        return found >= 0 ? found : -found - 1;
+    }
+
+    /**
+     * @param maxEdits the largest number of insertions plus removals worth diffing; the trace
+     *     the algorithm keeps grows with its square
+     * @return the difference, or null if it takes more than {@code maxEdits} edits, in which case
+     *     the caller is better off treating the whole list as changed.
+     */
+    public static ListDiff compute(long[] oldIds, long[] oldVersions, long[] newIds,
+            long[] newVersions, int maxEdits) {
+        final int n = oldIds.length;
+        final int m = newIds.length;
+        IntList changed = new IntList();
+
+        // Common prefix and suffix.
+        int prefix = 0;
+        while (prefix < n && prefix < m && oldIds[prefix] == newIds[prefix]) {
+            if (oldVersions[prefix] != newVersions[prefix]) {
+                changed.add(prefix);
+            }
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < n - prefix && suffix < m - prefix
+                && oldIds[n - 1 - suffix] == newIds[m - 1 - suffix]) {
+            suffix++;
+        }
+        if (Math.abs((n - prefix - suffix) - (m - prefix - suffix)) > maxEdits) {
+            return null;
+        }
+
+        IntList removed = new IntList();
+        IntList inserted = new IntList();
+        if (!diffMiddle(oldIds, oldVersions, newIds, newVersions, prefix, n - suffix,
+                m - suffix, maxEdits, removed, inserted, changed)) {
+            return null;
+        }
+        for (int i = suffix; i > 0; i--) {
+            if (oldVersions[n - i] != newVersions[m - i]) {
+                changed.add(m - i);
+            }
+        }
+
+        // Move detection: an id both removed and inserted.
+        IntList movedFrom = new IntList();
+        IntList movedTo = new IntList();
+        if (removed.size() > 0 && inserted.size() > 0) {
+            LongIntHashMap removedAt = new LongIntHashMap(removed.size());
+            for (int i = 0; i < removed.size(); i++) {
+                removedAt.put(oldIds[removed.get(i)], removed.get(i));
+            }
+            IntList stillInserted = new IntList();
+            boolean[] moved = new boolean[n];
+            for (int i = 0; i < inserted.size(); i++) {
+                int to = inserted.get(i);
+                int from = removedAt.get(newIds[to], -1);
+                if (from >= 0 && !moved[from]) {
+                    moved[from] = true;
+                    movedFrom.add(from);
+                    movedTo.add(to);
+                    if (oldVersions[from] != newVersions[to]) {
+                        changed.add(to);
+                    }
+                } else {
+                    stillInserted.add(to);
+                }
+            }
+            IntList stillRemoved = new IntList();
+            for (int i = 0; i < removed.size(); i++) {
+                if (!moved[removed.get(i)]) {
+                    stillRemoved.add(removed.get(i));
+                }
+            }
+            removed = stillRemoved;
+            inserted = stillInserted;
+        }
+
+        return new ListDiff(removed.toSortedArray(), inserted.toSortedArray(),
+                movedFrom.toArray(), movedTo.toArray(), changed.toSortedArray());
+    }
+
+    /**
+     * Myers' greedy forward search over old[start, oldEnd) and new[start, newEnd), then a walk
+     * back through the saved frontiers to recover the edit script.
+     *
+     * @return false if more than {@code maxEdits} edits are needed.
+     */
+    private static boolean diffMiddle(long[] oldIds, long[] oldVersions, long[] newIds,
+            long[] newVersions, int start, int oldEnd, int newEnd, int maxEdits,
+            IntList removed, IntList inserted, IntList changed) {
+        final int n = oldEnd - start;
+        final int m = newEnd - start;
+        if (n == 0 || m == 0) {
+            for (int i = 0; i < n; i++) {
+                removed.add(start + i);
+            }
+            for (int i = 0; i < m; i++) {
+                inserted.add(start + i);
+            }
+            return true;
+        }
+
+        final int max = Math.min(n + m, maxEdits);
+        final int offset = max + 1;
+        // v[offset + k] is the furthest old index reached on diagonal k = x - y.
+        int[] v = new int[2 * max + 3];
+        // Frontier before each round d, over diagonals -d - 1 .. d + 1.
+        int[][] trace = new int[max + 1][];
+        int edits = -1;
+        search:
+        for (int d = 0; d <= max; d++) {
+            trace[d] = Arrays.copyOfRange(v, offset - d - 1, offset + d + 2);
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+                    x = v[offset + k + 1];
+                } else {
+                    x = v[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && oldIds[start + x] == newIds[start + y]) {
+                    x++;
+                    y++;
+                }
+                v[offset + k] = x;
+                if (x >= n && y >= m) {
+                    edits = d;
+                    break search;
+                }
+            }
+        }
+        if (edits < 0) {
+            return false;
+        }
+
+        int x = n;
+        int y = m;
+        for (int d = edits; d >= 0; d--) {
+            final int[] frontier = trace[d];
+            final int k = x - y;
+            int prevK;
+            if (d == 0) {
+                prevK = k;
+            } else if (k == -d || (k != d && frontier[k - 1 + d + 1] < frontier[k + 1 + d + 1])) {
+                prevK = k + 1;
+            } else {
+                prevK = k - 1;
+            }
+            final int prevX = d == 0 ? 0 : frontier[prevK + d + 1];
+            final int prevY = prevX - prevK;
+            // The snake that followed the edit.
+            final int snakeX = d == 0 ? 0 : (prevK == k + 1 ? prevX : prevX + 1);
+            while (x > snakeX) {
+                x--;
+                y--;
+                if (oldVersions[start + x] != newVersions[start + y]) {
+                    changed.add(start + y);
+                }
+            }
+            if (d > 0) {
+                if (prevK == k + 1) {
+                    inserted.add(start + prevY);
+                } else {
+                    removed.add(start + prevX);
+                }
+            }
+            x = prevX;
+            y = prevY;
+        }
+        return true;
+    }
+
+    /** Growable int array; the lists here are short, but may be long after a bulk change. */
+    private static class IntList {
+        private int[] mValues = EMPTY;
+        private int mSize;
+
+        void add(int value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, Math.max(8, mSize * 2));
+            }
+            mValues[mSize++] = value;
+        }
+
+        int get(int i) {
+            return mValues[i];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        int[] toArray() {
+            return mSize == 0 ? EMPTY : Arrays.copyOf(mValues, mSize);
+        }
+
+        int[] toSortedArray() {
+            int[] values = toArray();
+            Arrays.sort(values);
+            return values;
+        }
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link MessageRowStore} held in memory-mapped files rather than on the Java heap, for folders
+ * too large to copy into arrays.
+ *
+ * Rows are fixed width records in one file, followed by an index from subject code to the
+ * subject's offset in a second file, the string heap.  The page cache decides what is resident,
+ * so a folder of a million messages costs the heap little more than the sender dictionary.  Both
+ * files are unlinked as soon as they are mapped; the mappings, and the disk space, are released
+ * by {@link #close()}, or failing that when the store is garbage collected.
+ *
+ * Senders are few even in large folders and are dictionary encoded on the heap as usual.
+ * Subjects are mostly distinct, so their dictionary stays off the heap too: while writing, the
+ * rows file also holds the hash of every subject and an open addressing table from hash to code,
+ * and a subject is only written to the string heap if no equal one was written before.
+ */
+public class MappedRowStore implements MessageRowStore {
+    /** Folders with fewer rows than this are not worth mapping. */
+    public static final int MIN_ROWS = 100000;
+
+    // Record layout.
+    private static final int ID = 0;
+    private static final int MAILBOX_KEY = 8;
+    private static final int ACCOUNT_KEY = 16;
+    private static final int TIMESTAMP = 24;
+    private static final int FLAGS = 32;
+    private static final int SUBJECT_CODE = 36;
+    private static final int SENDER_CODE = 40;
+    private static final int RECORD_SIZE = 48;
+
+    /**
+     * Number of recently written subjects remembered on the heap.  Replies cluster in time, so
+     * most repeats are found here without reading a subject back from the string heap.
+     */
+    private static final int RECENT_SUBJECTS = 1024;
+    private static final int STAGING_SIZE = 64 * 1024;
+    /** A MappedByteBuffer with its cleaner, on the heap. */
+    private static final long MAPPED_BUFFER = 128;
+
+    private final int mCount;
+    private final int mIndexOffset;
+    private final int mSubjectCodeCount;
+    private final StringDictionary mSenders;
+    // Null once the store is closed.
+    private ByteBuffer mRecords;
+    private ByteBuffer mStrings;
+
+    public static class Writer implements MessageRowStore.Writer {
+        private final ByteBuffer mRecords;
+        private final int mIndexOffset;
+        /** Where the hash of every subject code is kept, an int each. */
+        private final int mHashOffset;
+        /** Where the subject table is kept: a code per slot, or NULL_CODE if it is free. */
+        private final int mTableOffset;
+        private final int mTableMask;
+        private final File mStringFile;
+        private final RandomAccessFile mStringOut;
+        private ByteBuffer mStaging = allocate(STAGING_SIZE);
+        /** Reads subjects back from the string heap to compare them. */
+        private ByteBuffer mReadBuffer = allocate(STAGING_SIZE);
+        /** Bytes written to the string heap so far, including those still in mStaging. */
+        private long mStringBytes;
+        /** Bytes of the string heap in the file, i.e. not in mStaging. */
+        private long mFlushedBytes;
+        private final StringDictionary mSenders = new StringDictionary();
+        private final String[] mRecentSubjects = new String[RECENT_SUBJECTS];
+        private final int[] mRecentCodes = new int[RECENT_SUBJECTS];
+        private int mSubjectCodeCount = 1;
+        private int mCount;
+        /** The first write error; reported by {@link #finish}. */
+        private IOException mError;
+        /** Set once the files were handed to a store or released. */
+        private boolean mReleased;
+
+        /**
+         * @param directory where to create the backing files, e.g. the cache directory
+         * @param count the number of rows that will be added
+         */
+        public Writer(File directory, int count) throws IOException {
+            // Each row adds at most one subject, so there are at most count + 1 codes; the table
+            // is at most half full.
+            final int tableSlots = Integer.highestOneBit(count + 1) * 4;
+            long size = (long) count * RECORD_SIZE + (count + 1L) * (8 + 4) + tableSlots * 4L;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Too many rows to map: " + count);
+            }
+            mIndexOffset = count * RECORD_SIZE;
+            mHashOffset = mIndexOffset + (count + 1) * 8;
+            mTableOffset = mHashOffset + (count + 1) * 4;
+            mTableMask = tableSlots - 1;
+            mRecords = map(directory, "rows", (int) size);
+            File stringFile = null;
+            boolean opened = false;
+            try {
+                stringFile = File.createTempFile("subjects", null, directory);
+                mStringOut = new RandomAccessFile(stringFile, "rw");
+                opened = true;
+            } finally {
+                if (!opened) {
+                    if (stringFile != null) {
+                        stringFile.delete();
+                    }
+                    unmap(mRecords);
+                }
+            }
+            mStringFile = stringFile;
+        }
+
+        @Override
+        public void addRow(long id, long mailboxKey, long accountKey, long timestamp, int flags,
+                String subject, String sender) {
+            final int record = mCount++ * RECORD_SIZE;
+            mRecords.putLong(record + ID, id);
+            mRecords.putLong(record + MAILBOX_KEY, mailboxKey);
+            mRecords.putLong(record + ACCOUNT_KEY, accountKey);
+            mRecords.putLong(record + TIMESTAMP, timestamp);
+            mRecords.putInt(record + FLAGS, flags);
+            mRecords.putInt(record + SUBJECT_CODE, encodeSubject(subject));
+            mRecords.putInt(record + SENDER_CODE, mSenders.encode(sender));
+        }
+
+        private int encodeSubject(String subject) {
+            if (subject == null || mError != null) {
+                return StringDictionary.NULL_CODE;
+            }
+            final int hash = subject.hashCode();
+            final int recent = hash & (RECENT_SUBJECTS - 1);
+            if (subject.equals(mRecentSubjects[recent])) {
+                return mRecentCodes[recent];
+            }
+            try {
+                int slot = (hash ^ (hash >>> 16)) & mTableMask;
+                int code;
+                while ((code = mRecords.getInt(mTableOffset + slot * 4))
+                        != StringDictionary.NULL_CODE) {
+                    if (mRecords.getInt(mHashOffset + code * 4) == hash
+                            && subjectEquals(code, subject)) {
+                        break;
+                    }
+                    slot = (slot + 1) & mTableMask;
+                }
+                if (code == StringDictionary.NULL_CODE) {
+                    code = mSubjectCodeCount++;
+                    mRecords.putInt(mTableOffset + slot * 4, code);
+                    mRecords.putInt(mHashOffset + code * 4, hash);
+                    mRecords.putLong(mIndexOffset + code * 8, mStringBytes);
+                    writeString(subject);
+                }
+                mRecentSubjects[recent] = subject;
+                mRecentCodes[recent] = code;
+                return code;
+            } catch (IOException e) {
+                mError = e;
+                return StringDictionary.NULL_CODE;
+            }
+        }
+
+        /**
+         * @return whether the subject of {@code code}, in the staging buffer or read back from
+         *     the string heap, is {@code value}.
+         */
+        private boolean subjectEquals(int code, String value) throws IOException {
+            final long offset = mRecords.getLong(mIndexOffset + code * 8);
+            final int length = value.length();
+            final ByteBuffer in;
+            final int start;
+            if (offset >= mFlushedBytes) {
+                in = mStaging;
+                start = (int) (offset - mFlushedBytes);
+            } else {
+                final int bytes = 4 + 2 * length;
+                if (mReadBuffer.capacity() < bytes) {
+                    mReadBuffer = allocate(bytes);
+                }
+                mReadBuffer.clear().limit(bytes);
+                FileChannel channel = mStringOut.getChannel();
+                while (mReadBuffer.hasRemaining()) {
+                    if (channel.read(mReadBuffer, offset + mReadBuffer.position()) < 0) {
+                        break;
+                    }
+                }
+                if (mReadBuffer.position() < 4) {
+                    return false;
+                }
+                in = mReadBuffer;
+                start = 0;
+            }
+            if (in.getInt(start) != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (in.getChar(start + 4 + 2 * i) != value.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void writeString(String value) throws IOException {
+            final int length = value.length();
+            final int bytes = 4 + 2 * length;
+            if (mStaging.remaining() < bytes) {
+                flushStaging();
+                if (mStaging.capacity() < bytes) {
+                    mStaging = allocate(bytes);
+                }
+            }
+            mStaging.putInt(length);
+            for (int i = 0; i < length; i++) {
+                mStaging.putChar(value.charAt(i));
+            }
+            mStringBytes += bytes;
+        }
+
+        private void flushStaging() throws IOException {
+            mStaging.flip();
+            FileChannel channel = mStringOut.getChannel();
+            while (mStaging.hasRemaining()) {
+                channel.write(mStaging);
+            }
+            mFlushedBytes = mStringBytes;
+            mStaging.clear();
+        }
+
+        @Override
+        public MappedRowStore finish() throws IOException {
+            boolean finished = false;
+            try {
+                if (mError != null) {
+                    throw mError;
+                }
+                flushStaging();
+                if (mStringBytes > Integer.MAX_VALUE) {
+                    throw new IOException("Subjects too large to map: " + mStringBytes);
+                }
+                ByteBuffer strings = mStringBytes == 0 ? allocate(0)
+                        : mStringOut.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                                mStringBytes).order(ByteOrder.nativeOrder());
+                finished = true;
+                return new MappedRowStore(this, strings);
+            } finally {
+                // the string heap is mapped by now, or not needed any more
+                mReleased = true;
+                if (!finished) {
+                    unmap(mRecords);
+                }
+                releaseStringFile();
+            }
+        }
+
+        @Override
+        public void abort() {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            unmap(mRecords);
+            releaseStringFile();
+        }
+
+        private void releaseStringFile() {
+            try {
+                mStringOut.close();
+            } catch (IOException e) {
+                // the file is deleted anyway
+            }
+            mStringFile.delete();
+        }
+    }
+
+    private MappedRowStore(Writer w, ByteBuffer strings) {
+        mCount = w.mCount;
+        mRecords = w.mRecords;
+        mIndexOffset = w.mIndexOffset;
+        mSubjectCodeCount = w.mSubjectCodeCount;
+        mStrings = strings;
+        mSenders = w.mSenders;
+    }
+
+    /**
+     * Maps a new, unlinked file of {@code size} bytes for reading and writing.
+     */
+    private static ByteBuffer map(File directory, String prefix, int size) throws IOException {
+        File file = File.createTempFile(prefix, null, directory);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size)
+                        .order(ByteOrder.nativeOrder());
+            } finally {
+                raf.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Releases the mapping of {@code buffer} now rather than when it is collected.  There is no
+     * public API for this, so the runtime's own hook is looked up: NioUtils on Android, Unsafe
+     * on Java 9 and later.  Without either the mapping is left to the garbage collector.
+     */
+    private static void unmap(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        try {
+            Class.forName("java.nio.NioUtils").getMethod("freeDirectBuffer", ByteBuffer.class)
+                    .invoke(null, buffer);
+            return;
+        } catch (Exception e) {
+            // not Android
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class)
+                    .invoke(field.get(null), buffer);
+        } catch (Exception e) {
+            // left to the garbage collector
+        }
+    }
+
+    // All reads are absolute, so concurrent readers do not disturb each other.
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public long getId(int row) {
+        return mRecords.getLong(row * RECORD_SIZE + ID);
+    }
+
+    @Override
+    public long getMailboxKey(int row) {
+        return mRecords.getLong(row * RECORD_SIZE + MAILBOX_KEY);
+    }
+
+    @Override
+    public long getAccountKey(int row) {
+        return mRecords.getLong(row * RECORD_SIZE + ACCOUNT_KEY);
+    }
+
+    @Override
+    public long getTimestamp(int row) {
+        return mRecords.getLong(row * RECORD_SIZE + TIMESTAMP);
+    }
+
+    @Override
+    public int getFlags(int row) {
+        return mRecords.getInt(row * RECORD_SIZE + FLAGS);
+    }
+
+    @Override
+    public int getSubjectCode(int row) {
+        return mRecords.getInt(row * RECORD_SIZE + SUBJECT_CODE);
+    }
+
+    @Override
+    public int getSenderCode(int row) {
+        return mRecords.getInt(row * RECORD_SIZE + SENDER_CODE);
+    }
+
+    @Override
+    public int getSubjectCodeCount() {
+        return mSubjectCodeCount;
+    }
+
+    @Override
+    public String getSubject(int code) {
+        if (code == StringDictionary.NULL_CODE) {
+            return null;
+        }
+        final int offset = (int) mRecords.getLong(mIndexOffset + code * 8);
+        final int length = mStrings.getInt(offset);
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = mStrings.getChar(offset + 4 + 2 * i);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public int getSenderCodeCount() {
+        return mSenders.size();
+    }
+
+    @Override
+    public String getSender(int code) {
+        return mSenders.get(code);
+    }
+
+    /**
+     * Unmaps both files, which frees their disk space.  The store must not be read afterwards;
+     * reading it throws a NullPointerException.
+     */
+    @Override
+    public void close() {
+        ByteBuffer records = mRecords;
+        ByteBuffer strings = mStrings;
+        if (records == null) {
+            return;
+        }
+        mRecords = null;
+        mStrings = null;
+        unmap(records);
+        unmap(strings);
+    }
+
+    /**
+     * The records and the subjects are in the mapped files, outside the heap; only the buffers
+     * that map them and the sender dictionary count.
+     */
+    @Override
+    public long getRetainedBytes() {
+        return MemoryAccounting.object(3 * 4 + 3 * MemoryAccounting.REFERENCE)
+                + 2 * MAPPED_BUFFER + mSenders.getRetainedBytes();
+    }
+}
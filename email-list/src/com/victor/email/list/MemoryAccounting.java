@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Estimates of how much heap the structures of the message list retain.  Sizes follow a 64-bit
+ * VM with compressed references: 12-byte object headers, 16-byte array headers, 4-byte
+ * references, everything aligned to 8 bytes.  Dalvik's headers are smaller, so the estimates
+ * are upper bounds there.  Strings count two bytes per character.
+ *
+ * <p>The structures estimate themselves, e.g. {@link MessageListModel#getRetainedBytes()}, with
+ * the helpers here; a {@link Report} adds them up per row of the list.
+ */
+public final class MemoryAccounting {
+    public static final int OBJECT_HEADER = 12;
+    public static final int ARRAY_HEADER = 16;
+    public static final int REFERENCE = 4;
+    /** The size of a boxed Integer or Long. */
+    public static final long BOXED = 16;
+
+    private MemoryAccounting() {
+    }
+
+    public static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * @return the size of an object with the given bytes of fields; count each reference as
+     *     {@link #REFERENCE}.
+     */
+    public static long object(int fieldBytes) {
+        return align(OBJECT_HEADER + fieldBytes);
+    }
+
+    public static long array(int[] array) {
+        return array == null ? 0 : align(ARRAY_HEADER + 4L * array.length);
+    }
+
+    public static long array(long[] array) {
+        return array == null ? 0 : align(ARRAY_HEADER + 8L * array.length);
+    }
+
+    public static long array(boolean[] array) {
+        return array == null ? 0 : align(ARRAY_HEADER + array.length);
+    }
+
+    public static long array(char[] array) {
+        return array == null ? 0 : align(ARRAY_HEADER + 2L * array.length);
+    }
+
+    /** @return the size of the array itself, not of the objects it refers to. */
+    public static long array(Object[] array) {
+        return array == null ? 0 : align(ARRAY_HEADER + (long) REFERENCE * array.length);
+    }
+
+    /**
+     * @return the size of a {@link java.util.HashMap} of {@code size} entries with the default
+     *     load factor, not counting its keys and values.
+     */
+    public static long hashMap(int size) {
+        int capacity = 16;
+        while (capacity * 3 / 4 < size) {
+            capacity <<= 1;
+        }
+        return object(4 * 4 + 4 * REFERENCE)
+                + align(ARRAY_HEADER + (long) REFERENCE * capacity)
+                + size * object(4 + 3 * REFERENCE);
+    }
+
+    /** @return the size of a {@link java.util.HashSet} of boxed numbers. */
+    public static long hashSetOfBoxed(int size) {
+        return object(REFERENCE) + hashMap(size) + size * BOXED;
+    }
+
+    /** @return the size of a string of {@code length} characters and its character array. */
+    public static long string(int length) {
+        return object(3 * 4) + align(ARRAY_HEADER + 2L * length);
+    }
+
+    public static long string(String string) {
+        return string == null ? 0 : string(string.length());
+    }
+
+    /** The retained size of each structure of one list, and its share per row. */
+    public static class Report {
+        private final int mRows;
+        private final ArrayList<String> mNames = new ArrayList<String>();
+        private final ArrayList<Long> mBytes = new ArrayList<Long>();
+
+        /** @param rows the rows of the list, to divide by */
+        public Report(int rows) {
+            mRows = rows;
+        }
+
+        public int getRows() {
+            return mRows;
+        }
+
+        /** Adds {@code bytes} to the structure {@code name}. */
+        public void add(String name, long bytes) {
+            int index = mNames.indexOf(name);
+            if (index < 0) {
+                mNames.add(name);
+                mBytes.add(bytes);
+            } else {
+                mBytes.set(index, mBytes.get(index) + bytes);
+            }
+        }
+
+        public long getBytes(String name) {
+            int index = mNames.indexOf(name);
+            return index < 0 ? 0 : mBytes.get(index);
+        }
+
+        public long getTotalBytes() {
+            long total = 0;
+            for (long bytes : mBytes) {
+                total += bytes;
+            }
+            return total;
+        }
+
+        public double getBytesPerRow(String name) {
+            return mRows == 0 ? 0 : (double) getBytes(name) / mRows;
+        }
+
+        public double getTotalBytesPerRow() {
+            return mRows == 0 ? 0 : (double) getTotalBytes() / mRows;
+        }
+
+        /**
+         * @throws AssertionError if {@code name} retains more than {@code bytesPerRow} per row
+         */
+        public void assertAtMost(String name, double bytesPerRow) {
+            if (getBytesPerRow(name) > bytesPerRow) {
+                throw new AssertionError(String.format(
+                        "%s retains %.1f bytes per row at %d rows, more than %.1f",
+                        name, getBytesPerRow(name), mRows, bytesPerRow));
+            }
+        }
+
+        public void dump(String prefix, PrintWriter writer) {
+            writer.print(prefix);
+            writer.println("Retained heap of the message list, " + mRows + " rows:");
+            for (int i = 0; i < mNames.size(); i++) {
+                writer.print(prefix);
+                writer.println(String.format("  %-22s %12d B %10.1f B/row",
+                        mNames.get(i), mBytes.get(i), getBytesPerRow(mNames.get(i))));
+            }
+            writer.print(prefix);
+            writer.println(String.format("  %-22s %12d B %10.1f B/row",
+                    "total", getTotalBytes(), getTotalBytesPerRow()));
+            writer.flush();
+        }
+    }
+}
@@ -0,0 +1,789 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A compressed set of message ids, laid out like a roaring bitmap.
+ *
+ * Each id is split into a high key (the upper 48 bits) and a 16 bit low value. Every key owns a
+ * container holding its low values: a sorted char array while the container is sparse, and a
+ * 65536 bit bitmap once it holds more than {@link #ARRAY_MAX} values. A bitmap only goes back to
+ * an array once it drops below {@link #BITMAP_MIN} values, so selecting and deselecting around
+ * the boundary doesn't convert the container on every call. Message ids are allocated
+ * sequentially by the provider, so a selection of a whole folder collapses into a handful of
+ * dense containers.
+ *
+ * The {@link java.util.Set} view boxes every element and is only kept so existing callers of
+ * the adapter's getSelectedSet() keep working; bulk code should use the primitive
+ * methods and {@link #idIterator()}.
+ *
+ * Not thread safe.
+ */
+public class MessageIdSet extends AbstractSet<Long> {
+    /** Largest number of values kept in an array container. */
+    private static final int ARRAY_MAX = 4096;
+    /** Smallest number of values kept in a bitmap container by {@link #remove(long)}. */
+    private static final int BITMAP_MIN = ARRAY_MAX / 2;
+    /** Number of 64 bit words in a bitmap container. */
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    // Serialized container types.
+    private static final byte TYPE_ARRAY = 0;
+    private static final byte TYPE_BITMAP = 1;
+    private static final byte TYPE_RUN = 2;
+
+    private long[] mKeys = new long[4];
+    private Container[] mContainers = new Container[4];
+    private int mContainerCount;
+    private int mSize;
+
+    /**
+     * Primitive iterator over the ids of a {@link MessageIdSet}, in ascending order.
+     */
+    public interface IdIterator {
+        boolean hasNext();
+        long next();
+    }
+
+    public MessageIdSet() {
+    }
+
+    public MessageIdSet(MessageIdSet other) {
+        addAll(other);
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    /** @return an estimate of the heap the set retains; see {@link MemoryAccounting}. */
+    public long getRetainedBytes() {
+        long bytes = MemoryAccounting.object(2 * MemoryAccounting.REFERENCE + 2 * 4)
+                + MemoryAccounting.array(mKeys) + MemoryAccounting.array(mContainers);
+        for (int i = 0; i < mContainerCount; i++) {
+            bytes += mContainers[i].retainedBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(mContainers, 0, mContainerCount, null);
+        mContainerCount = 0;
+        mSize = 0;
+    }
+
+    public boolean contains(long id) {
+        int index = indexOfKey(id >>> 16);
+        return index >= 0 && mContainers[index].contains((char) id);
+    }
+
+    public boolean add(long id) {
+        long key = id >>> 16;
+        int index = indexOfKey(key);
+        if (index < 0) {
+            index = -index - 1;
+            insertContainer(index, key, new ArrayContainer());
+        }
+        Container c = mContainers[index];
+        int before = c.cardinality();
+        mContainers[index] = c.add((char) id);
+        if (mContainers[index].cardinality() == before) {
+            return false;
+        }
+        mSize++;
+        return true;
+    }
+
+    public boolean remove(long id) {
+        int index = indexOfKey(id >>> 16);
+        if (index < 0) {
+            return false;
+        }
+        Container c = mContainers[index];
+        int before = c.cardinality();
+        c = c.remove((char) id);
+        if (c.cardinality() == before) {
+            return false;
+        }
+        mSize--;
+        if (c.cardinality() == 0) {
+            removeContainer(index);
+        } else {
+            mContainers[index] = c;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return (o instanceof Long) && contains(((Long) o).longValue());
+    }
+
+    @Override
+    public boolean add(Long id) {
+        return add(id.longValue());
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return (o instanceof Long) && remove(((Long) o).longValue());
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Long> c) {
+        if (c instanceof MessageIdSet) {
+            int before = mSize;
+            or((MessageIdSet) c);
+            return mSize != before;
+        }
+        return super.addAll(c);
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        boolean changed = false;
+        if (c instanceof MessageIdSet) {
+            IdIterator it = ((MessageIdSet) c).idIterator();
+            while (it.hasNext()) {
+                changed |= remove(it.next());
+            }
+        } else {
+            for (Object o : c) {
+                changed |= remove(o);
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        int before = mSize;
+        if (c instanceof MessageIdSet) {
+            and((MessageIdSet) c);
+        } else {
+            MessageIdSet retained = new MessageIdSet();
+            for (Object o : c) {
+                if (contains(o)) {
+                    retained.add((Long) o);
+                }
+            }
+            clear();
+            or(retained);
+        }
+        return mSize != before;
+    }
+
+    /**
+     * Adds every id of {@code other} to this set.
+     */
+    public void or(MessageIdSet other) {
+        for (int i = 0; i < other.mContainerCount; i++) {
+            long key = other.mKeys[i];
+            int index = indexOfKey(key);
+            if (index < 0) {
+                insertContainer(-index - 1, key, other.mContainers[i].copy());
+                mSize += other.mContainers[i].cardinality();
+            } else {
+                int before = mContainers[index].cardinality();
+                mContainers[index] = mContainers[index].or(other.mContainers[i]);
+                mSize += mContainers[index].cardinality() - before;
+            }
+        }
+    }
+
+    /**
+     * Removes every id from this set that is not also in {@code other}.
+     */
+    public void and(MessageIdSet other) {
+        int out = 0;
+        int size = 0;
+        for (int i = 0; i < mContainerCount; i++) {
+            int index = other.indexOfKey(mKeys[i]);
+            if (index < 0) {
+                continue;
+            }
+            Container c = mContainers[i].and(other.mContainers[index]);
+            if (c.cardinality() > 0) {
+                mKeys[out] = mKeys[i];
+                mContainers[out] = c;
+                size += c.cardinality();
+                out++;
+            }
+        }
+        Arrays.fill(mContainers, out, mContainerCount, null);
+        mContainerCount = out;
+        mSize = size;
+    }
+
+    /**
+     * @return a new set holding the ids that are in either {@code a} or {@code b}.
+     */
+    public static MessageIdSet union(MessageIdSet a, MessageIdSet b) {
+        MessageIdSet result = new MessageIdSet(a);
+        result.or(b);
+        return result;
+    }
+
+    /**
+     * @return a new set holding the ids that are in both {@code a} and {@code b}.
+     */
+    public static MessageIdSet intersection(MessageIdSet a, MessageIdSet b) {
+        MessageIdSet result = new MessageIdSet(a);
+        result.and(b);
+        return result;
+    }
+
+    public IdIterator idIterator() {
+        return new ContainerIterator(0, mContainerCount > 0 ? mContainers[0].advance(-1) : -1);
+    }
+
+    /**
+     * @return an iterator over the ids that are at least {@code from}, in ascending order.
+     */
+    private IdIterator idIteratorFrom(long from) {
+        int index = indexOfKey(from >>> 16);
+        int pos = -1;
+        if (index >= 0) {
+            pos = mContainers[index].seek((char) from);
+            if (pos < 0) {
+                index++;
+            }
+        } else {
+            index = -index - 1;
+        }
+        if (pos < 0 && index < mContainerCount) {
+            pos = mContainers[index].advance(-1);
+        }
+        return new ContainerIterator(index, pos);
+    }
+
+    @Override
+    public Iterator<Long> iterator() {
+        return new Iterator<Long>() {
+            private IdIterator mIt = idIterator();
+            private long mLast;
+            private boolean mCanRemove;
+
+            @Override
+            public boolean hasNext() {
+                return mIt.hasNext();
+            }
+
+            @Override
+            public Long next() {
+                mLast = mIt.next();
+                mCanRemove = true;
+                return mLast;
+            }
+
+            @Override
+            public void remove() {
+                if (!mCanRemove) {
+                    throw new IllegalStateException();
+                }
+                mCanRemove = false;
+                MessageIdSet.this.remove(mLast);
+                // Removing may have dropped or converted the container, so find our place again.
+                mIt = idIteratorFrom(mLast + 1);
+            }
+        };
+    }
+
+    /**
+     * @return the ids in ascending order.
+     */
+    public long[] toLongArray() {
+        long[] result = new long[mSize];
+        IdIterator it = idIterator();
+        for (int i = 0; it.hasNext(); i++) {
+            result[i] = it.next();
+        }
+        return result;
+    }
+
+    /**
+     * Serializes the set into a compact form suitable for a Bundle.  Every container is written
+     * in whichever of the array, bitmap or run encodings is smallest, so a contiguous "select
+     * all" costs a few bytes per 64K ids.
+     */
+    public byte[] toByteArray() {
+        int length = 4;
+        for (int i = 0; i < mContainerCount; i++) {
+            length += 8 + 1 + serializedSize(mContainers[i]);
+        }
+        ByteBuffer out = ByteBuffer.allocate(length);
+        out.putInt(mContainerCount);
+        for (int i = 0; i < mContainerCount; i++) {
+            Container c = mContainers[i];
+            out.putLong(mKeys[i]);
+            int runs = c.runCount();
+            int arrayBytes = 2 + c.cardinality() * 2;
+            int runBytes = 2 + runs * 4;
+            if (runBytes <= arrayBytes && runBytes <= BITMAP_WORDS * 8) {
+                out.put(TYPE_RUN);
+                out.putChar((char) runs);
+                int pos = c.advance(-1);
+                while (pos >= 0) {
+                    int start = c.valueAt(pos);
+                    int last = start;
+                    pos = c.advance(pos);
+                    while (pos >= 0 && c.valueAt(pos) == last + 1) {
+                        last++;
+                        pos = c.advance(pos);
+                    }
+                    out.putChar((char) start);
+                    out.putChar((char) (last - start));
+                }
+            } else if (arrayBytes <= BITMAP_WORDS * 8) {
+                out.put(TYPE_ARRAY);
+                out.putChar((char) (c.cardinality() - 1));
+                for (int pos = c.advance(-1); pos >= 0; pos = c.advance(pos)) {
+                    out.putChar((char) c.valueAt(pos));
+                }
+            } else {
+                out.put(TYPE_BITMAP);
+                BitmapContainer bitmap = c.toBitmap();
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    out.putLong(bitmap.mWords[w]);
+                }
+            }
+        }
+        return out.array();
+    }
+
+    private static int serializedSize(Container c) {
+        int runBytes = 2 + c.runCount() * 4;
+        int arrayBytes = 2 + c.cardinality() * 2;
+        return Math.min(Math.min(runBytes, arrayBytes), BITMAP_WORDS * 8);
+    }
+
+    /**
+     * Restores a set written by {@link #toByteArray()}.
+     */
+    public static MessageIdSet fromByteArray(byte[] data) {
+        MessageIdSet set = new MessageIdSet();
+        ByteBuffer in = ByteBuffer.wrap(data);
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            long key = in.getLong();
+            byte type = in.get();
+            Container c;
+            if (type == TYPE_RUN) {
+                int runs = in.getChar();
+                c = new ArrayContainer();
+                for (int r = 0; r < runs; r++) {
+                    int start = in.getChar();
+                    int end = start + in.getChar();
+                    for (int v = start; v <= end; v++) {
+                        c = c.add((char) v);
+                    }
+                }
+            } else if (type == TYPE_ARRAY) {
+                int card = in.getChar() + 1;
+                ArrayContainer array = new ArrayContainer(card);
+                for (int v = 0; v < card; v++) {
+                    array.mValues[v] = in.getChar();
+                }
+                array.mCardinality = card;
+                c = array;
+            } else if (type == TYPE_BITMAP) {
+                BitmapContainer bitmap = new BitmapContainer();
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    bitmap.mWords[w] = in.getLong();
+                    bitmap.mCardinality += Long.bitCount(bitmap.mWords[w]);
+                }
+                c = bitmap;
+            } else {
+                throw new IllegalArgumentException("Unknown container type " + type);
+            }
+            set.insertContainer(set.mContainerCount, key, c);
+            set.mSize += c.cardinality();
+        }
+        return set;
+    }
+
+    /** Walks the containers in key order, and each container in value order. */
+    private final class ContainerIterator implements IdIterator {
+        private int mContainer;
+        private int mPos;
+
+        ContainerIterator(int container, int pos) {
+            mContainer = container;
+            mPos = pos;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mPos >= 0;
+        }
+
+        @Override
+        public long next() {
+            if (mPos < 0) {
+                throw new NoSuchElementException();
+            }
+            Container c = mContainers[mContainer];
+            long id = (mKeys[mContainer] << 16) | c.valueAt(mPos);
+            mPos = c.advance(mPos);
+            if (mPos < 0 && ++mContainer < mContainerCount) {
+                mPos = mContainers[mContainer].advance(-1);
+            }
+            return id;
+        }
+    }
+
+    private int indexOfKey(long key) {
+        return Arrays.binarySearch(mKeys, 0, mContainerCount, key);
+    }
+
+    private void insertContainer(int index, long key, Container c) {
+        if (mContainerCount == mKeys.length) {
+            int capacity = mContainerCount * 2;
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mContainers = Arrays.copyOf(mContainers, capacity);
+        }
+        System.arraycopy(mKeys, index, mKeys, index + 1, mContainerCount - index);
+        System.arraycopy(mContainers, index, mContainers, index + 1, mContainerCount - index);
+        mKeys[index] = key;
+        mContainers[index] = c;
+        mContainerCount++;
+    }
+
+    private void removeContainer(int index) {
+        System.arraycopy(mKeys, index + 1, mKeys, index, mContainerCount - index - 1);
+        System.arraycopy(mContainers, index + 1, mContainers, index, mContainerCount - index - 1);
+        mContainers[--mContainerCount] = null;
+    }
+
+    /**
+     * Holds the low 16 bits of the ids sharing one high key.  Mutators return the container that
+     * should replace this one, which lets a container switch representation as it grows or shrinks.
+     */
+    private static abstract class Container {
+        abstract int cardinality();
+        abstract long retainedBytes();
+        abstract boolean contains(char value);
+        abstract Container add(char value);
+        abstract Container remove(char value);
+        abstract Container or(Container other);
+        abstract Container and(Container other);
+        abstract Container copy();
+        abstract BitmapContainer toBitmap();
+
+        /** @return the iteration position after {@code pos}, or -1; pass -1 to start. */
+        abstract int advance(int pos);
+
+        /** @return the value at an iteration position returned by {@link #advance(int)}. */
+        abstract int valueAt(int pos);
+
+        /** @return the iteration position of the first value not less than {@code value}, or -1. */
+        abstract int seek(char value);
+
+        int runCount() {
+            int runs = 0;
+            int last = -2;
+            for (int pos = advance(-1); pos >= 0; pos = advance(pos)) {
+                int value = valueAt(pos);
+                if (value != last + 1) {
+                    runs++;
+                }
+                last = value;
+            }
+            return runs;
+        }
+    }
+
+    private static final class ArrayContainer extends Container {
+        char[] mValues;
+        int mCardinality;
+
+        ArrayContainer() {
+            this(4);
+        }
+
+        ArrayContainer(int capacity) {
+            mValues = new char[capacity];
+        }
+
+        @Override
+        int cardinality() {
+            return mCardinality;
+        }
+
+        @Override
+        long retainedBytes() {
+            return MemoryAccounting.object(MemoryAccounting.REFERENCE + 4)
+                    + MemoryAccounting.array(mValues);
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(mValues, 0, mCardinality, value) >= 0;
+        }
+
+        @Override
+        Container add(char value) {
+            int index = Arrays.binarySearch(mValues, 0, mCardinality, value);
+            if (index >= 0) {
+                return this;
+            }
+            if (mCardinality == ARRAY_MAX) {
+                return toBitmap().add(value);
+            }
+            index = -index - 1;
+            if (mCardinality == mValues.length) {
+                mValues = Arrays.copyOf(mValues, Math.min(ARRAY_MAX, mCardinality * 2));
+            }
+            System.arraycopy(mValues, index, mValues, index + 1, mCardinality - index);
+            mValues[index] = value;
+            mCardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            int index = Arrays.binarySearch(mValues, 0, mCardinality, value);
+            if (index >= 0) {
+                System.arraycopy(mValues, index + 1, mValues, index, mCardinality - index - 1);
+                mCardinality--;
+            }
+            return this;
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) {
+                return toBitmap().or(other);
+            }
+            ArrayContainer o = (ArrayContainer) other;
+            if (mCardinality + o.mCardinality > ARRAY_MAX) {
+                return toBitmap().or(o);
+            }
+            char[] merged = new char[Math.max(4, mCardinality + o.mCardinality)];
+            int i = 0, j = 0, k = 0;
+            while (i < mCardinality && j < o.mCardinality) {
+                char a = mValues[i];
+                char b = o.mValues[j];
+                if (a < b) {
+                    merged[k++] = a;
+                    i++;
+                } else if (a > b) {
+                    merged[k++] = b;
+                    j++;
+                } else {
+                    merged[k++] = a;
+                    i++;
+                    j++;
+                }
+            }
+            while (i < mCardinality) {
+                merged[k++] = mValues[i++];
+            }
+            while (j < o.mCardinality) {
+                merged[k++] = o.mValues[j++];
+            }
+            mValues = merged;
+            mCardinality = k;
+            return this;
+        }
+
+        @Override
+        Container and(Container other) {
+            ArrayContainer result = new ArrayContainer(Math.max(4, mCardinality));
+            for (int i = 0; i < mCardinality; i++) {
+                if (other.contains(mValues[i])) {
+                    result.mValues[result.mCardinality++] = mValues[i];
+                }
+            }
+            return result;
+        }
+
+        @Override
+        Container copy() {
+            ArrayContainer result = new ArrayContainer(Math.max(4, mCardinality));
+            System.arraycopy(mValues, 0, result.mValues, 0, mCardinality);
+            result.mCardinality = mCardinality;
+            return result;
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < mCardinality; i++) {
+                bitmap.mWords[mValues[i] >>> 6] |= 1L << mValues[i];
+            }
+            bitmap.mCardinality = mCardinality;
+            return bitmap;
+        }
+
+        @Override
+        int advance(int pos) {
+            return pos + 1 < mCardinality ? pos + 1 : -1;
+        }
+
+        @Override
+        int valueAt(int pos) {
+            return mValues[pos];
+        }
+
+        @Override
+        int seek(char value) {
+            int index = Arrays.binarySearch(mValues, 0, mCardinality, value);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index < mCardinality ? index : -1;
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        final long[] mWords = new long[BITMAP_WORDS];
+        int mCardinality;
+
+        @Override
+        int cardinality() {
+            return mCardinality;
+        }
+
+        @Override
+        long retainedBytes() {
+            return MemoryAccounting.object(MemoryAccounting.REFERENCE + 4)
+                    + MemoryAccounting.array(mWords);
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (mWords[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        Container add(char value) {
+            long word = mWords[value >>> 6];
+            long bit = 1L << value;
+            if ((word & bit) == 0) {
+                mWords[value >>> 6] = word | bit;
+                mCardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            long word = mWords[value >>> 6];
+            long bit = 1L << value;
+            if ((word & bit) != 0) {
+                mWords[value >>> 6] = word & ~bit;
+                if (--mCardinality < BITMAP_MIN) {
+                    return toArray();
+                }
+            }
+            return this;
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof ArrayContainer) {
+                ArrayContainer o = (ArrayContainer) other;
+                for (int i = 0; i < o.mCardinality; i++) {
+                    add(o.mValues[i]);
+                }
+                return this;
+            }
+            BitmapContainer o = (BitmapContainer) other;
+            int card = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                mWords[w] |= o.mWords[w];
+                card += Long.bitCount(mWords[w]);
+            }
+            mCardinality = card;
+            return this;
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            BitmapContainer o = (BitmapContainer) other;
+            BitmapContainer result = new BitmapContainer();
+            int card = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                result.mWords[w] = mWords[w] & o.mWords[w];
+                card += Long.bitCount(result.mWords[w]);
+            }
+            result.mCardinality = card;
+            return card <= ARRAY_MAX ? result.toArray() : result;
+        }
+
+        @Override
+        Container copy() {
+            BitmapContainer result = new BitmapContainer();
+            System.arraycopy(mWords, 0, result.mWords, 0, BITMAP_WORDS);
+            result.mCardinality = mCardinality;
+            return result;
+        }
+
+        @Override
+        BitmapContainer toBitmap() {
+            return this;
+        }
+
+        private ArrayContainer toArray() {
+            ArrayContainer array = new ArrayContainer(Math.max(4, mCardinality));
+            for (int pos = advance(-1); pos >= 0; pos = advance(pos)) {
+                array.mValues[array.mCardinality++] = (char) pos;
+            }
+            return array;
+        }
+
+        @Override
+        int advance(int pos) {
+            int from = pos + 1;
+            if (from >= BITMAP_WORDS * 64) {
+                return -1;
+            }
+            int w = from >>> 6;
+            long word = mWords[w] & (-1L << from);
+            while (word == 0) {
+                if (++w == BITMAP_WORDS) {
+                    return -1;
+                }
+                word = mWords[w];
+            }
+            return (w << 6) + Long.numberOfTrailingZeros(word);
+        }
+
+        @Override
+        int valueAt(int pos) {
+            return pos;
+        }
+
+        @Override
+        int seek(char value) {
+            return advance(value - 1);
+        }
+    }
+}
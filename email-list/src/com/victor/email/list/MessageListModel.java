@@ -0,0 +1,740 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * The message list as it is shown: the loaded rows in display order, gathered into groups that
+ * can be expanded and collapsed, with a header in front of every group.
+ *
+ * There are two kinds of positions.  A display position indexes the rows in sort order, headers
+ * not counted.  A visible position indexes what the list shows when headers are on: each header,
+ * followed by the rows of its group if the group is expanded.  Groups are a table of group starts
+ * into the display positions, so expanding or collapsing a group flips a flag, and the visible
+ * position of every header is a prefix sum that is rebuilt on demand and binary searched.
+ *
+ * Rows are read from a {@link MessageListSnapshot}, which can sit on any {@link MessageRowStore}.
+ * Nothing here depends on Android, so grouping and indexing run, and can be measured, on a plain
+ * JVM.  Not thread safe.
+ */
+public class MessageListModel {
+    // How rows are gathered into groups.
+    /** Rows are grouped by what they are sorted by (date, thread or sender). */
+    public static final int GROUPING_BY_SORT_ORDER = 0;
+    /** Rows keep the sort order and are gathered into conversations by sender. */
+    public static final int GROUPING_CONVERSATIONS_BY_SENDER = 1;
+    /** Rows keep the sort order and are gathered into conversations by normalized subject. */
+    public static final int GROUPING_CONVERSATIONS_BY_SUBJECT = 2;
+
+    // What the group headers show.
+    public static final int GROUP_BY_NONE = 0;
+    public static final int GROUP_BY_DATE = 1;
+    public static final int GROUP_BY_SUBJECT = 2;
+    public static final int GROUP_BY_SENDER = 3;
+
+    /** Sort key of a display order the model knows nothing about, e.g. a provider order. */
+    public static final int SORT_BY_NONE = -1;
+
+    /**
+     * Set in the ids of group headers.  Message ids never reach bit 62, so header ids cannot
+     * collide with them; the other bits are a hash of the group key, which keeps a header's id
+     * across reloads.
+     */
+    public static final long HEADER_ID_TAG = 1L << 62;
+    private static final long HEADER_ID_MASK = HEADER_ID_TAG - 1;
+
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final MessageListSnapshot mSnapshot;
+    private final TimeZone mTimeZone;
+    /** Display order of the rows, mOrder[position] = snapshot row; null for snapshot order. */
+    private int[] mOrder;
+    /** The SORT_BY_ key of the display order. */
+    private int mSortBy;
+    private boolean mDescending;
+    private int mGroupingMode = GROUPING_BY_SORT_ORDER;
+
+    /**
+     * Display positions of the rows, group by group; null when groups are contiguous in
+     * display order, so that the i-th row of the table is simply position i.
+     */
+    private int[] mItemPositions;
+    /** Index of the first row of every group in the table above, followed by the row count. */
+    private int[] mGroupStart;
+    private boolean[] mGroupExpanded;
+    /** The group of every snapshot row. */
+    private int[] mRowGroup;
+    // Per group aggregates, as the list shows them, i.e. with the flag overlay applied.
+    private int[] mGroupUnread;
+    private int[] mGroupFavorite;
+    private int[] mGroupAttachment;
+    private long[] mGroupNewest;
+    private long[] mGroupOldest;
+    /** Id of every group header; see {@link #HEADER_ID_TAG}. */
+    private long[] mGroupIds;
+    /** Read and favorite changes the snapshot does not reflect yet, or null. */
+    private FlagOverlay mFlagOverlay;
+    /** Snapshot row of every message id, for flag changes made by id. */
+    private final LongIntHashMap mRowsById;
+    /**
+     * Hash of what every snapshot row shows besides its read and favorite flags, or null; see
+     * {@link #setRowHashes}.
+     */
+    private int[] mRowHashes;
+    /** Visible position of every group header; recomputed when mVisibleStale is set. */
+    private int[] mGroupVisibleStart = new int[0];
+    private int mVisibleCount;
+    private boolean mVisibleStale = true;
+    /** Year/month/week/day index of the groups; null unless grouped by date. */
+    private DateGroupIndex mDateIndex;
+
+    /**
+     * Groups the rows of {@code snapshot}, in the given order, by what they are sorted by.  Like
+     * the snapshot, the model is built on the loader thread, so that everything it needs for
+     * later changes on the UI thread, such as the row of every message id, is ready then.
+     *
+     * @param order the display order, order[position] = snapshot row, e.g. from
+     *     {@link MessageListSnapshot#sort}; null for snapshot order
+     * @param sortBy the SORT_BY_ key of {@link MessageListSnapshot} the order sorts by, or
+     *     {@link #SORT_BY_NONE}
+     * @param timeZone the time zone of date groups
+     */
+    public MessageListModel(MessageListSnapshot snapshot, int[] order, int sortBy,
+            boolean descending, TimeZone timeZone) {
+        mSnapshot = snapshot;
+        mOrder = order;
+        mSortBy = sortBy;
+        mDescending = descending;
+        mTimeZone = timeZone;
+        mRowsById = new LongIntHashMap(snapshot.mCount);
+        for (int row = 0; row < snapshot.mCount; row++) {
+            mRowsById.put(snapshot.getId(row), row);
+        }
+        regroup();
+    }
+
+    public MessageListSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    public int getRowCount() {
+        return mSnapshot.mCount;
+    }
+
+    /**
+     * @return the snapshot row shown at a display position; positions outside the rows are
+     *     returned unchanged.
+     */
+    public int rowAt(int position) {
+        if (mOrder == null || position < 0 || position >= mOrder.length) {
+            return position;
+        }
+        return mOrder[position];
+    }
+
+    public int getSortBy() {
+        return mSortBy;
+    }
+
+    public boolean isDescending() {
+        return mDescending;
+    }
+
+    /**
+     * Re-sorts and regroups the rows.  Every group is expanded afterwards.
+     *
+     * @return false if the snapshot cannot be sorted in memory; nothing changes then.
+     */
+    public boolean sort(int sortBy, boolean descending) {
+        if (sortBy == mSortBy && descending == mDescending) {
+            return true;
+        }
+        int[] order = mSnapshot.sort(sortBy, descending);
+        if (order == null) {
+            return false;
+        }
+        mOrder = order;
+        mSortBy = sortBy;
+        mDescending = descending;
+        regroup();
+        return true;
+    }
+
+    public int getGroupingMode() {
+        return mGroupingMode;
+    }
+
+    /**
+     * Regroups the rows; see the GROUPING_ constants.  Every group is expanded afterwards.
+     */
+    public void setGroupingMode(int groupingMode) {
+        if (groupingMode == mGroupingMode) {
+            return;
+        }
+        mGroupingMode = groupingMode;
+        regroup();
+    }
+
+    /**
+     * @return what the rows are grouped by, one of the GROUP_BY_ constants.
+     */
+    public int getGroupBy() {
+        if (mGroupingMode == GROUPING_CONVERSATIONS_BY_SENDER) {
+            return GROUP_BY_SENDER;
+        }
+        if (mGroupingMode == GROUPING_CONVERSATIONS_BY_SUBJECT) {
+            return GROUP_BY_SUBJECT;
+        }
+        switch (mSortBy) {
+            case MessageListSnapshot.SORT_BY_DATE:
+                return GROUP_BY_DATE;
+            case MessageListSnapshot.SORT_BY_SUBJECT:
+                return GROUP_BY_SUBJECT;
+            case MessageListSnapshot.SORT_BY_SENDER:
+                return GROUP_BY_SENDER;
+            default:
+                return GROUP_BY_NONE;
+        }
+    }
+
+    private void regroup() {
+        long start = MessageListStats.start();
+        // Only the snapshot's own subject sort keeps a thread together; the provider sorts
+        // subjects verbatim, which splits "Re: X" from "X".  Lists too large to sort in memory
+        // are gathered by thread instead, so that every thread still gets a single header.
+        if (mGroupingMode != GROUPING_BY_SORT_ORDER
+                || (mSortBy == MessageListSnapshot.SORT_BY_SUBJECT && mOrder == null)) {
+            groupConversations();
+        } else {
+            groupSorted();
+        }
+        MessageListStats.stop(MessageListStats.TIMER_GROUP, start);
+        MessageListStats.count(MessageListStats.COUNTER_ROWS_GROUPED, mSnapshot.mCount);
+        MessageListStats.count(MessageListStats.COUNTER_GROUPS, getGroupCount());
+    }
+
+    /**
+     * Groups runs of rows with the same group key; the rows are sorted by that key, so every
+     * group is contiguous.
+     */
+    private void groupSorted() {
+        final int n = mSnapshot.mCount;
+        // The boundaries are found in parallel for large lists; the result does not depend on
+        // how the work was split.
+        boolean[] groupStarts = new SortedGrouper(mSnapshot, mOrder, getGroupBy(),
+                System.currentTimeMillis(), mTimeZone).findGroupStarts();
+        int groups = 0;
+        for (int position = 0; position < n; position++) {
+            if (groupStarts[position]) {
+                groups++;
+            }
+        }
+        int[] groupStart = new int[groups + 1];
+        groups = 0;
+        for (int position = 0; position < n; position++) {
+            if (groupStarts[position]) {
+                groupStart[groups++] = position;
+            }
+        }
+        groupStart[groups] = n;
+        setGroups(null, groupStart);
+    }
+
+    /**
+     * Groups rows that share a sender or thread while keeping the sort order, using a hash
+     * aggregation instead of relying on rows of a group being adjacent.  Each group is shown
+     * where its newest message would be.
+     */
+    private void groupConversations() {
+        final MessageListSnapshot snapshot = mSnapshot;
+        final int n = snapshot.mCount;
+        final boolean bySender = mGroupingMode == GROUPING_CONVERSATIONS_BY_SENDER;
+        long[] keys = new long[n];
+        for (int position = 0; position < n; position++) {
+            int row = rowAt(position);
+            keys[position] = bySender ? snapshot.getSenderCode(row) : snapshot.getThread(row);
+        }
+        ConversationGrouper grouper = new ConversationGrouper(keys,
+                mSortBy == MessageListSnapshot.SORT_BY_DATE && !mDescending);
+        int[] groupStart = Arrays.copyOf(grouper.mGroupStart, grouper.mGroupCount + 1);
+        groupStart[grouper.mGroupCount] = n;
+        setGroups(grouper.mPositions, groupStart);
+    }
+
+    /**
+     * Installs a new group table with every group expanded, gathers what the bulk operations
+     * need to know about each group, and for date groups builds the year/month/week/day index.
+     */
+    private void setGroups(int[] itemPositions, int[] groupStart) {
+        final int groups = groupStart.length - 1;
+        mItemPositions = itemPositions;
+        mGroupStart = groupStart;
+        mGroupExpanded = new boolean[groups];
+        Arrays.fill(mGroupExpanded, true);
+        computeGroupAggregates();
+        computeGroupIds();
+        mVisibleStale = true;
+
+        mDateIndex = null;
+        if (getGroupBy() == GROUP_BY_DATE && mGroupingMode == GROUPING_BY_SORT_ORDER) {
+            mDateIndex = new DateGroupIndex(mSnapshot, mOrder, mTimeZone);
+        }
+    }
+
+    /**
+     * Gathers the row group table and the per group counts and time span in one pass over the
+     * rows.
+     */
+    private void computeGroupAggregates() {
+        final int groups = getGroupCount();
+        mRowGroup = new int[mSnapshot.mCount];
+        mGroupUnread = new int[groups];
+        mGroupFavorite = new int[groups];
+        mGroupAttachment = new int[groups];
+        mGroupNewest = new long[groups];
+        mGroupOldest = new long[groups];
+        for (int g = 0; g < groups; g++) {
+            long newest = Long.MIN_VALUE;
+            long oldest = Long.MAX_VALUE;
+            for (int i = mGroupStart[g]; i < mGroupStart[g + 1]; i++) {
+                int row = rowAt(itemPosition(i));
+                mRowGroup[row] = g;
+                long timestamp = mSnapshot.getTimestamp(row);
+                newest = Math.max(newest, timestamp);
+                oldest = Math.min(oldest, timestamp);
+                if (!hasEffectiveFlag(row, MessageListSnapshot.FLAG_READ)) {
+                    mGroupUnread[g]++;
+                }
+                if (hasEffectiveFlag(row, MessageListSnapshot.FLAG_FAVORITE)) {
+                    mGroupFavorite[g]++;
+                }
+                if (mSnapshot.hasFlag(row, MessageListSnapshot.FLAG_ATTACHMENT)) {
+                    mGroupAttachment[g]++;
+                }
+            }
+            mGroupNewest[g] = newest;
+            mGroupOldest[g] = oldest;
+        }
+    }
+
+    /**
+     * Derives the id of every header from what its group is keyed on: the thread, the sender,
+     * or for date groups the day of the oldest message, which new mail does not change.
+     */
+    private void computeGroupIds() {
+        final int groups = getGroupCount();
+        final int groupBy = getGroupBy();
+        mGroupIds = new long[groups];
+        for (int g = 0; g < groups; g++) {
+            int row = rowAt(itemPosition(mGroupStart[g]));
+            long key;
+            if (groupBy == GROUP_BY_SUBJECT) {
+                key = mSnapshot.getThreadKey(mSnapshot.getThread(row));
+            } else if (groupBy == GROUP_BY_SENDER) {
+                String sender = mSnapshot.getSender(row);
+                key = sender == null ? 0 : ConversationGrouper.hashString(sender);
+            } else {
+                key = mGroupOldest[g] / DAY_IN_MILLIS;
+            }
+            // Mix in the kind of grouping, so headers of different groupings never share ids.
+            long mixed = (key ^ (groupBy * 0x9e3779b97f4a7c15L)) * 0xbf58476d1ce4e5b9L;
+            mGroupIds[g] = HEADER_ID_TAG | ((mixed ^ (mixed >>> 31)) & HEADER_ID_MASK);
+        }
+    }
+
+    /**
+     * Sets a hash of what every snapshot row shows besides its read and favorite flags, which
+     * may include columns the snapshot does not keep, such as the snippet.  Meant to be computed
+     * on the loader thread while the rows are copied, so that telling whether a row changed
+     * never has to go back to the rows.
+     *
+     * @param hashes the hash of every snapshot row; without them a row only changes with its
+     *     flags
+     */
+    public void setRowHashes(int[] hashes) {
+        mRowHashes = hashes;
+    }
+
+    /**
+     * @return a version of what the list shows for a snapshot row, with the flag overlay
+     *     applied; it differs whenever the row has to be bound again.
+     */
+    public long getRowVersion(int row) {
+        long version = (long) (mRowHashes != null ? mRowHashes[row] : 0) << 2;
+        if (hasEffectiveFlag(row, MessageListSnapshot.FLAG_READ)) {
+            version |= 2;
+        }
+        if (hasEffectiveFlag(row, MessageListSnapshot.FLAG_FAVORITE)) {
+            version |= 1;
+        }
+        return version;
+    }
+
+    /**
+     * @return a version of what the header of a group shows: its first row, whether it is
+     *     expanded and its aggregates.
+     */
+    public long getGroupVersion(int group) {
+        long version = getRowVersion(rowAt(getGroupDisplayPosition(group)));
+        version = version * 31 + (mGroupExpanded[group] ? 1 : 0);
+        version = version * 31 + getGroupSize(group);
+        version = version * 31 + mGroupUnread[group];
+        version = version * 31 + mGroupFavorite[group];
+        return version * 31 + mGroupAttachment[group];
+    }
+
+    /**
+     * Fills in the id and version of every item of the list, as {@link #getGroupId} and
+     * {@link #getGroupVersion} for headers and the message id and {@link #getRowVersion} for
+     * rows, in one pass over the groups rather than a lookup per position.
+     *
+     * @param headers true for the visible positions, headers included, false for the display
+     *     positions
+     * @param ids and {@code versions}: at least {@link #getVisibleCount()} long with headers, or
+     *     {@link #getRowCount()} without
+     */
+    public void getItems(boolean headers, long[] ids, long[] versions) {
+        final int groups = getGroupCount();
+        if (!headers || groups == 0) {
+            for (int position = 0; position < mSnapshot.mCount; position++) {
+                int row = rowAt(position);
+                ids[position] = mSnapshot.getId(row);
+                versions[position] = getRowVersion(row);
+            }
+            return;
+        }
+        int visible = 0;
+        for (int g = 0; g < groups; g++) {
+            ids[visible] = mGroupIds[g];
+            versions[visible++] = getGroupVersion(g);
+            if (!mGroupExpanded[g]) {
+                continue;
+            }
+            for (int i = mGroupStart[g]; i < mGroupStart[g + 1]; i++) {
+                int row = rowAt(itemPosition(i));
+                ids[visible] = mSnapshot.getId(row);
+                versions[visible++] = getRowVersion(row);
+            }
+        }
+    }
+
+    /**
+     * @return a flag of a row as the list shows it, with the flag overlay applied.
+     */
+    public boolean hasEffectiveFlag(int row, int flag) {
+        boolean stored = mSnapshot.hasFlag(row, flag);
+        if (mFlagOverlay == null) {
+            return stored;
+        }
+        if (flag == MessageListSnapshot.FLAG_READ) {
+            return mFlagOverlay.isRead(mSnapshot.getId(row), stored);
+        }
+        if (flag == MessageListSnapshot.FLAG_FAVORITE) {
+            return mFlagOverlay.isFavorite(mSnapshot.getId(row), stored);
+        }
+        return stored;
+    }
+
+    /**
+     * Lets the group aggregates account for read and favorite changes that the rows do not
+     * reflect yet.
+     */
+    public void setFlagOverlay(FlagOverlay overlay) {
+        mFlagOverlay = overlay;
+        if (overlay != null && overlay.hasPendingChanges()) {
+            computeGroupAggregates();
+        }
+    }
+
+    /**
+     * Updates the group aggregates for a read or favorite change.  Must be called before the
+     * change reaches the flag overlay.
+     *
+     * @return the group of the message, or -1 if it is not loaded
+     */
+    public int updateGroupFlag(long messageId, int flag, boolean value) {
+        int row = mRowsById.get(messageId, -1);
+        if (row < 0 || getGroupCount() == 0) {
+            return -1;
+        }
+        int g = mRowGroup[row];
+        if (hasEffectiveFlag(row, flag) != value) {
+            int delta = value ? 1 : -1;
+            if (flag == MessageListSnapshot.FLAG_READ) {
+                mGroupUnread[g] -= delta;
+            } else if (flag == MessageListSnapshot.FLAG_FAVORITE) {
+                mGroupFavorite[g] += delta;
+            }
+        }
+        return g;
+    }
+
+    public int getGroupCount() {
+        return mGroupStart.length - 1;
+    }
+
+    public int getGroupSize(int group) {
+        return mGroupStart[group + 1] - mGroupStart[group];
+    }
+
+    public long getGroupId(int group) {
+        return mGroupIds[group];
+    }
+
+    public int getGroupUnreadCount(int group) {
+        return mGroupUnread[group];
+    }
+
+    public int getGroupFavoriteCount(int group) {
+        return mGroupFavorite[group];
+    }
+
+    public int getGroupAttachmentCount(int group) {
+        return mGroupAttachment[group];
+    }
+
+    public long getGroupNewest(int group) {
+        return mGroupNewest[group];
+    }
+
+    public long getGroupOldest(int group) {
+        return mGroupOldest[group];
+    }
+
+    public boolean isGroupExpanded(int group) {
+        return mGroupExpanded[group];
+    }
+
+    /**
+     * @return the display position of the i-th row of the group table.
+     */
+    private int itemPosition(int i) {
+        return mItemPositions == null ? i : mItemPositions[i];
+    }
+
+    /**
+     * Recomputes the visible position of every group header after groups were expanded or
+     * collapsed; linear in the number of groups.
+     */
+    private void ensureVisibleIndex() {
+        if (!mVisibleStale) {
+            return;
+        }
+        final int groups = getGroupCount();
+        if (mGroupVisibleStart.length != groups) {
+            mGroupVisibleStart = new int[groups];
+        }
+        // Without groups there are no headers and every row is shown.
+        int visible = groups > 0 ? 0 : mGroupStart[0];
+        for (int g = 0; g < groups; g++) {
+            mGroupVisibleStart[g] = visible;
+            visible += 1 + (mGroupExpanded[g] ? getGroupSize(g) : 0);
+        }
+        mVisibleCount = visible;
+        mVisibleStale = false;
+    }
+
+    /**
+     * @return the index of the last entry of {@code starts} that is not greater than
+     *     {@code position}, or -1 if there is none.
+     */
+    private static int floorIndex(int[] starts, int position) {
+        int lo = 0;
+        int hi = starts.length - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] <= position) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the number of visible positions: headers plus the rows of expanded groups.
+     */
+    public int getVisibleCount() {
+        ensureVisibleIndex();
+        return mVisibleCount;
+    }
+
+    /**
+     * @return the group whose header is at a visible position, or -1 if there is no header
+     *     there.
+     */
+    public int headerAt(int position) {
+        ensureVisibleIndex();
+        if (position < 0 || position >= mVisibleCount) {
+            return -1;
+        }
+        int g = floorIndex(mGroupVisibleStart, position);
+        return g >= 0 && mGroupVisibleStart[g] == position ? g : -1;
+    }
+
+    /**
+     * @return the display position of the row shown at a visible position; for a header, that
+     *     of the first row of its group.  Positions past the end map to the row count.
+     */
+    public int getDisplayPosition(int position) {
+        ensureVisibleIndex();
+        if (position >= mVisibleCount) {
+            return mGroupStart[getGroupCount()];
+        }
+        // Binary search for the group, then the offset inside it.
+        int g = floorIndex(mGroupVisibleStart, position);
+        if (g < 0) {
+            return itemPosition(position);
+        }
+        int offset = position - mGroupVisibleStart[g];
+        return itemPosition(mGroupStart[g] + Math.max(offset - 1, 0));
+    }
+
+    /**
+     * @return the visible position showing the row at a display position: the row itself if its
+     *     group is expanded, else the group's header.  Only meaningful when groups are contiguous
+     *     in display order, i.e. when not grouping by conversation.
+     */
+    public int getVisiblePosition(int displayPosition) {
+        ensureVisibleIndex();
+        if (getGroupCount() == 0) {
+            return displayPosition;
+        }
+        int g = getGroupAtDisplayPosition(displayPosition);
+        int header = mGroupVisibleStart[g];
+        return mGroupExpanded[g] ? header + 1 + displayPosition - mGroupStart[g] : header;
+    }
+
+    /**
+     * @return the visible position of the header of a group.
+     */
+    public int getGroupVisiblePosition(int group) {
+        ensureVisibleIndex();
+        return mGroupVisibleStart[group];
+    }
+
+    /**
+     * @return the display position of the first row of a group.
+     */
+    public int getGroupDisplayPosition(int group) {
+        return itemPosition(mGroupStart[group]);
+    }
+
+    /**
+     * @return the group a visible position belongs to.
+     */
+    public int getGroupAtVisiblePosition(int position) {
+        ensureVisibleIndex();
+        return Math.max(floorIndex(mGroupVisibleStart, position), 0);
+    }
+
+    /**
+     * @return the group a display position belongs to.  Only meaningful when groups are
+     *     contiguous in display order, i.e. when not grouping by conversation.
+     */
+    public int getGroupAtDisplayPosition(int position) {
+        return Math.max(Math.min(floorIndex(mGroupStart, position), getGroupCount() - 1), 0);
+    }
+
+    /**
+     * @return the year/month/week/day index of the rows, or null if they are not grouped by
+     *     date.
+     */
+    public DateGroupIndex getDateIndex() {
+        return mDateIndex;
+    }
+
+    /**
+     * @return an estimate of the heap the model retains, not counting the snapshot it shares
+     *     with the cursor; see {@link MemoryAccounting}.
+     */
+    public long getRetainedBytes() {
+        long bytes = MemoryAccounting.object(18 * MemoryAccounting.REFERENCE + 3 * 4 + 2)
+                + MemoryAccounting.array(mOrder) + MemoryAccounting.array(mItemPositions)
+                + MemoryAccounting.array(mGroupStart) + MemoryAccounting.array(mGroupExpanded)
+                + MemoryAccounting.array(mRowGroup) + MemoryAccounting.array(mGroupUnread)
+                + MemoryAccounting.array(mGroupFavorite)
+                + MemoryAccounting.array(mGroupAttachment)
+                + MemoryAccounting.array(mGroupNewest) + MemoryAccounting.array(mGroupOldest)
+                + MemoryAccounting.array(mGroupIds) + MemoryAccounting.array(mGroupVisibleStart)
+                + mRowsById.getRetainedBytes() + MemoryAccounting.array(mRowHashes);
+        if (mDateIndex != null) {
+            bytes += mDateIndex.getRetainedBytes();
+        }
+        return bytes;
+    }
+
+    public void toggleGroup(int group) {
+        mGroupExpanded[group] = !mGroupExpanded[group];
+        mVisibleStale = true;
+    }
+
+    /**
+     * Expands or collapses the groups in [fromGroup, toGroup).
+     */
+    public void setGroupsExpanded(int fromGroup, int toGroup, boolean expanded) {
+        Arrays.fill(mGroupExpanded, fromGroup, toGroup, expanded);
+        mVisibleStale = true;
+    }
+
+    public void setAllGroupsExpanded(boolean expanded) {
+        setGroupsExpanded(0, getGroupCount(), expanded);
+    }
+
+    /**
+     * Collapses every group whose newest message is older than {@code time}; other groups keep
+     * their state.
+     */
+    public void collapseGroupsOlderThan(long time) {
+        for (int g = 0; g < getGroupCount(); g++) {
+            if (mGroupNewest[g] < time) {
+                mGroupExpanded[g] = false;
+            }
+        }
+        mVisibleStale = true;
+    }
+
+    /**
+     * Expands the groups that have unread messages and collapses all others.
+     */
+    public void expandOnlyUnreadGroups() {
+        for (int g = 0; g < getGroupCount(); g++) {
+            mGroupExpanded[g] = mGroupUnread[g] > 0;
+        }
+        mVisibleStale = true;
+    }
+
+    /**
+     * Adds or removes the ids of every message in a group, reading them straight from the
+     * snapshot.
+     */
+    public void updateGroupIds(int group, MessageIdSet ids, boolean add) {
+        for (int i = mGroupStart[group]; i < mGroupStart[group + 1]; i++) {
+            long id = mSnapshot.getId(rowAt(itemPosition(i)));
+            if (add) {
+                ids.add(id);
+            } else {
+                ids.remove(id);
+            }
+        }
+    }
+}
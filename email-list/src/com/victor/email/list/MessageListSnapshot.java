@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Columnar copy of the rows of the message list cursor, taken on the loader thread, together
+ * with precomputed sort keys.
+ *
+ * The rows live in a {@link MessageRowStore}: Java arrays for ordinary folders, memory-mapped
+ * files for very large ones.  Either way the boolean columns and the message flags the list draws
+ * are packed into one int per row (see the FLAG_ constants), and senders and subjects are held as
+ * int codes: each distinct string is threaded and collated once per load, and grouping and
+ * sorting compare codes rather than strings.  Grouping, selection and binding read the store
+ * directly instead of repositioning the cursor and going through its window for every column.
+ *
+ * Every sortable column is reduced to a dense int rank when the snapshot is built: timestamps by
+ * value, senders by their locale {@link CollationKey} and subjects by the collation key of their
+ * normalized form (see {@link SubjectThreading}), so all messages of a thread sort together.
+ * Changing the sort order is then a matter of packing (primary rank, secondary rank, row) into a
+ * long per row and sorting those longs, which needs neither the provider nor any string
+ * comparison.
+ */
+public class MessageListSnapshot {
+    // Sort keys.
+    public static final int SORT_BY_DATE = 0;
+    public static final int SORT_BY_SUBJECT = 1;
+    public static final int SORT_BY_SENDER = 2;
+
+    /** Row indices and ranks are packed into 21 bits each. */
+    private static final int ROW_BITS = 21;
+    private static final long ROW_MASK = (1L << ROW_BITS) - 1;
+    /**
+     * Snapshots of this many rows or more cannot be sorted in memory; {@link MessageListModel}
+     * groups them by thread when they are shown in the provider's subject order.
+     */
+    public static final int MAX_SORTABLE_ROWS = 1 << ROW_BITS;
+
+    /** Number of string codes collated at a time while ranking them. */
+    private static final int RANK_RUN = 4096;
+
+    /** Below this many rows a sort is not worth splitting across threads. */
+    private static final int PARALLEL_THRESHOLD = 8192;
+
+    private static ForkJoinPool sPool;
+
+    // Bits of the flags column.
+    public static final int FLAG_READ = 1 << 0;
+    public static final int FLAG_FAVORITE = 1 << 1;
+    public static final int FLAG_ATTACHMENT = 1 << 2;
+    public static final int FLAG_INVITE = 1 << 3;
+    public static final int FLAG_REPLIED_TO = 1 << 4;
+    public static final int FLAG_FORWARDED = 1 << 5;
+
+    public final int mCount;
+    private final MessageRowStore mRows;
+    /** Thread of every subject code; subjects that normalize alike share a thread. */
+    private final int[] mSubjectThreads;
+    /** {@link SubjectThreading#threadKey} of every thread. */
+    private final long[] mThreadKeys;
+
+    // Dense ranks; equal values share a rank.  Time ranks are per row, string ranks per code.
+    private final int[] mTimeRanks;
+    private final int[] mSubjectCodeRanks;
+    private final int[] mSenderCodeRanks;
+
+    /**
+     * Derives the sort keys and threads of the rows in {@code rows}.  Call on a background
+     * thread; this collates every distinct sender and subject.
+     */
+    public MessageListSnapshot(MessageRowStore rows) {
+        mRows = rows;
+        mCount = rows.getCount();
+
+        // Subjects are threaded once per distinct subject, not once per row.
+        final int subjects = rows.getSubjectCodeCount();
+        mSubjectThreads = new int[subjects];
+        LongIntHashMap threads = new LongIntHashMap(subjects);
+        long[] threadKeys = new long[subjects];
+        for (int code = 0; code < subjects; code++) {
+            long key = SubjectThreading.threadKey(rows.getSubject(code));
+            int thread = threads.get(key, -1);
+            if (thread < 0) {
+                thread = threads.size();
+                threads.put(key, thread);
+                threadKeys[thread] = key;
+            }
+            mSubjectThreads[code] = thread;
+        }
+        mThreadKeys = Arrays.copyOf(threadKeys, threads.size());
+
+        mTimeRanks = rankTimestamps(rows);
+        Collator collator = Collator.getInstance();
+        mSubjectCodeRanks = rankCodes(rows, true, collator);
+        mSenderCodeRanks = rankCodes(rows, false, collator);
+    }
+
+    public long getId(int row) {
+        return mRows.getId(row);
+    }
+
+    public long getMailboxKey(int row) {
+        return mRows.getMailboxKey(row);
+    }
+
+    public long getAccountKey(int row) {
+        return mRows.getAccountKey(row);
+    }
+
+    public long getTimestamp(int row) {
+        return mRows.getTimestamp(row);
+    }
+
+    /**
+     * @return the code of a row's sender; rows have the same sender exactly when their codes are
+     *     equal.
+     */
+    public int getSenderCode(int row) {
+        return mRows.getSenderCode(row);
+    }
+
+    /**
+     * @return the thread of a row's subject; rows are in the same conversation exactly when
+     *     their threads are equal.
+     */
+    public int getThread(int row) {
+        return mSubjectThreads[mRows.getSubjectCode(row)];
+    }
+
+    /**
+     * @return the {@link SubjectThreading#threadKey} of a thread, which unlike the thread itself
+     *     is stable across loads.
+     */
+    public long getThreadKey(int thread) {
+        return mThreadKeys[thread];
+    }
+
+    public String getSubject(int row) {
+        return mRows.getSubject(mRows.getSubjectCode(row));
+    }
+
+    public String getSender(int row) {
+        return mRows.getSender(mRows.getSenderCode(row));
+    }
+
+    public boolean hasFlag(int row, int flag) {
+        return (mRows.getFlags(row) & flag) != 0;
+    }
+
+    /**
+     * Returns the rows in the requested order.
+     *
+     * Date sorts break ties by row; subject and sender sorts show the newest message first within
+     * equal keys.
+     *
+     * @return order[position] = row, or null if the snapshot is too large to sort in memory.
+     */
+    public int[] sort(int sortBy, boolean descending) {
+        final int n = mCount;
+        if (n >= MAX_SORTABLE_ROWS) {
+            return null;
+        }
+        final MessageRowStore rows = mRows;
+        long[] packed = new long[n];
+        for (int row = 0; row < n; row++) {
+            final int rank;
+            switch (sortBy) {
+                case SORT_BY_SUBJECT:
+                    rank = mSubjectCodeRanks[rows.getSubjectCode(row)];
+                    break;
+                case SORT_BY_SENDER:
+                    rank = mSenderCodeRanks[rows.getSenderCode(row)];
+                    break;
+                default:
+                    rank = mTimeRanks[row];
+                    break;
+            }
+            long p = descending ? (n - rank) : rank;
+            long s = sortBy != SORT_BY_DATE ? (n - 1 - mTimeRanks[row]) : 0;
+            packed[row] = (p << (2 * ROW_BITS)) | (s << ROW_BITS) | row;
+        }
+        parallelSort(packed);
+        int[] order = new int[n];
+        for (int position = 0; position < n; position++) {
+            order[position] = (int) (packed[position] & ROW_MASK);
+        }
+        return order;
+    }
+
+    private static int[] rankTimestamps(MessageRowStore rows) {
+        final int count = rows.getCount();
+        long[] sorted = new long[count];
+        for (int row = 0; row < count; row++) {
+            sorted[row] = rows.getTimestamp(row);
+        }
+        Arrays.sort(sorted);
+        // Collapse duplicates so equal timestamps get equal, dense ranks.
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[distinct - 1]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        int[] ranks = new int[count];
+        for (int row = 0; row < count; row++) {
+            ranks[row] = Arrays.binarySearch(sorted, 0, distinct, rows.getTimestamp(row));
+        }
+        return ranks;
+    }
+
+    /**
+     * Ranks the sender or subject codes of a store by collation order, so rows can be compared
+     * by the rank of their code.  Null sorts first, as it does in the provider.
+     *
+     * The codes are sorted in runs of {@link #RANK_RUN}, holding the collation keys of one run
+     * at a time, and the runs are then merged holding only the key at the head of each.  Every
+     * key is made twice, but a folder of a million distinct subjects never has more than a few
+     * thousand keys on the heap.
+     *
+     * @param threadSubjects if true, rank subjects by their normalized form, so that subjects of
+     *     the same thread share a rank; otherwise rank senders.
+     */
+    private static int[] rankCodes(final MessageRowStore rows, final boolean threadSubjects,
+            final Collator collator) {
+        final int size = threadSubjects ? rows.getSubjectCodeCount() : rows.getSenderCodeCount();
+        // Strings that collate equally but differ are ordered by their characters, so equal
+        // strings are adjacent and every thread stays contiguous.
+        final Comparator<CollationKey> order = new Comparator<CollationKey>() {
+            @Override
+            public int compare(CollationKey lhs, CollationKey rhs) {
+                int result = lhs.compareTo(rhs);
+                return result != 0 ? result
+                        : lhs.getSourceString().compareTo(rhs.getSourceString());
+            }
+        };
+        final int[] sorted = new int[size - 1];
+        final int runs = (size - 1 + RANK_RUN - 1) / RANK_RUN;
+        for (int run = 0; run < runs; run++) {
+            final int from = 1 + run * RANK_RUN;
+            final CollationKey[] keys = new CollationKey[Math.min(size, from + RANK_RUN) - from];
+            Integer[] byKey = new Integer[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = collationKey(rows, threadSubjects, collator, from + i);
+                byKey[i] = i;
+            }
+            Arrays.sort(byKey, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    return order.compare(keys[lhs], keys[rhs]);
+                }
+            });
+            for (int i = 0; i < keys.length; i++) {
+                sorted[from - 1 + i] = from + byKey[i];
+            }
+        }
+
+        final CollationKey[] heads = new CollationKey[runs];
+        final int[] next = new int[runs];
+        PriorityQueue<Integer> queue = new PriorityQueue<Integer>(Math.max(1, runs),
+                new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer lhs, Integer rhs) {
+                        return order.compare(heads[lhs], heads[rhs]);
+                    }
+                });
+        for (int run = 0; run < runs; run++) {
+            next[run] = run * RANK_RUN;
+            heads[run] = collationKey(rows, threadSubjects, collator, sorted[next[run]]);
+            queue.add(run);
+        }
+        int[] codeRanks = new int[size];
+        int rank = 0;
+        String last = null;
+        int emptyCode = StringDictionary.NULL_CODE;
+        while (!queue.isEmpty()) {
+            final int run = queue.poll();
+            final int code = sorted[next[run]];
+            final String source = heads[run].getSourceString();
+            if (!source.equals(last)) {
+                rank++;
+                last = source;
+            }
+            codeRanks[code] = rank;
+            if (source.length() == 0) {
+                emptyCode = code;
+            }
+            if (++next[run] < Math.min(size - 1, (run + 1) * RANK_RUN)) {
+                heads[run] = collationKey(rows, threadSubjects, collator, sorted[next[run]]);
+                queue.add(run);
+            } else {
+                heads[run] = null;
+            }
+        }
+        // A missing subject is in the same thread as an empty one.
+        codeRanks[StringDictionary.NULL_CODE] = threadSubjects ? codeRanks[emptyCode] : 0;
+        return codeRanks;
+    }
+
+    private static CollationKey collationKey(MessageRowStore rows, boolean threadSubjects,
+            Collator collator, int code) {
+        return threadSubjects
+                ? collator.getCollationKey(SubjectThreading.normalize(rows.getSubject(code)))
+                : collator.getCollationKey(rows.getSender(code));
+    }
+
+    /* package */ static synchronized ForkJoinPool getPool() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool();
+        }
+        return sPool;
+    }
+
+    /**
+     * Sorts {@code values}, splitting the work across the shared pool for large arrays.
+     */
+    /* package */ static void parallelSort(long[] values) {
+        if (values.length < PARALLEL_THRESHOLD) {
+            Arrays.sort(values);
+        } else {
+            getPool().invoke(new MergeSort(values, new long[values.length], 0, values.length));
+        }
+    }
+
+    /**
+     * Releases what the row store holds outside the heap; see {@link MessageRowStore#close()}.
+     * The snapshot must not be read afterwards.
+     */
+    public void close() {
+        mRows.close();
+    }
+
+    /**
+     * @return an estimate of the heap the snapshot retains, its row store included; see
+     *     {@link MemoryAccounting}.
+     */
+    public long getRetainedBytes() {
+        return MemoryAccounting.object(4 + 6 * MemoryAccounting.REFERENCE)
+                + mRows.getRetainedBytes()
+                + MemoryAccounting.array(mSubjectThreads) + MemoryAccounting.array(mThreadKeys)
+                + MemoryAccounting.array(mTimeRanks) + MemoryAccounting.array(mSubjectCodeRanks)
+                + MemoryAccounting.array(mSenderCodeRanks);
+    }
+
+    private static class MergeSort extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final long[] mValues;
+        private final long[] mBuffer;
+        private final int mFrom;
+        private final int mTo;
+
+        MergeSort(long[] values, long[] buffer, int from, int to) {
+            mValues = values;
+            mBuffer = buffer;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= PARALLEL_THRESHOLD) {
+                Arrays.sort(mValues, mFrom, mTo);
+                return;
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            invokeAll(new MergeSort(mValues, mBuffer, mFrom, mid),
+                    new MergeSort(mValues, mBuffer, mid, mTo));
+            System.arraycopy(mValues, mFrom, mBuffer, mFrom, mTo - mFrom);
+            int i = mFrom, j = mid, k = mFrom;
+            while (i < mid && j < mTo) {
+                mValues[k++] = mBuffer[i] <= mBuffer[j] ? mBuffer[i++] : mBuffer[j++];
+            }
+            while (i < mid) {
+                mValues[k++] = mBuffer[i++];
+            }
+            while (j < mTo) {
+                mValues[k++] = mBuffer[j++];
+            }
+        }
+    }
+}
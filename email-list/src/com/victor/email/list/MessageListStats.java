@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Always-on timings and counters for the stages of the message list: the query, loading the
+ * extras and snapshot, grouping, binding, preparing and drawing rows.  Stages are timed into
+ * histograms with power-of-two buckets, so recording is a few atomic increments and no
+ * allocation.
+ *
+ * <p>{@link #dump} writes the figures in the format of a dumpsys section; {@link #snapshot}
+ * gives a copy that diagnostics can read field by field.
+ */
+public final class MessageListStats {
+    // Timed stages.
+    public static final int TIMER_QUERY = 0;
+    public static final int TIMER_LOAD_EXTRAS = 1;
+    public static final int TIMER_GROUP = 2;
+    public static final int TIMER_BIND = 3;
+    public static final int TIMER_DRAWING_DATA = 4;
+    public static final int TIMER_DRAW_MESSAGE = 5;
+    public static final int TIMER_DRAW_HEADER = 6;
+    private static final String[] TIMER_NAMES = {
+        "query", "loadExtras", "group", "bindView", "calculateDrawingData", "drawMessage",
+        "drawHeader",
+    };
+
+    // Counters.
+    public static final int COUNTER_ROWS_LOADED = 0;
+    public static final int COUNTER_ROWS_GROUPED = 1;
+    public static final int COUNTER_GROUPS = 2;
+    /** Reloads that left every item in place and rebound only changed rows. */
+    public static final int COUNTER_PARTIAL_RELOADS = 3;
+    /** Reloads that laid the whole list out again. */
+    public static final int COUNTER_FULL_RELOADS = 4;
+    /** Rows bound without their snippet during a fast fling. */
+    public static final int COUNTER_CHEAP_ROWS = 5;
+    /** Rows bound during a fling that got their snippet once it slowed. */
+    public static final int COUNTER_FINISHED_ROWS = 6;
+    private static final String[] COUNTER_NAMES = {
+        "rows loaded", "rows grouped", "groups", "partial reloads", "full reloads",
+        "cheap rows", "finished rows",
+    };
+
+    // Caches, counted as hits and misses.
+    /** A recycled view already showing its item, so binding is skipped. */
+    public static final int CACHE_BOUND_VIEW = 0;
+    /** Row coordinates for a width. */
+    public static final int CACHE_COORDINATES = 1;
+    /** The formatted date of a row. */
+    public static final int CACHE_FORMATTED_DATE = 2;
+    /** A sender ellipsized for its paint and width. */
+    public static final int CACHE_SENDER_ELLIPSIS = 3;
+    /** A message body loaded ahead of the message being opened. */
+    public static final int CACHE_PREFETCHED_BODY = 4;
+    private static final String[] CACHE_NAMES = {
+        "bound view", "coordinates", "formatted date", "sender ellipsis", "prefetched body",
+    };
+
+    /** Bucket b holds durations in [2^b, 2^(b+1)) nanoseconds; the last one everything longer. */
+    private static final int BUCKETS = 40;
+
+    private static final Histogram[] sTimers = new Histogram[TIMER_NAMES.length];
+    private static final AtomicLongArray sCounters = new AtomicLongArray(COUNTER_NAMES.length);
+    /** Hits of cache c at 2c, misses at 2c + 1. */
+    private static final AtomicLongArray sCacheLookups =
+            new AtomicLongArray(2 * CACHE_NAMES.length);
+    private static volatile long sResetTime = System.currentTimeMillis();
+
+    static {
+        for (int timer = 0; timer < sTimers.length; timer++) {
+            sTimers[timer] = new Histogram();
+        }
+    }
+
+    private MessageListStats() {
+    }
+
+    /** @return the start time to pass to {@link #stop}. */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /** Records the time since {@code start} for one of the TIMER_ stages. */
+    public static void stop(int timer, long start) {
+        sTimers[timer].record(System.nanoTime() - start);
+    }
+
+    public static void count(int counter, long delta) {
+        sCounters.addAndGet(counter, delta);
+    }
+
+    public static void cacheLookup(int cache, boolean hit) {
+        sCacheLookups.incrementAndGet(hit ? 2 * cache : 2 * cache + 1);
+    }
+
+    public static void reset() {
+        for (Histogram timer : sTimers) {
+            timer.reset();
+        }
+        for (int i = 0; i < sCounters.length(); i++) {
+            sCounters.set(i, 0);
+        }
+        for (int i = 0; i < sCacheLookups.length(); i++) {
+            sCacheLookups.set(i, 0);
+        }
+        sResetTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return a copy of the figures so far.  Stages still recording while it is taken may be
+     *     counted in some figures and not yet in others.
+     */
+    public static Snapshot snapshot() {
+        return new Snapshot();
+    }
+
+    /** Writes the figures so far, each line starting with {@code prefix}, as dumpsys would. */
+    public static void dump(String prefix, PrintWriter writer) {
+        snapshot().dump(prefix, writer);
+    }
+
+    private static class Histogram {
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mTotalNanos = new AtomicLong();
+        private final AtomicLong mMaxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            mBuckets.incrementAndGet(
+                    Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(nanos | 1)));
+            mTotalNanos.addAndGet(nanos);
+            long max = mMaxNanos.get();
+            while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+                max = mMaxNanos.get();
+            }
+        }
+
+        void reset() {
+            for (int b = 0; b < BUCKETS; b++) {
+                mBuckets.set(b, 0);
+            }
+            mTotalNanos.set(0);
+            mMaxNanos.set(0);
+        }
+    }
+
+    /** The figures at one point in time. */
+    public static final class Snapshot {
+        /** When the figures were last reset, in wall clock milliseconds. */
+        public final long mSince = sResetTime;
+        /** When the snapshot was taken, in wall clock milliseconds. */
+        public final long mTime = System.currentTimeMillis();
+        private final long[][] mBuckets = new long[TIMER_NAMES.length][BUCKETS];
+        private final long[] mCounts = new long[TIMER_NAMES.length];
+        private final long[] mTotalNanos = new long[TIMER_NAMES.length];
+        private final long[] mMaxNanos = new long[TIMER_NAMES.length];
+        private final long[] mCounters = new long[COUNTER_NAMES.length];
+        private final long[] mCacheLookups = new long[2 * CACHE_NAMES.length];
+
+        private Snapshot() {
+            for (int timer = 0; timer < TIMER_NAMES.length; timer++) {
+                Histogram histogram = sTimers[timer];
+                long count = 0;
+                for (int b = 0; b < BUCKETS; b++) {
+                    mBuckets[timer][b] = histogram.mBuckets.get(b);
+                    count += mBuckets[timer][b];
+                }
+                mCounts[timer] = count;
+                mTotalNanos[timer] = histogram.mTotalNanos.get();
+                mMaxNanos[timer] = histogram.mMaxNanos.get();
+            }
+            for (int counter = 0; counter < mCounters.length; counter++) {
+                mCounters[counter] = sCounters.get(counter);
+            }
+            for (int i = 0; i < mCacheLookups.length; i++) {
+                mCacheLookups[i] = sCacheLookups.get(i);
+            }
+        }
+
+        public static String getTimerName(int timer) {
+            return TIMER_NAMES[timer];
+        }
+
+        public static String getCounterName(int counter) {
+            return COUNTER_NAMES[counter];
+        }
+
+        public static String getCacheName(int cache) {
+            return CACHE_NAMES[cache];
+        }
+
+        public int getTimerCount() {
+            return TIMER_NAMES.length;
+        }
+
+        public int getCounterCount() {
+            return COUNTER_NAMES.length;
+        }
+
+        public int getCacheCount() {
+            return CACHE_NAMES.length;
+        }
+
+        /** @return how many times the stage was recorded. */
+        public long getCount(int timer) {
+            return mCounts[timer];
+        }
+
+        public long getTotalNanos(int timer) {
+            return mTotalNanos[timer];
+        }
+
+        public long getMeanNanos(int timer) {
+            return mCounts[timer] == 0 ? 0 : mTotalNanos[timer] / mCounts[timer];
+        }
+
+        public long getMaxNanos(int timer) {
+            return mMaxNanos[timer];
+        }
+
+        /**
+         * @param fraction e.g. 0.99 for the 99th percentile
+         * @return an upper bound of the given percentile of the stage's durations, exact to
+         *     within a factor of two
+         */
+        public long getPercentileNanos(int timer, double fraction) {
+            long rank = (long) Math.ceil(fraction * mCounts[timer]);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += mBuckets[timer][b];
+                if (seen >= rank && seen > 0) {
+                    return b == BUCKETS - 1 ? mMaxNanos[timer]
+                            : Math.min(mMaxNanos[timer], (1L << (b + 1)) - 1);
+                }
+            }
+            return 0;
+        }
+
+        public long getCounter(int counter) {
+            return mCounters[counter];
+        }
+
+        public long getCacheHits(int cache) {
+            return mCacheLookups[2 * cache];
+        }
+
+        public long getCacheMisses(int cache) {
+            return mCacheLookups[2 * cache + 1];
+        }
+
+        /** @return the fraction of lookups that hit, or 0 if there were none. */
+        public double getCacheHitRatio(int cache) {
+            long lookups = getCacheHits(cache) + getCacheMisses(cache);
+            return lookups == 0 ? 0 : (double) getCacheHits(cache) / lookups;
+        }
+
+        public void dump(String prefix, PrintWriter writer) {
+            writer.print(prefix);
+            writer.print("Message list stats, last ");
+            writer.print((mTime - mSince) / 1000);
+            writer.println(" s:");
+            writer.print(prefix);
+            writer.println("  Timers (count, mean, p50, p90, p99, max in ms):");
+            for (int timer = 0; timer < TIMER_NAMES.length; timer++) {
+                writer.print(prefix);
+                writer.println(String.format("    %-22s %8d %9.3f %9.3f %9.3f %9.3f %9.3f",
+                        TIMER_NAMES[timer], mCounts[timer], toMillis(getMeanNanos(timer)),
+                        toMillis(getPercentileNanos(timer, 0.5)),
+                        toMillis(getPercentileNanos(timer, 0.9)),
+                        toMillis(getPercentileNanos(timer, 0.99)),
+                        toMillis(mMaxNanos[timer])));
+            }
+            writer.print(prefix);
+            writer.println("  Counters:");
+            for (int counter = 0; counter < COUNTER_NAMES.length; counter++) {
+                writer.print(prefix);
+                writer.println(String.format("    %-22s %8d",
+                        COUNTER_NAMES[counter], mCounters[counter]));
+            }
+            writer.print(prefix);
+            writer.println("  Caches (hits, misses, hit ratio):");
+            for (int cache = 0; cache < CACHE_NAMES.length; cache++) {
+                writer.print(prefix);
+                writer.println(String.format("    %-22s %8d %8d %6.1f%%",
+                        CACHE_NAMES[cache], getCacheHits(cache), getCacheMisses(cache),
+                        100 * getCacheHitRatio(cache)));
+            }
+            writer.flush();
+        }
+
+        private static double toMillis(long nanos) {
+            return nanos / 1e6;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import java.io.IOException;
+
+/**
+ * The rows of a {@link MessageListSnapshot}: fixed width columns per row, with senders and
+ * subjects stored as int codes into per-load string tables.
+ *
+ * Code {@link StringDictionary#NULL_CODE} stands for null in both tables.  Two rows with the same
+ * sender always have the same sender code, and two rows with the same subject the same subject
+ * code.  Replies have other subjects than what they reply to, so compare conversations by
+ * thread (see {@link MessageListSnapshot#getThread}) rather than by subject code.
+ *
+ * Stores are written once on the loader thread and are safe to read from any number of threads
+ * afterwards.
+ */
+public interface MessageRowStore {
+    int getCount();
+
+    long getId(int row);
+
+    long getMailboxKey(int row);
+
+    long getAccountKey(int row);
+
+    long getTimestamp(int row);
+
+    /** @return the FLAG_ bits of {@link MessageListSnapshot} of a row. */
+    int getFlags(int row);
+
+    int getSubjectCode(int row);
+
+    int getSenderCode(int row);
+
+    /** @return the number of subject codes, including {@link StringDictionary#NULL_CODE}. */
+    int getSubjectCodeCount();
+
+    String getSubject(int code);
+
+    /** @return the number of sender codes, including {@link StringDictionary#NULL_CODE}. */
+    int getSenderCodeCount();
+
+    String getSender(int code);
+
+    /**
+     * @return an estimate of the heap the store retains, dictionaries included; see
+     *     {@link MemoryAccounting}.
+     */
+    long getRetainedBytes();
+
+    /**
+     * Releases what the store holds outside the heap.  The store must not be read afterwards.
+     */
+    void close();
+
+    /**
+     * Collects rows one at a time, e.g. while walking a cursor.
+     */
+
+    interface Writer {
+        void addRow(long id, long mailboxKey, long accountKey, long timestamp, int flags,
+                String subject, String sender);
+
+        /**
+         * @return the store holding the rows added so far.  The writer cannot be used afterwards.
+         * @throws IOException if the rows could not be stored.
+         */
+        MessageRowStore finish() throws IOException;
+
+        /**
+         * Releases what the writer holds outside the heap, unless {@link #finish} handed it to
+         * a store.  Meant for a finally block around the writing: it does nothing after a
+         * successful finish, or when called twice.
+         */
+        void abort();
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import java.util.TimeZone;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds the group boundaries of a list that is sorted by its group key: by day/week/month for
+ * date sorts, by thread for subject sorts and by sender for sender sorts.
+ *
+ * Whether a row starts a new group depends only on that row and the one before it, so the rows
+ * are split into chunks that are scanned in parallel on the shared fork/join pool, each chunk
+ * reading one row across its left edge.  The result is identical to a sequential scan.
+ */
+/* package */ class SortedGrouper {
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final long WEEK_IN_MILLIS = 7 * DAY_IN_MILLIS;
+
+    /** Lists shorter than this are scanned on the calling thread. */
+    private static final int PARALLEL_THRESHOLD = 32768;
+    /** Smallest chunk handed to a worker. */
+    private static final int MIN_CHUNK = 8192;
+
+    private final MessageListSnapshot mSnapshot;
+    private final int[] mOrder;
+    private final int mGroupBy;
+    private final long mNow;
+    private final TimeZone mTimeZone;
+
+    /**
+     * @param order the display order, order[position] = row; null for snapshot order
+     * @param groupBy one of the GROUP_BY_ constants of {@link MessageListModel}
+     * @param now the current time; date groups are relative to it
+     */
+    public SortedGrouper(MessageListSnapshot snapshot, int[] order, int groupBy, long now,
+            TimeZone timeZone) {
+        mSnapshot = snapshot;
+        mOrder = order;
+        mGroupBy = groupBy;
+        mNow = now;
+        mTimeZone = timeZone;
+    }
+
+    /**
+     * @return for every display position, whether a group header goes in front of it
+     */
+    public boolean[] findGroupStarts() {
+        final int n = mSnapshot.mCount;
+        boolean[] starts = new boolean[n];
+        if (mGroupBy == MessageListModel.GROUP_BY_NONE) {
+            return starts;
+        }
+        if (n < PARALLEL_THRESHOLD) {
+            scan(starts, 0, n);
+        } else {
+            int parallelism = MessageListSnapshot.getPool().getParallelism();
+            int chunk = Math.max(MIN_CHUNK, n / (parallelism * 4));
+            MessageListSnapshot.getPool().invoke(new ScanTask(starts, 0, n, chunk));
+        }
+        return starts;
+    }
+
+    private class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean[] mStarts;
+        private final int mFrom;
+        private final int mTo;
+        private final int mChunk;
+
+        ScanTask(boolean[] starts, int from, int to, int chunk) {
+            mStarts = starts;
+            mFrom = from;
+            mTo = to;
+            mChunk = chunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= mChunk) {
+                scan(mStarts, mFrom, mTo);
+                return;
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            invokeAll(new ScanTask(mStarts, mFrom, mid, mChunk),
+                    new ScanTask(mStarts, mid, mTo, mChunk));
+        }
+    }
+
+    /**
+     * Decides the boundaries of positions [from, to).  Reads position from - 1, which may belong
+     * to a neighbouring chunk; nothing is written outside the range.
+     */
+    private void scan(boolean[] starts, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        int lastRow = from > 0 ? rowAt(from - 1) : -1;
+        for (int position = from; position < to; position++) {
+            int row = rowAt(position);
+            starts[position] = lastRow < 0 || startsGroup(lastRow, row);
+            lastRow = row;
+        }
+    }
+
+    private int rowAt(int position) {
+        return mOrder == null ? position : mOrder[position];
+    }
+
+    private boolean startsGroup(int lastRow, int row) {
+        final MessageListSnapshot s = mSnapshot;
+        switch (mGroupBy) {
+            case MessageListModel.GROUP_BY_DATE:
+                long last = s.getTimestamp(lastRow);
+                long cur = s.getTimestamp(row);
+                return !sameDay(last, cur) || !sameWeek(last, cur) || !sameMonth(last, cur);
+            case MessageListModel.GROUP_BY_SUBJECT:
+                return s.getThread(lastRow) != s.getThread(row);
+            case MessageListModel.GROUP_BY_SENDER:
+                return s.getSenderCode(lastRow) != s.getSenderCode(row);
+            default:
+                return false;
+        }
+    }
+
+    // The date rules: one group per day for the last week, one per week for the last four weeks,
+    // then one for the month after that, then one per 30.5 day month.
+
+    private boolean sameDay(long d1, long d2) {
+        if (mNow - d1 > WEEK_IN_MILLIS) {
+            return true;
+        }
+        return localDay(d1) == localDay(d2);
+    }
+
+    private boolean sameWeek(long d1, long d2) {
+        if (mNow - d1 > 4 * WEEK_IN_MILLIS) {
+            return true;
+        }
+        if (mNow - d1 <= WEEK_IN_MILLIS) {
+            return true;
+        }
+        long d1diff = (mNow - d1) / WEEK_IN_MILLIS;
+        long d2diff = (mNow - d2) / WEEK_IN_MILLIS;
+        return d1diff == d2diff;
+    }
+
+    private boolean sameMonth(long d1, long d2) {
+        if (mNow - d1 <= 4 * WEEK_IN_MILLIS) {
+            return true;
+        }
+        // special case of 28+ days until 61
+        if (mNow - d1 < 61 * DAY_IN_MILLIS && mNow - d2 < 61 * DAY_IN_MILLIS) {
+            return true;
+        }
+        int d1diff = (int) Math.floor((mNow - d1) / (30.5 * DAY_IN_MILLIS));
+        int d2diff = (int) Math.floor((mNow - d2) / (30.5 * DAY_IN_MILLIS));
+        return d1diff == d2diff;
+    }
+
+    /**
+     * @return the number of the local calendar day of {@code time}; two times fall on the same
+     *     day of the same year exactly when their day numbers are equal.
+     */
+    private long localDay(long time) {
+        long local = time + mTimeZone.getOffset(time);
+        return local >= 0 ? local / DAY_IN_MILLIS : (local + 1) / DAY_IN_MILLIS - 1;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Assigns dense int codes to strings, so a column of repetitive strings (senders, subjects) can
+ * be stored as an int per row plus one copy of each distinct value.
+ *
+ * Code {@link #NULL_CODE} is reserved for null.  Not thread safe; a dictionary is filled on the
+ * loader thread and only read afterwards.
+ */
+/* package */ class StringDictionary {
+    public static final int NULL_CODE = 0;
+
+    private final HashMap<String, Integer> mCodes = new HashMap<String, Integer>();
+    private String[] mStrings = new String[16];
+    private int mSize = 1;
+
+    /**
+     * @return the code of {@code value}, adding it to the dictionary if needed.
+     */
+    public int encode(String value) {
+        if (value == null) {
+            return NULL_CODE;
+        }
+        Integer code = mCodes.get(value);
+        if (code != null) {
+            return code;
+        }
+        if (mSize == mStrings.length) {
+            mStrings = Arrays.copyOf(mStrings, mSize * 2);
+        }
+        mStrings[mSize] = value;
+        mCodes.put(value, mSize);
+        return mSize++;
+    }
+
+    /**
+     * @return the string for {@code code}; null for {@link #NULL_CODE}.
+     */
+    public String get(int code) {
+        return mStrings[code];
+    }
+
+    /**
+     * @return the number of codes in use, including {@link #NULL_CODE}.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /** @return an estimate of the heap the dictionary retains, its strings included. */
+    public long getRetainedBytes() {
+        long bytes = MemoryAccounting.object(2 * MemoryAccounting.REFERENCE + 4)
+                + MemoryAccounting.hashMap(mCodes.size())
+                + MemoryAccounting.array(mStrings);
+        for (int code = 1; code < mSize; code++) {
+            bytes += MemoryAccounting.string(mStrings[code]);
+            if (code > 127) {
+                // smaller codes are cached Integers
+                bytes += MemoryAccounting.BOXED;
+            }
+        }
+        return bytes;
+    }
+}
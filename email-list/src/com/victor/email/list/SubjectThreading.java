@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+/**
+ * Maps message subjects to conversation thread keys.
+ *
+ * A subject is normalized by stripping any number of leading reply and forward prefixes
+ * ("Re:", "RE[2]:", "Fwd:", "AW:", ...), folding case and collapsing runs of whitespace, so that
+ * "Re: Lunch", "RE:  lunch" and "Fwd: Lunch" all belong to the same thread.  The normalized
+ * subject is hashed into a 64 bit key in the same pass, without allocating, so grouping can
+ * compare one long per row instead of strings.
+ */
+/* package */ class SubjectThreading {
+    /** Reply and forward prefixes, lower case, without the trailing colon. */
+    private static final String[] PREFIXES = {
+        "re", "fwd", "fw", "aw", "wg", "sv", "vs", "antw", "tr", "rif", "enc", "odp"
+    };
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private SubjectThreading() {
+    }
+
+    /**
+     * @return the thread key of a subject.  Subjects that normalize to the same text share a key;
+     *     null and empty subjects share the key of the empty string.
+     */
+    public static long threadKey(String subject) {
+        long hash = FNV_OFFSET_BASIS;
+        if (subject == null) {
+            return hash;
+        }
+        final int length = subject.length();
+        boolean pendingSpace = false;
+        boolean any = false;
+        for (int i = skipPrefixes(subject); i < length; i++) {
+            char c = subject.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = any;
+                continue;
+            }
+            if (pendingSpace) {
+                hash = (hash ^ ' ') * FNV_PRIME;
+                pendingSpace = false;
+            }
+            c = Character.toLowerCase(Character.toUpperCase(c));
+            hash = (hash ^ c) * FNV_PRIME;
+            any = true;
+        }
+        return hash;
+    }
+
+    /**
+     * @return the normalized form of a subject, the text {@link #threadKey} hashes.
+     */
+    public static String normalize(String subject) {
+        if (subject == null) {
+            return "";
+        }
+        final int length = subject.length();
+        StringBuilder sb = new StringBuilder(length);
+        boolean pendingSpace = false;
+        for (int i = skipPrefixes(subject); i < length; i++) {
+            char c = subject.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = sb.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                sb.append(' ');
+                pendingSpace = false;
+            }
+            sb.append(Character.toLowerCase(Character.toUpperCase(c)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the index of the first character after all leading reply/forward prefixes.
+     */
+    private static int skipPrefixes(String subject) {
+        int start = skipWhitespace(subject, 0);
+        int next;
+        while ((next = skipPrefix(subject, start)) > start) {
+            start = skipWhitespace(subject, next);
+        }
+        return start;
+    }
+
+    /**
+     * @return the index after a prefix such as "Re:", "Re[3]:" or "Fwd(2):" starting at
+     *     {@code start}, or {@code start} if there is none.
+     */
+    private static int skipPrefix(String subject, int start) {
+        final int length = subject.length();
+        for (String prefix : PREFIXES) {
+            int end = start + prefix.length();
+            if (end >= length || !subject.regionMatches(true, start, prefix, 0, prefix.length())) {
+                continue;
+            }
+            // Optional reply counter, e.g. "Re[2]:" or "Re(2):".
+            char open = subject.charAt(end);
+            if (open == '[' || open == '(') {
+                char close = open == '[' ? ']' : ')';
+                int i = end + 1;
+                while (i < length && Character.isDigit(subject.charAt(i))) {
+                    i++;
+                }
+                if (i > end + 1 && i < length && subject.charAt(i) == close) {
+                    end = i + 1;
+                }
+            }
+            end = skipWhitespace(subject, end);
+            if (end < length && (subject.charAt(end) == ':' || subject.charAt(end) == '\uff1a')) {
+                return end + 1;
+            }
+        }
+        return start;
+    }
+
+    private static int skipWhitespace(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
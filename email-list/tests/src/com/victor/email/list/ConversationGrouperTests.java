@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests of {@link ConversationGrouper}.
+ */
+public class ConversationGrouperTests extends TestCase {
+
+    public void testConversationsInOrderOfNewestMessage() {
+        // rows in descending date order: the first row of a group is its newest
+        long a = 1;
+        long b = 2;
+        long c = 3;
+        ConversationGrouper grouper = new ConversationGrouper(new long[] { a, b, a, c, b, a },
+                false);
+        assertEquals(3, grouper.mGroupCount);
+        assertEquals("[0, 2, 5, 1, 4, 3]", Arrays.toString(grouper.mPositions));
+        assertEquals("[0, 3, 5]", Arrays.toString(grouper.mGroupStart));
+        assertEquals("[3, 2, 1]", Arrays.toString(grouper.mGroupSize));
+    }
+
+    public void testConversationsNewestLast() {
+        // ascending date order: a group goes where its last, newest row is
+        long a = 1;
+        long b = 2;
+        long c = 3;
+        ConversationGrouper grouper = new ConversationGrouper(new long[] { a, b, a, c, b, a },
+                true);
+        assertEquals(3, grouper.mGroupCount);
+        assertEquals("[3, 1, 4, 0, 2, 5]", Arrays.toString(grouper.mPositions));
+        assertEquals("[0, 1, 3]", Arrays.toString(grouper.mGroupStart));
+        assertEquals("[1, 2, 3]", Arrays.toString(grouper.mGroupSize));
+    }
+
+    public void testConversationsEmpty() {
+        ConversationGrouper grouper = new ConversationGrouper(new long[0], false);
+        assertEquals(0, grouper.mGroupCount);
+        assertEquals(0, grouper.mPositions.length);
+    }
+
+    /** Checks unsorted random keys against grouping them with a map. */
+    public void testRandomKeys() {
+        Random random = new Random(4);
+        for (int round = 0; round < 200; round++) {
+            long[] keys = new long[random.nextInt(2000)];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = random.nextInt(1 + round) * 0x100000001L;
+            }
+            for (boolean newestLast : new boolean[] { false, true }) {
+                assertGrouping(keys, newestLast, new ConversationGrouper(keys, newestLast));
+            }
+        }
+    }
+
+    private static void assertGrouping(long[] keys, boolean newestLast,
+            ConversationGrouper grouper) {
+        // the positions of every key, with the keys in order of their first position
+        Map<Long, List<Integer>> groups = new LinkedHashMap<Long, List<Integer>>();
+        for (int position = 0; position < keys.length; position++) {
+            List<Integer> group = groups.get(keys[position]);
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(keys[position], group);
+            }
+            group.add(position);
+        }
+        List<List<Integer>> expected = new ArrayList<List<Integer>>(groups.values());
+        if (newestLast) {
+            // in order of their last position instead
+            Collections.sort(expected, new Comparator<List<Integer>>() {
+                @Override
+                public int compare(List<Integer> lhs, List<Integer> rhs) {
+                    return lhs.get(lhs.size() - 1) - rhs.get(rhs.size() - 1);
+                }
+            });
+        }
+        assertEquals(expected.size(), grouper.mGroupCount);
+        int i = 0;
+        for (int g = 0; g < expected.size(); g++) {
+            List<Integer> group = expected.get(g);
+            assertEquals(i, grouper.mGroupStart[g]);
+            assertEquals(group.size(), grouper.mGroupSize[g]);
+            for (int position : group) {
+                assertEquals(position, grouper.mPositions[i++]);
+            }
+        }
+    }
+
+    public void testHashString() {
+        assertEquals(ConversationGrouper.hashString(""), ConversationGrouper.hashString(null));
+        assertEquals(ConversationGrouper.hashString("abc"), ConversationGrouper.hashString("abc"));
+        assertFalse(ConversationGrouper.hashString("abc") == ConversationGrouper.hashString("acb"));
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import junit.framework.TestCase;
+
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Tests of {@link DateGroupIndex}.
+ */
+public class DateGroupIndexTests extends TestCase {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private Locale mLocale;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // weeks start on Sunday
+        mLocale = Locale.getDefault();
+        Locale.setDefault(Locale.US);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Locale.setDefault(mLocale);
+        super.tearDown();
+    }
+
+    private static long time(int year, int month, int day, int hour, TimeZone timeZone) {
+        Calendar calendar = Calendar.getInstance(timeZone);
+        calendar.clear();
+        calendar.set(year, month, day, hour, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private static long utc(int year, int month, int day, int hour) {
+        return time(year, month, day, hour, UTC);
+    }
+
+    private static MessageListSnapshot snapshot(long... times) {
+        HeapRowStore.Writer writer = new HeapRowStore.Writer(times.length);
+        for (int row = 0; row < times.length; row++) {
+            writer.addRow(row, 1, 1, times[row], 0, "subject", "sender");
+        }
+        return new MessageListSnapshot(writer.finish());
+    }
+
+    /** Newest first, across a new year: Sat Jan 1 2011 and the last days of 2010. */
+    private static MessageListSnapshot descendingAcrossNewYear() {
+        return snapshot(
+                utc(2011, Calendar.JANUARY, 1, 10),
+                utc(2011, Calendar.JANUARY, 1, 9),
+                utc(2010, Calendar.DECEMBER, 31, 23),
+                utc(2010, Calendar.DECEMBER, 26, 12), // Sunday, same week as the 31st
+                utc(2010, Calendar.DECEMBER, 25, 12), // Saturday, the week before
+                utc(2010, Calendar.NOVEMBER, 30, 12));
+    }
+
+    public void testNodesByCalendar() {
+        DateGroupIndex index = new DateGroupIndex(descendingAcrossNewYear(), null, UTC);
+        assertEquals(6, index.getRowCount());
+
+        assertEquals(2, index.getNodeCount(DateGroupIndex.LEVEL_YEAR));
+        assertEquals(0, index.getFirstPosition(DateGroupIndex.LEVEL_YEAR, 0));
+        assertEquals(2, index.getEndPosition(DateGroupIndex.LEVEL_YEAR, 0));
+        assertEquals(6, index.getEndPosition(DateGroupIndex.LEVEL_YEAR, 1));
+
+        assertEquals(3, index.getNodeCount(DateGroupIndex.LEVEL_MONTH));
+        assertEquals(2, index.getFirstPosition(DateGroupIndex.LEVEL_MONTH, 1));
+        assertEquals(5, index.getFirstPosition(DateGroupIndex.LEVEL_MONTH, 2));
+
+        // Jan 1 2011 is a Saturday, in the week of Dec 26
+        assertEquals(3, index.getNodeCount(DateGroupIndex.LEVEL_WEEK));
+        assertEquals(0, index.getFirstPosition(DateGroupIndex.LEVEL_WEEK, 0));
+        assertEquals(4, index.getEndPosition(DateGroupIndex.LEVEL_WEEK, 0));
+
+        assertEquals(5, index.getNodeCount(DateGroupIndex.LEVEL_DAY));
+        assertEquals(2, index.getEndPosition(DateGroupIndex.LEVEL_DAY, 0));
+        assertEquals(utc(2010, Calendar.DECEMBER, 31, 23),
+                index.getNodeTime(DateGroupIndex.LEVEL_DAY, 1));
+    }
+
+    public void testFindNode() {
+        DateGroupIndex index = new DateGroupIndex(descendingAcrossNewYear(), null, UTC);
+        assertEquals(0, index.findNode(DateGroupIndex.LEVEL_YEAR, 1));
+        assertEquals(1, index.findNode(DateGroupIndex.LEVEL_YEAR, 2));
+        assertEquals(1, index.findNode(DateGroupIndex.LEVEL_MONTH, 4));
+        assertEquals(2, index.findNode(DateGroupIndex.LEVEL_MONTH, 5));
+        assertEquals(1, index.findNode(DateGroupIndex.LEVEL_DAY, 2));
+        assertEquals(4, index.findNode(DateGroupIndex.LEVEL_DAY, 5));
+    }
+
+    public void testFindPositionDescending() {
+        DateGroupIndex index = new DateGroupIndex(descendingAcrossNewYear(), null, UTC);
+        // any time of a day with rows goes to its first row
+        assertEquals(0, index.findPosition(utc(2011, Calendar.JANUARY, 1, 0)));
+        assertEquals(2, index.findPosition(utc(2010, Calendar.DECEMBER, 31, 1)));
+        // a day without rows goes to the next older day
+        assertEquals(3, index.findPosition(utc(2010, Calendar.DECEMBER, 28, 12)));
+        assertEquals(5, index.findPosition(utc(2010, Calendar.DECEMBER, 1, 12)));
+        // before the oldest or after the newest row
+        assertEquals(5, index.findPosition(utc(2009, Calendar.JUNE, 1, 12)));
+        assertEquals(0, index.findPosition(utc(2012, Calendar.JUNE, 1, 12)));
+    }
+
+    public void testFindPositionAscending() {
+        MessageListSnapshot snapshot = descendingAcrossNewYear();
+        int[] order = { 5, 4, 3, 2, 1, 0 };
+        DateGroupIndex index = new DateGroupIndex(snapshot, order, UTC);
+        assertEquals(2, index.getNodeCount(DateGroupIndex.LEVEL_YEAR));
+        assertEquals(4, index.getFirstPosition(DateGroupIndex.LEVEL_YEAR, 1));
+        // the first row of Jan 1 in ascending order is the 9 o'clock one
+        assertEquals(4, index.findPosition(utc(2011, Calendar.JANUARY, 1, 12)));
+        // a day without rows goes to the next newer day
+        assertEquals(3, index.findPosition(utc(2010, Calendar.DECEMBER, 28, 12)));
+        assertEquals(5, index.findPosition(utc(2012, Calendar.JUNE, 1, 12)));
+    }
+
+    public void testLocalTimeZone() {
+        // 23:00 on Dec 31 in UTC is already the new year two hours east of it
+        TimeZone east = TimeZone.getTimeZone("GMT+02:00");
+        MessageListSnapshot snapshot = snapshot(
+                utc(2010, Calendar.DECEMBER, 31, 23), utc(2010, Calendar.DECEMBER, 31, 20));
+        assertEquals(1, new DateGroupIndex(snapshot, null, UTC)
+                .getNodeCount(DateGroupIndex.LEVEL_YEAR));
+        DateGroupIndex index = new DateGroupIndex(snapshot, null, east);
+        assertEquals(2, index.getNodeCount(DateGroupIndex.LEVEL_YEAR));
+        assertEquals(2, index.getNodeCount(DateGroupIndex.LEVEL_DAY));
+        assertEquals(0, index.findPosition(time(2011, Calendar.JANUARY, 1, 0, east) + HOUR));
+    }
+
+    public void testEmpty() {
+        DateGroupIndex index = new DateGroupIndex(snapshot(), null, UTC);
+        assertEquals(0, index.getRowCount());
+        assertEquals(0, index.getNodeCount(DateGroupIndex.LEVEL_DAY));
+        assertEquals(0, index.findPosition(utc(2011, Calendar.JANUARY, 1, 0)));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import junit.framework.TestCase;
+
+import java.util.HashSet;
+import java.util.TimeZone;
+
+/**
+ * Checks what the list model retains per row at 10k and 100k rows against upper bounds, so a
+ * change that makes the list heavier fails before it is released.  The rows come from
+ * {@link SyntheticRows}, the folders the benchmarks run on.
+ */
+public class FootprintTests extends TestCase {
+    // Upper bounds in bytes per row.
+    /** Seven columns of 4 and 8 bytes, three rank arrays, and the distinct strings. */
+    private static final double SNAPSHOT_BYTES_PER_ROW = 128;
+    /** Display order, group of every row, the id map, and the per group tables. */
+    private static final double MODEL_BYTES_PER_ROW = 60;
+    /** A tenth of the messages and a tenth of the groups selected. */
+    private static final double SELECTION_BYTES_PER_ROW = 8;
+    private static final double TOTAL_BYTES_PER_ROW = 180;
+
+    private static final long NOW = 1318000000000L;
+
+    private static MemoryAccounting.Report measure(int rows) throws Exception {
+        MessageListSnapshot snapshot =
+                new MessageListSnapshot(SyntheticRows.createRows(rows, "heap", NOW, rows));
+        MessageListModel model = new MessageListModel(snapshot, null,
+                MessageListSnapshot.SORT_BY_DATE, true, TimeZone.getTimeZone("UTC"));
+
+        MessageIdSet selection = new MessageIdSet();
+        for (int row = 0; row < rows; row += 10) {
+            selection.add(snapshot.getId(row));
+        }
+        HashSet<Long> groupSelection = new HashSet<Long>();
+        for (int group = 0; group < model.getGroupCount(); group += 10) {
+            groupSelection.add(model.getGroupId(group));
+        }
+
+        MemoryAccounting.Report report = new MemoryAccounting.Report(rows);
+        report.add("snapshot", snapshot.getRetainedBytes());
+        report.add("model", model.getRetainedBytes());
+        report.add("selection", selection.getRetainedBytes()
+                + MemoryAccounting.hashSetOfBoxed(groupSelection.size()));
+        return report;
+    }
+
+    private static void assertFootprint(int rows) throws Exception {
+        MemoryAccounting.Report report = measure(rows);
+        report.assertAtMost("snapshot", SNAPSHOT_BYTES_PER_ROW);
+        report.assertAtMost("model", MODEL_BYTES_PER_ROW);
+        report.assertAtMost("selection", SELECTION_BYTES_PER_ROW);
+        assertTrue(String.format("The list retains %.1f bytes per row at %d rows, more than %.1f",
+                report.getTotalBytesPerRow(), rows, TOTAL_BYTES_PER_ROW),
+                report.getTotalBytesPerRow() <= TOTAL_BYTES_PER_ROW);
+    }
+
+    public void testTenThousandRows() throws Exception {
+        assertFootprint(10000);
+    }
+
+    public void testHundredThousandRows() throws Exception {
+        assertFootprint(100000);
+    }
+}
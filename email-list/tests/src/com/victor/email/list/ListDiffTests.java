@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests of {@link ListDiff}.
+ */
+public class ListDiffTests extends TestCase {
+
+    private static long[] ids(long... ids) {
+        return ids;
+    }
+
+    private static long[] versions(int count) {
+        return new long[count];
+    }
+
+    private static ListDiff diff(long[] oldIds, long[] newIds) {
+        return ListDiff.compute(oldIds, versions(oldIds.length), newIds,
+                versions(newIds.length), 256);
+    }
+
+    private static void assertPositions(int[] expected, int[] actual) {
+        assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+    }
+
+    public void testIdentical() {
+        ListDiff diff = diff(ids(1, 2, 3), ids(1, 2, 3));
+        assertTrue(diff.isEmpty());
+        assertFalse(diff.hasStructuralChanges());
+    }
+
+    public void testInsertedAndRemoved() {
+        ListDiff diff = diff(ids(1, 2, 3, 4, 5), ids(0, 1, 3, 4, 6, 5));
+        assertPositions(new int[] { 1 }, diff.getRemoved());
+        assertPositions(new int[] { 0, 4 }, diff.getInserted());
+        assertEquals(0, diff.getMovedTo().length);
+        assertTrue(diff.hasStructuralChanges());
+    }
+
+    public void testMoved() {
+        ListDiff diff = diff(ids(1, 2, 3, 4, 5), ids(1, 3, 4, 5, 2));
+        assertEquals(0, diff.getRemoved().length);
+        assertEquals(0, diff.getInserted().length);
+        assertPositions(new int[] { 1 }, diff.getMovedFrom());
+        assertPositions(new int[] { 4 }, diff.getMovedTo());
+    }
+
+    public void testChanged() {
+        long[] oldIds = ids(1, 2, 3, 4);
+        long[] newIds = ids(1, 2, 4, 3);
+        long[] oldVersions = { 10, 20, 30, 40 };
+        long[] newVersions = { 10, 21, 40, 31 };
+        ListDiff diff = ListDiff.compute(oldIds, oldVersions, newIds, newVersions, 256);
+        // 2 changed in place, 3 changed and moved; 4 only moved
+        assertPositions(new int[] { 1, 3 }, diff.getChanged());
+        assertFalse(diff.isEmpty());
+    }
+
+    public void testTooManyEdits() {
+        long[] oldIds = new long[100];
+        long[] newIds = new long[100];
+        for (int i = 0; i < 100; i++) {
+            oldIds[i] = i;
+            newIds[i] = 1000 + i;
+        }
+        assertNull(ListDiff.compute(oldIds, versions(100), newIds, versions(100), 10));
+        assertNotNull(ListDiff.compute(oldIds, versions(100), newIds, versions(100), 200));
+    }
+
+    public void testNewPosition() {
+        ListDiff diff = diff(ids(1, 2, 3, 4, 5, 6), ids(0, 1, 3, 7, 4, 6, 2));
+        assertEquals(1, diff.getNewPosition(0));
+        // 2 moved to the end
+        assertEquals(6, diff.getNewPosition(1));
+        assertEquals(2, diff.getNewPosition(2));
+        assertEquals(4, diff.getNewPosition(3));
+        // 5 is gone; the first item after it that stayed is 6
+        assertEquals(5, diff.getNewPosition(4));
+        assertEquals(5, diff.getNewPosition(5));
+    }
+
+    /** Applies random edits to a list and checks the diff against what was done. */
+    public void testRandomEdits() {
+        Random random = new Random(3);
+        for (int round = 0; round < 2000; round++) {
+            List<Long> before = new ArrayList<Long>();
+            int n = random.nextInt(40);
+            for (int i = 0; i < n; i++) {
+                before.add((long) i);
+            }
+            List<Long> after = new ArrayList<Long>(before);
+            long next = 1000;
+            for (int edits = random.nextInt(6); edits > 0; edits--) {
+                int kind = random.nextInt(3);
+                if (kind == 0 && !after.isEmpty()) {
+                    after.remove(random.nextInt(after.size()));
+                } else if (kind == 1) {
+                    after.add(random.nextInt(after.size() + 1), next++);
+                } else if (!after.isEmpty()) {
+                    Long moved = after.remove(random.nextInt(after.size()));
+                    after.add(random.nextInt(after.size() + 1), moved);
+                }
+            }
+            long[] oldIds = toArray(before);
+            long[] newIds = toArray(after);
+            ListDiff diff = diff(oldIds, newIds);
+
+            // Replaying the diff on the old ids gives the new ones.
+            Long[] replayed = new Long[newIds.length];
+            boolean[] gone = new boolean[oldIds.length];
+            for (int position : diff.getRemoved()) {
+                gone[position] = true;
+            }
+            for (int i = 0; i < diff.getMovedFrom().length; i++) {
+                gone[diff.getMovedFrom()[i]] = true;
+                replayed[diff.getMovedTo()[i]] = oldIds[diff.getMovedFrom()[i]];
+            }
+            for (int position : diff.getInserted()) {
+                replayed[position] = newIds[position];
+            }
+            int slot = 0;
+            for (int i = 0; i < oldIds.length; i++) {
+                if (gone[i]) {
+                    continue;
+                }
+                while (replayed[slot] != null) {
+                    slot++;
+                }
+                replayed[slot] = oldIds[i];
+            }
+            for (int i = 0; i < newIds.length; i++) {
+                assertEquals(newIds[i], (long) replayed[i]);
+            }
+
+            for (int position = 0; position < oldIds.length; position++) {
+                int index = after.indexOf(oldIds[position]);
+                if (index >= 0) {
+                    assertEquals(index, diff.getNewPosition(position));
+                }
+            }
+        }
+    }
+
+    private static long[] toArray(List<Long> list) {
+        long[] array = new long[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
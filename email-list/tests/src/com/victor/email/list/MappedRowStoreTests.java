@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Tests of {@link MappedRowStore}, against a {@link HeapRowStore} of the same rows.
+ */
+public class MappedRowStoreTests extends TestCase {
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = File.createTempFile("rows", null);
+        mDirectory.delete();
+        mDirectory.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    /** Writes the same random rows to both writers. */
+    private static void addRows(int count, MessageRowStore.Writer... writers) {
+        Random random = new Random(5);
+        for (int row = 0; row < count; row++) {
+            String subject;
+            int kind = random.nextInt(10);
+            if (kind == 0) {
+                subject = null;
+            } else if (kind == 1) {
+                // longer than the staging buffer
+                subject = row % 7 == 0 ? repeat((char) ('a' + row % 26), 40000) : "";
+            } else if (kind == 2) {
+                subject = "\u00fcber \u4e2d\u6587 " + random.nextInt(100);
+            } else {
+                // repeats near and far, past what the writer remembers on the heap
+                subject = "subject " + random.nextInt(5000);
+            }
+            String sender = random.nextInt(20) == 0 ? null : "sender " + random.nextInt(300);
+            long id = row * 3L + (1L << 40);
+            for (MessageRowStore.Writer writer : writers) {
+                writer.addRow(id, row % 5, row % 2, 1300000000000L - row, row & 63, subject,
+                        sender);
+            }
+        }
+    }
+
+    private static void assertSameRows(MessageRowStore expected, MessageRowStore actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getSubjectCodeCount(), actual.getSubjectCodeCount());
+        assertEquals(expected.getSenderCodeCount(), actual.getSenderCodeCount());
+        HashMap<Integer, Integer> codes = new HashMap<Integer, Integer>();
+        for (int row = 0; row < expected.getCount(); row++) {
+            assertEquals(expected.getId(row), actual.getId(row));
+            assertEquals(expected.getMailboxKey(row), actual.getMailboxKey(row));
+            assertEquals(expected.getAccountKey(row), actual.getAccountKey(row));
+            assertEquals(expected.getTimestamp(row), actual.getTimestamp(row));
+            assertEquals(expected.getFlags(row), actual.getFlags(row));
+            assertEquals(expected.getSender(expected.getSenderCode(row)),
+                    actual.getSender(actual.getSenderCode(row)));
+            int expectedCode = expected.getSubjectCode(row);
+            int actualCode = actual.getSubjectCode(row);
+            assertEquals(expected.getSubject(expectedCode), actual.getSubject(actualCode));
+            // equal subjects, and only those, share a code
+            Integer previous = codes.put(expectedCode, actualCode);
+            assertTrue(previous == null || previous == actualCode);
+        }
+        assertEquals(codes.size(), new HashSet<Integer>(codes.values()).size());
+    }
+
+    public void testRoundTrip() throws Exception {
+        final int count = 30000;
+        HeapRowStore.Writer heap = new HeapRowStore.Writer(count);
+        MappedRowStore.Writer mapped = new MappedRowStore.Writer(mDirectory, count);
+        addRows(count, heap, mapped);
+        MappedRowStore store = mapped.finish();
+        try {
+            // both files are unlinked once mapped
+            assertEquals(0, mDirectory.listFiles().length);
+            assertSameRows(heap.finish(), store);
+            // the snapshot reads the same through either store
+            MessageListSnapshot snapshot = new MessageListSnapshot(store);
+            assertEquals(count, snapshot.mCount);
+        } finally {
+            store.close();
+        }
+    }
+
+    public void testEmpty() throws Exception {
+        MappedRowStore store = new MappedRowStore.Writer(mDirectory, 0).finish();
+        assertEquals(0, store.getCount());
+        assertNull(store.getSubject(StringDictionary.NULL_CODE));
+        store.close();
+        assertEquals(0, mDirectory.listFiles().length);
+    }
+
+    public void testAbortReleasesFiles() throws Exception {
+        MappedRowStore.Writer writer = new MappedRowStore.Writer(mDirectory, 1000);
+        addRows(500, writer);
+        assertEquals(1, mDirectory.listFiles().length);
+        writer.abort();
+        assertEquals(0, mDirectory.listFiles().length);
+        writer.abort();
+    }
+
+    public void testAbortAfterFinishKeepsStore() throws Exception {
+        HeapRowStore.Writer heap = new HeapRowStore.Writer(100);
+        MappedRowStore.Writer mapped = new MappedRowStore.Writer(mDirectory, 100);
+        addRows(100, heap, mapped);
+        MappedRowStore store = mapped.finish();
+        mapped.abort();
+        assertSameRows(heap.finish(), store);
+        store.close();
+    }
+
+    public void testCloseTwice() throws Exception {
+        MappedRowStore.Writer writer = new MappedRowStore.Writer(mDirectory, 10);
+        addRows(10, writer);
+        MappedRowStore store = writer.finish();
+        store.close();
+        store.close();
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Tests of {@link MessageIdSet}, mostly against a {@link TreeSet} doing the same.
+ */
+public class MessageIdSetTests extends TestCase {
+
+    private static void assertSameIds(TreeSet<Long> expected, MessageIdSet actual) {
+        assertEquals(expected.size(), actual.size());
+        long[] ids = actual.toLongArray();
+        int i = 0;
+        for (long id : expected) {
+            assertEquals(id, ids[i++]);
+        }
+    }
+
+    public void testAddRemoveContains() {
+        MessageIdSet set = new MessageIdSet();
+        assertTrue(set.add(5));
+        assertFalse(set.add(5));
+        assertTrue(set.add(1L << 40));
+        assertTrue(set.contains(5));
+        assertTrue(set.contains(1L << 40));
+        assertFalse(set.contains(6));
+        assertEquals(2, set.size());
+
+        assertTrue(set.remove(5));
+        assertFalse(set.remove(5));
+        assertFalse(set.contains(5));
+        assertEquals(1, set.size());
+    }
+
+    public void testRandomOperations() {
+        Random random = new Random(1);
+        MessageIdSet set = new MessageIdSet();
+        TreeSet<Long> expected = new TreeSet<Long>();
+        for (int i = 0; i < 50000; i++) {
+            // a few dense ranges, so containers pass through both representations
+            long id = random.nextInt(4) * 65536L + random.nextInt(8000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(id), set.remove(id));
+            } else {
+                assertEquals(expected.add(id), set.add(id));
+            }
+        }
+        assertSameIds(expected, set);
+    }
+
+    public void testBitmapKeepsIdsAcrossConversions() {
+        MessageIdSet set = new MessageIdSet();
+        TreeSet<Long> expected = new TreeSet<Long>();
+        for (long id = 0; id < 10000; id += 2) {
+            set.add(id);
+            expected.add(id);
+        }
+        assertSameIds(expected, set);
+        for (long id = 0; id < 10000; id += 4) {
+            set.remove(id);
+            expected.remove(id);
+        }
+        assertSameIds(expected, set);
+        for (long id = 2; id < 10000; id += 8) {
+            set.remove(id);
+            expected.remove(id);
+        }
+        assertSameIds(expected, set);
+    }
+
+    public void testBitmapConvertsBackOnlyWellBelowThreshold() {
+        MessageIdSet set = new MessageIdSet();
+        for (long id = 0; id < 5000; id++) {
+            set.add(id);
+        }
+        final long bitmapBytes = set.getRetainedBytes();
+        // Just below the array limit, the container stays a bitmap.
+        for (long id = 0; id < 1000; id++) {
+            set.remove(id);
+        }
+        assertEquals(bitmapBytes, set.getRetainedBytes());
+        // Well below it, it turns back into a smaller array.
+        for (long id = 1000; id < 3000; id++) {
+            set.remove(id);
+        }
+        assertTrue(set.getRetainedBytes() < bitmapBytes);
+        assertEquals(2000, set.size());
+        assertTrue(set.contains(3000));
+        assertTrue(set.contains(4999));
+        assertFalse(set.contains(2999));
+    }
+
+    public void testIteratorRemove() {
+        MessageIdSet set = new MessageIdSet();
+        TreeSet<Long> expected = new TreeSet<Long>();
+        for (long id = 0; id < 6000; id++) {
+            long spread = id * 7 + (id / 1000) * 65536;
+            set.add(spread);
+            expected.add(spread);
+        }
+        // Removing every other id drops the bitmaps back to arrays mid-iteration.
+        Iterator<Long> it = set.iterator();
+        boolean remove = false;
+        while (it.hasNext()) {
+            long id = it.next();
+            if (remove) {
+                it.remove();
+                expected.remove(id);
+            }
+            remove = !remove;
+        }
+        assertSameIds(expected, set);
+
+        it = set.iterator();
+        while (it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+        assertEquals(0, set.size());
+        assertFalse(set.iterator().hasNext());
+    }
+
+    public void testIteratorRemoveNeedsNext() {
+        MessageIdSet set = new MessageIdSet();
+        set.add(1);
+        set.add(2);
+        Iterator<Long> it = set.iterator();
+        try {
+            it.remove();
+            fail("remove() before next()");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(Long.valueOf(1), it.next());
+        it.remove();
+        try {
+            it.remove();
+            fail("remove() twice");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(Long.valueOf(2), it.next());
+        assertFalse(it.hasNext());
+        try {
+            it.next();
+            fail("next() past the end");
+        } catch (NoSuchElementException expected) {
+        }
+    }
+
+    public void testOrAnd() {
+        MessageIdSet a = new MessageIdSet();
+        MessageIdSet b = new MessageIdSet();
+        for (long id = 0; id < 6000; id++) {
+            a.add(id);
+            b.add(id + 3000);
+        }
+        b.add(1L << 33);
+        MessageIdSet union = MessageIdSet.union(a, b);
+        assertEquals(9001, union.size());
+        assertTrue(union.contains(0));
+        assertTrue(union.contains(8999));
+        assertTrue(union.contains(1L << 33));
+
+        MessageIdSet intersection = MessageIdSet.intersection(a, b);
+        assertEquals(3000, intersection.size());
+        assertFalse(intersection.contains(2999));
+        assertTrue(intersection.contains(3000));
+        assertTrue(intersection.contains(5999));
+        // the operands are left alone
+        assertEquals(6000, a.size());
+        assertEquals(6001, b.size());
+    }
+
+    public void testByteArrayRoundTrip() {
+        Random random = new Random(2);
+        MessageIdSet set = new MessageIdSet();
+        // a run, a bitmap and a sparse array
+        for (long id = 0; id < 65536; id++) {
+            set.add(id);
+        }
+        for (int i = 0; i < 20000; i++) {
+            set.add(65536 + random.nextInt(65536));
+        }
+        for (int i = 0; i < 10; i++) {
+            set.add((1L << 36) + random.nextInt(1000000));
+        }
+        MessageIdSet copy = MessageIdSet.fromByteArray(set.toByteArray());
+        assertEquals(set.size(), copy.size());
+        assertTrue(Arrays.equals(set.toLongArray(), copy.toLongArray()));
+
+        assertEquals(0, MessageIdSet.fromByteArray(new MessageIdSet().toByteArray()).size());
+    }
+}
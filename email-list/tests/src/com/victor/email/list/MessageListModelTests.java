@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * Tests of {@link MessageListModel}.
+ */
+public class MessageListModelTests extends TestCase {
+    private static final long NOW = 1300000000000L;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    /** Flag changes held in id sets, as the app's flag queue holds them. */
+    private static class SetOverlay implements FlagOverlay {
+        final MessageIdSet mRead = new MessageIdSet();
+        final MessageIdSet mUnread = new MessageIdSet();
+        final MessageIdSet mFavorite = new MessageIdSet();
+        final MessageIdSet mUnfavorite = new MessageIdSet();
+
+        void set(MessageIdSet ids, int flag, boolean value) {
+            MessageIdSet on = flag == MessageListSnapshot.FLAG_READ ? mRead : mFavorite;
+            MessageIdSet off = flag == MessageListSnapshot.FLAG_READ ? mUnread : mUnfavorite;
+            MessageIdSet.IdIterator it = ids.idIterator();
+            while (it.hasNext()) {
+                long id = it.next();
+                (value ? on : off).add(id);
+                (value ? off : on).remove(id);
+            }
+        }
+
+        @Override
+        public boolean isRead(long messageId, boolean storedValue) {
+            return mRead.contains(messageId) || (storedValue && !mUnread.contains(messageId));
+        }
+
+        @Override
+        public boolean isFavorite(long messageId, boolean storedValue) {
+            return mFavorite.contains(messageId)
+                    || (storedValue && !mUnfavorite.contains(messageId));
+        }
+
+        @Override
+        public boolean hasPendingChanges() {
+            return !(mRead.isEmpty() && mUnread.isEmpty() && mFavorite.isEmpty()
+                    && mUnfavorite.isEmpty());
+        }
+    }
+
+    /**
+     * @return a model of rows from the given senders, newest first, grouped into conversations
+     *     by sender; ids are rows, and rows with an odd id have an attachment
+     */
+    private static MessageListModel bySender(String... senders) {
+        HeapRowStore.Writer writer = new HeapRowStore.Writer(senders.length);
+        for (int row = 0; row < senders.length; row++) {
+            int flags = row % 2 == 1 ? MessageListSnapshot.FLAG_ATTACHMENT : 0;
+            writer.addRow(row, 1, 1, NOW - row * 1000, flags, "subject", senders[row]);
+        }
+        MessageListModel model = new MessageListModel(new MessageListSnapshot(writer.finish()),
+                null, MessageListSnapshot.SORT_BY_DATE, true, UTC);
+        model.setGroupingMode(MessageListModel.GROUPING_CONVERSATIONS_BY_SENDER);
+        return model;
+    }
+
+    /** @return a snapshot of rows with the given subjects, newest first; ids are rows */
+    private static MessageListSnapshot subjects(String... subjects) {
+        HeapRowStore.Writer writer = new HeapRowStore.Writer(subjects.length);
+        for (int row = 0; row < subjects.length; row++) {
+            writer.addRow(row, 1, 1, NOW - row * 1000, 0, subjects[row], "sender");
+        }
+        return new MessageListSnapshot(writer.finish());
+    }
+
+    /**
+     * @return a snapshot of rows from the given senders, a day apart, newest first; ids are
+     *     rows, every third row is read and rows with an odd id have an attachment
+     */
+    private static MessageListSnapshot senders(String... senders) {
+        HeapRowStore.Writer writer = new HeapRowStore.Writer(senders.length);
+        for (int row = 0; row < senders.length; row++) {
+            int flags = row % 3 == 0 ? MessageListSnapshot.FLAG_READ : 0;
+            if (row % 2 == 1) {
+                flags |= MessageListSnapshot.FLAG_ATTACHMENT;
+            }
+            writer.addRow(row, 1, 1, NOW - row * DAY, flags, "subject", senders[row]);
+        }
+        return new MessageListSnapshot(writer.finish());
+    }
+
+    /** @return a model of the rows sorted and grouped by sender, a to z */
+    private static MessageListModel sortedBySender(MessageListSnapshot snapshot) {
+        return new MessageListModel(snapshot,
+                snapshot.sort(MessageListSnapshot.SORT_BY_SENDER, false),
+                MessageListSnapshot.SORT_BY_SENDER, false, UTC);
+    }
+
+    /** Groups a: 1, 4; b: 0, 2, 5; c: 3. */
+    private static MessageListModel threeGroups() {
+        return sortedBySender(senders("b", "a", "b", "c", "a", "b"));
+    }
+
+    private static MessageIdSet ids(long... ids) {
+        MessageIdSet set = new MessageIdSet();
+        for (long id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+
+    /** Changes a flag of every message in {@code ids} the way the adapter does. */
+    private static void setFlag(MessageListModel model, SetOverlay overlay, MessageIdSet ids,
+            int flag, boolean value) {
+        // the aggregates first, while the overlay still shows the old value
+        MessageIdSet.IdIterator it = ids.idIterator();
+        while (it.hasNext()) {
+            model.updateGroupFlag(it.next(), flag, value);
+        }
+        overlay.set(ids, flag, value);
+    }
+
+    public void testConversationsBySubjectThread() {
+        MessageListModel model = new MessageListModel(
+                subjects("Re: Lunch", "dinner", "lunch", "Fwd: RE: lunch", "Dinner "), null,
+                MessageListSnapshot.SORT_BY_DATE, true, UTC);
+        model.setGroupingMode(MessageListModel.GROUPING_CONVERSATIONS_BY_SUBJECT);
+        assertEquals(MessageListModel.GROUP_BY_SUBJECT, model.getGroupBy());
+        assertEquals(2, model.getGroupCount());
+        assertEquals(3, model.getGroupSize(0));
+        assertEquals(2, model.getGroupSize(1));
+        MessageIdSet lunch = new MessageIdSet();
+        model.updateGroupIds(0, lunch, true);
+        assertEquals("[0, 2, 3]", Arrays.toString(lunch.toLongArray()));
+    }
+
+    public void testSubjectSortKeepsThreadsTogether() {
+        MessageListSnapshot snapshot = subjects("Re: b", "a", "b", "Fwd: a", "c");
+        MessageListModel model = new MessageListModel(snapshot,
+                snapshot.sort(MessageListSnapshot.SORT_BY_SUBJECT, false),
+                MessageListSnapshot.SORT_BY_SUBJECT, false, UTC);
+        assertEquals(3, model.getGroupCount());
+        assertEquals(2, model.getGroupSize(0));
+        assertEquals(2, model.getGroupSize(1));
+        assertEquals(1, model.getGroupSize(2));
+        assertEquals("a", SubjectThreading.normalize(
+                snapshot.getSubject(model.rowAt(model.getGroupDisplayPosition(0)))));
+    }
+
+    /** The provider sorts subjects verbatim; the model still gives every thread one group. */
+    public void testProviderSubjectOrderGroupedByThread() {
+        MessageListModel model = new MessageListModel(subjects("a", "b", "Fwd: a", "Re: b"),
+                null, MessageListSnapshot.SORT_BY_SUBJECT, false, UTC);
+        assertEquals(2, model.getGroupCount());
+        assertEquals(2, model.getGroupSize(0));
+        assertEquals(2, model.getGroupSize(1));
+    }
+
+    public void testVisiblePositions() {
+        MessageListModel model = threeGroups();
+        assertEquals(3, model.getGroupCount());
+        assertEquals(9, model.getVisibleCount());
+        assertEquals(0, model.headerAt(0));
+        assertEquals(-1, model.headerAt(1));
+        assertEquals(1, model.headerAt(3));
+        assertEquals(2, model.headerAt(7));
+        assertEquals(-1, model.headerAt(9));
+        // a header stands for the first row of its group
+        assertEquals(0, model.getDisplayPosition(0));
+        assertEquals(0, model.getDisplayPosition(1));
+        assertEquals(1, model.getDisplayPosition(2));
+        assertEquals(2, model.getDisplayPosition(3));
+        assertEquals(5, model.getDisplayPosition(8));
+        assertEquals(6, model.getDisplayPosition(9));
+        assertEquals(4, model.getVisiblePosition(2));
+        assertEquals(1, model.getGroupAtVisiblePosition(6));
+        assertEquals(2, model.getGroupAtDisplayPosition(5));
+    }
+
+    public void testToggleGroup() {
+        MessageListModel model = threeGroups();
+        model.toggleGroup(1);
+        assertFalse(model.isGroupExpanded(1));
+        assertEquals(6, model.getVisibleCount());
+        assertEquals(3, model.getGroupVisiblePosition(1));
+        assertEquals(4, model.getGroupVisiblePosition(2));
+        assertEquals(2, model.headerAt(4));
+        assertEquals(5, model.getDisplayPosition(5));
+        // rows of a collapsed group show as its header
+        assertEquals(3, model.getVisiblePosition(3));
+        assertEquals(5, model.getVisiblePosition(5));
+
+        model.toggleGroup(1);
+        assertEquals(9, model.getVisibleCount());
+        assertEquals(7, model.getGroupVisiblePosition(2));
+    }
+
+    public void testBulkExpandCollapse() {
+        MessageListModel model = threeGroups();
+        model.setAllGroupsExpanded(false);
+        assertEquals(3, model.getVisibleCount());
+        assertEquals(2, model.headerAt(2));
+
+        model.setGroupsExpanded(1, 3, true);
+        assertFalse(model.isGroupExpanded(0));
+        assertTrue(model.isGroupExpanded(1));
+        assertTrue(model.isGroupExpanded(2));
+        assertEquals(7, model.getVisibleCount());
+
+        // a: newest a day ago, b: now, c: three days ago; b keeps its state
+        model.setAllGroupsExpanded(true);
+        model.collapseGroupsOlderThan(NOW - DAY / 2);
+        assertFalse(model.isGroupExpanded(0));
+        assertTrue(model.isGroupExpanded(1));
+        assertFalse(model.isGroupExpanded(2));
+        model.setGroupsExpanded(1, 2, false);
+        model.collapseGroupsOlderThan(NOW - 2 * DAY);
+        assertFalse(model.isGroupExpanded(1));
+
+        // rows 0 and 3 are read: c has no unread message
+        model.expandOnlyUnreadGroups();
+        assertTrue(model.isGroupExpanded(0));
+        assertTrue(model.isGroupExpanded(1));
+        assertFalse(model.isGroupExpanded(2));
+        assertEquals(8, model.getVisibleCount());
+    }
+
+    public void testUpdateGroupIds() {
+        MessageListModel model = threeGroups();
+        MessageIdSet selection = ids(3);
+        model.updateGroupIds(1, selection, true);
+        assertEquals("[0, 2, 3, 5]", Arrays.toString(selection.toLongArray()));
+        model.updateGroupIds(2, selection, false);
+        model.updateGroupIds(0, selection, false);
+        assertEquals("[0, 2, 5]", Arrays.toString(selection.toLongArray()));
+    }
+
+    public void testNoGroups() {
+        MessageListModel model = new MessageListModel(senders("a", "b", "c"), null,
+                MessageListModel.SORT_BY_NONE, true, UTC);
+        assertEquals(MessageListModel.GROUP_BY_NONE, model.getGroupBy());
+        model.setAllGroupsExpanded(false);
+        assertEquals(3, model.getVisibleCount());
+        assertEquals(-1, model.headerAt(0));
+        assertEquals(2, model.getDisplayPosition(2));
+    }
+
+    public void testGroupAggregates() {
+        MessageListModel model = threeGroups();
+        assertEquals(2, model.getGroupSize(0));
+        assertEquals(3, model.getGroupSize(1));
+        assertEquals(1, model.getGroupSize(2));
+        // rows 0 and 3 are read, odd rows have an attachment
+        assertEquals(2, model.getGroupUnreadCount(0));
+        assertEquals(2, model.getGroupUnreadCount(1));
+        assertEquals(0, model.getGroupUnreadCount(2));
+        assertEquals(1, model.getGroupAttachmentCount(0));
+        assertEquals(1, model.getGroupAttachmentCount(1));
+        assertEquals(1, model.getGroupAttachmentCount(2));
+        assertEquals(0, model.getGroupFavoriteCount(1));
+        assertEquals(NOW - DAY, model.getGroupNewest(0));
+        assertEquals(NOW - 4 * DAY, model.getGroupOldest(0));
+        assertEquals(NOW, model.getGroupNewest(1));
+        assertEquals(NOW - 5 * DAY, model.getGroupOldest(1));
+        assertEquals(NOW - 3 * DAY, model.getGroupNewest(2));
+        assertEquals(NOW - 3 * DAY, model.getGroupOldest(2));
+    }
+
+    public void testGroupAggregatesAfterRegrouping() {
+        MessageListModel model = threeGroups();
+        SetOverlay overlay = new SetOverlay();
+        setFlag(model, overlay, ids(1), MessageListSnapshot.FLAG_READ, true);
+        model.setFlagOverlay(overlay);
+        assertEquals(1, model.getGroupUnreadCount(0));
+
+        // conversations in date order; the overlay still counts
+        assertTrue(model.sort(MessageListSnapshot.SORT_BY_DATE, true));
+        model.setGroupingMode(MessageListModel.GROUPING_CONVERSATIONS_BY_SENDER);
+        assertEquals(3, model.getGroupCount());
+        // b first, as it has the newest message
+        assertEquals(NOW, model.getGroupNewest(0));
+        assertEquals(2, model.getGroupUnreadCount(0));
+        assertEquals(1, model.getGroupUnreadCount(1));
+        assertEquals(1, model.getGroupAttachmentCount(1));
+    }
+
+    public void testGroupVersionFollowsAggregates() {
+        MessageListModel model = threeGroups();
+        SetOverlay overlay = new SetOverlay();
+        model.setFlagOverlay(overlay);
+        final long version = model.getGroupVersion(1);
+        final long other = model.getGroupVersion(0);
+        // a row of the group that is not its first
+        long id = model.getSnapshot().getId(model.rowAt(model.getGroupDisplayPosition(1) + 1));
+        setFlag(model, overlay, ids(id), MessageListSnapshot.FLAG_FAVORITE, true);
+        assertFalse(version == model.getGroupVersion(1));
+        assertEquals(other, model.getGroupVersion(0));
+
+        setFlag(model, overlay, ids(id), MessageListSnapshot.FLAG_FAVORITE, false);
+        assertEquals(version, model.getGroupVersion(1));
+        model.toggleGroup(1);
+        assertFalse(version == model.getGroupVersion(1));
+    }
+
+    public void testHeaderIds() {
+        MessageListModel model = threeGroups();
+        MessageIdSet headers = new MessageIdSet();
+        for (int g = 0; g < model.getGroupCount(); g++) {
+            long id = model.getGroupId(g);
+            assertTrue((id & MessageListModel.HEADER_ID_TAG) != 0);
+            assertTrue(id > 0);
+            assertTrue(headers.add(id));
+        }
+        for (int row = 0; row < model.getRowCount(); row++) {
+            assertFalse(headers.contains(model.getSnapshot().getId(row)));
+        }
+    }
+
+    /** New mail moves and grows groups, but the headers keep their ids. */
+    public void testHeaderIdsSurviveReload() {
+        MessageListModel before = threeGroups();
+        // a new message from b and one from a new sender, d
+        MessageListModel after = sortedBySender(senders("d", "b", "a", "b", "c", "a", "b"));
+        assertEquals(4, after.getGroupCount());
+        for (int g = 0; g < 3; g++) {
+            assertEquals(before.getGroupId(g), after.getGroupId(g));
+        }
+        assertFalse(after.getGroupId(3) == after.getGroupId(0));
+
+        // date groups are keyed on their oldest day, which a newer message does not change
+        MessageListModel day = new MessageListModel(senders("a", "b"), null,
+                MessageListSnapshot.SORT_BY_DATE, true, UTC);
+        HeapRowStore.Writer writer = new HeapRowStore.Writer(3);
+        writer.addRow(10, 1, 1, NOW + 1000, 0, "subject", "c");
+        writer.addRow(0, 1, 1, NOW, 0, "subject", "a");
+        writer.addRow(1, 1, 1, NOW - DAY, 0, "subject", "b");
+        MessageListModel reloaded = new MessageListModel(new MessageListSnapshot(writer.finish()),
+                null, MessageListSnapshot.SORT_BY_DATE, true, UTC);
+        assertEquals(MessageListModel.GROUP_BY_DATE, day.getGroupBy());
+        assertEquals(day.getGroupId(day.getGroupCount() - 1),
+                reloaded.getGroupId(reloaded.getGroupCount() - 1));
+    }
+
+    public void testHeaderIdsDependOnGrouping() {
+        MessageListSnapshot snapshot = senders("a", "b");
+        MessageListModel model = new MessageListModel(snapshot, null,
+                MessageListSnapshot.SORT_BY_DATE, true, UTC);
+        model.setGroupingMode(MessageListModel.GROUPING_CONVERSATIONS_BY_SENDER);
+        long bySender = model.getGroupId(0);
+        model.setGroupingMode(MessageListModel.GROUPING_CONVERSATIONS_BY_SUBJECT);
+        assertEquals(1, model.getGroupCount());
+        assertFalse(bySender == model.getGroupId(0));
+    }
+
+    public void testItems() {
+        MessageListModel model = threeGroups();
+        model.toggleGroup(1);
+        long[] ids = new long[model.getVisibleCount()];
+        long[] versions = new long[ids.length];
+        model.getItems(true, ids, versions);
+        // a: 1, 4; b collapsed; c: 3
+        assertEquals(model.getGroupId(0), ids[0]);
+        assertEquals(model.getGroupId(1), ids[3]);
+        assertEquals(model.getGroupId(2), ids[4]);
+        assertEquals(3, ids[5]);
+        assertEquals("[1, 4]", Arrays.toString(new long[] { ids[1], ids[2] }));
+        assertEquals(model.getGroupVersion(1), versions[3]);
+        assertEquals(model.getRowVersion(3), versions[5]);
+
+        ids = new long[model.getRowCount()];
+        versions = new long[ids.length];
+        model.getItems(false, ids, versions);
+        for (int position = 0; position < ids.length; position++) {
+            int row = model.rowAt(position);
+            assertEquals(model.getSnapshot().getId(row), ids[position]);
+            assertEquals(model.getRowVersion(row), versions[position]);
+        }
+    }
+
+    public void testRowVersion() {
+        MessageListModel model = threeGroups();
+        SetOverlay overlay = new SetOverlay();
+        model.setFlagOverlay(overlay);
+        final long version = model.getRowVersion(1);
+        setFlag(model, overlay, ids(1), MessageListSnapshot.FLAG_READ, true);
+        assertFalse(version == model.getRowVersion(1));
+        setFlag(model, overlay, ids(1), MessageListSnapshot.FLAG_READ, false);
+        assertEquals(version, model.getRowVersion(1));
+
+        // what else a row shows comes from the hashes
+        int[] hashes = new int[model.getRowCount()];
+        model.setRowHashes(hashes);
+        assertEquals(version, model.getRowVersion(1));
+        hashes[1] = 42;
+        assertFalse(version == model.getRowVersion(1));
+        assertEquals(model.getRowVersion(0) & 3, model.getRowVersion(0));
+    }
+
+    public void testSelectionFlagsUpdateGroupAggregates() {
+        // groups a: 0, 2; b: 1, 4; c: 3
+        MessageListModel model = bySender("a", "b", "a", "c", "b");
+        SetOverlay overlay = new SetOverlay();
+        model.setFlagOverlay(overlay);
+        assertEquals(3, model.getGroupCount());
+        assertEquals(2, model.getGroupUnreadCount(0));
+        assertEquals(2, model.getGroupUnreadCount(1));
+        assertEquals(1, model.getGroupUnreadCount(2));
+
+        MessageIdSet selection = ids(0, 2, 3, 4);
+        setFlag(model, overlay, selection, MessageListSnapshot.FLAG_READ, true);
+        assertEquals(0, model.getGroupUnreadCount(0));
+        assertEquals(1, model.getGroupUnreadCount(1));
+        assertEquals(0, model.getGroupUnreadCount(2));
+
+        // marking them again changes nothing
+        setFlag(model, overlay, selection, MessageListSnapshot.FLAG_READ, true);
+        assertEquals(0, model.getGroupUnreadCount(0));
+        assertEquals(1, model.getGroupUnreadCount(1));
+
+        model.expandOnlyUnreadGroups();
+        assertFalse(model.isGroupExpanded(0));
+        assertTrue(model.isGroupExpanded(1));
+        assertFalse(model.isGroupExpanded(2));
+
+        setFlag(model, overlay, selection, MessageListSnapshot.FLAG_FAVORITE, true);
+        assertEquals(2, model.getGroupFavoriteCount(0));
+        assertEquals(1, model.getGroupFavoriteCount(1));
+        assertEquals(1, model.getGroupFavoriteCount(2));
+        setFlag(model, overlay, ids(2, 4), MessageListSnapshot.FLAG_FAVORITE, false);
+        assertEquals(1, model.getGroupFavoriteCount(0));
+        assertEquals(0, model.getGroupFavoriteCount(1));
+
+        setFlag(model, overlay, selection, MessageListSnapshot.FLAG_READ, false);
+        assertEquals(2, model.getGroupUnreadCount(0));
+        assertEquals(2, model.getGroupUnreadCount(1));
+        assertEquals(1, model.getGroupUnreadCount(2));
+    }
+
+    public void testOverlayCountedWhenSet() {
+        MessageListModel model = bySender("a", "b", "a");
+        SetOverlay overlay = new SetOverlay();
+        overlay.set(ids(0, 1), MessageListSnapshot.FLAG_READ, true);
+        model.setFlagOverlay(overlay);
+        assertEquals(1, model.getGroupUnreadCount(0));
+        assertEquals(0, model.getGroupUnreadCount(1));
+        // messages that are not loaded belong to no group
+        assertEquals(-1, model.updateGroupFlag(99, MessageListSnapshot.FLAG_READ, true));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * Tests of {@link SortedGrouper}.
+ */
+public class SortedGrouperTests extends TestCase {
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final long NOW = 1300000000000L;
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    /** @return a snapshot of rows with the given times, subjects and senders; ids are rows */
+    private static MessageListSnapshot snapshot(long[] times, String[] subjects,
+            String[] senders) {
+        HeapRowStore.Writer writer = new HeapRowStore.Writer(times.length);
+        for (int row = 0; row < times.length; row++) {
+            writer.addRow(row, 1, 1, times[row], 0, subjects[row], senders[row]);
+        }
+        return new MessageListSnapshot(writer.finish());
+    }
+
+    private static MessageListSnapshot sendersOnly(String... senders) {
+        long[] times = new long[senders.length];
+        String[] subjects = new String[senders.length];
+        for (int row = 0; row < senders.length; row++) {
+            times[row] = NOW - row * 1000;
+            subjects[row] = "subject";
+        }
+        return snapshot(times, subjects, senders);
+    }
+
+    private static boolean[] starts(boolean... starts) {
+        return starts;
+    }
+
+    public void testSortedBySender() {
+        MessageListSnapshot snapshot = sendersOnly("a", "a", "b", "b", "a");
+        boolean[] found = new SortedGrouper(snapshot, null, MessageListModel.GROUP_BY_SENDER,
+                NOW, UTC).findGroupStarts();
+        assertTrue(Arrays.equals(starts(true, false, true, false, true), found));
+    }
+
+    public void testSortedFollowsOrder() {
+        MessageListSnapshot snapshot = sendersOnly("a", "b", "a", "b");
+        int[] order = { 0, 2, 1, 3 };
+        boolean[] found = new SortedGrouper(snapshot, order, MessageListModel.GROUP_BY_SENDER,
+                NOW, UTC).findGroupStarts();
+        assertTrue(Arrays.equals(starts(true, false, true, false), found));
+    }
+
+    public void testSortedBySubjectThread() {
+        long[] times = { NOW, NOW - 1, NOW - 2, NOW - 3 };
+        String[] subjects = { "Re: lunch", "lunch", "Fwd: lunch", "dinner" };
+        String[] senders = { "a", "b", "c", "d" };
+        boolean[] found = new SortedGrouper(snapshot(times, subjects, senders), null,
+                MessageListModel.GROUP_BY_SUBJECT, NOW, UTC).findGroupStarts();
+        assertTrue(Arrays.equals(starts(true, false, false, true), found));
+    }
+
+    public void testSortedByDate() {
+        // today twice, yesterday, then two days of the same week three weeks ago
+        long[] times = {
+            NOW - 1000, NOW - 2000, NOW - DAY, NOW - 3 * 7 * DAY, NOW - 3 * 7 * DAY - 1000,
+        };
+        String[] subjects = new String[times.length];
+        String[] senders = new String[times.length];
+        Arrays.fill(subjects, "s");
+        Arrays.fill(senders, "a");
+        boolean[] found = new SortedGrouper(snapshot(times, subjects, senders), null,
+                MessageListModel.GROUP_BY_DATE, NOW, UTC).findGroupStarts();
+        assertTrue(Arrays.equals(starts(true, false, true, true, false), found));
+    }
+
+    public void testGroupByNone() {
+        boolean[] found = new SortedGrouper(sendersOnly("a", "b", "c"), null,
+                MessageListModel.GROUP_BY_NONE, NOW, UTC).findGroupStarts();
+        assertTrue(Arrays.equals(starts(false, false, false), found));
+    }
+
+    /** Long lists are scanned in parallel chunks; the result must not depend on the chunks. */
+    public void testSortedInParallel() {
+        final int count = 100000;
+        String[] senders = new String[count];
+        boolean[] expected = new boolean[count];
+        for (int row = 0; row < count; row++) {
+            senders[row] = "sender" + (row / 3 + row / 7) % 5;
+            expected[row] = row == 0 || !senders[row].equals(senders[row - 1]);
+        }
+        boolean[] found = new SortedGrouper(sendersOnly(senders), null,
+                MessageListModel.GROUP_BY_SENDER, NOW, UTC).findGroupStarts();
+        assertTrue(Arrays.equals(expected, found));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.list;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link SubjectThreading}.
+ */
+public class SubjectThreadingTests extends TestCase {
+
+    private static void assertThread(String expected, String subject) {
+        assertEquals(expected, SubjectThreading.normalize(subject));
+        assertEquals(SubjectThreading.threadKey(expected), SubjectThreading.threadKey(subject));
+    }
+
+    public void testPrefixes() {
+        assertThread("lunch", "Re: Lunch");
+        assertThread("lunch", "RE:lunch");
+        assertThread("lunch", "Fwd: Lunch");
+        assertThread("lunch", "Fw: Lunch");
+        assertThread("lunch", "AW: WG: Lunch");
+        assertThread("lunch", "Re: Fwd: re: Lunch");
+        assertThread("lunch", "Re[2]: Lunch");
+        assertThread("lunch", "Fwd(3): Lunch");
+        assertThread("lunch", "Re : Lunch");
+        assertThread("lunch", "  Re:   Lunch");
+        // full width colon
+        assertThread("lunch", "Re\uff1a Lunch");
+    }
+
+    public void testNotPrefixes() {
+        assertThread("report: lunch", "Report: Lunch");
+        assertThread("re[x]: lunch", "Re[x]: Lunch");
+        assertThread("re lunch", "Re Lunch");
+        assertThread("lunch re:", "Lunch Re:");
+    }
+
+    public void testWhitespaceAndCase() {
+        assertThread("lunch at noon", "  Lunch \t at\n noon  ");
+        assertThread("lunch at noon", "LUNCH AT NOON");
+        // folding through upper case gives final and medial sigma one form
+        assertEquals(SubjectThreading.threadKey("\u03bf\u03b4\u03bf\u03c3"),
+                SubjectThreading.threadKey("\u039f\u0394\u039f\u03a3"));
+        assertEquals(SubjectThreading.threadKey("\u03bf\u03b4\u03bf\u03c3"),
+                SubjectThreading.threadKey("\u03bf\u03b4\u03bf\u03c2"));
+    }
+
+    public void testEmpty() {
+        assertThread("", null);
+        assertThread("", "");
+        assertThread("", "   ");
+        assertThread("", "Re:");
+        assertThread("", "Re: Fwd:  ");
+    }
+
+    public void testDistinctKeys() {
+        String[] subjects = { "lunch", "lunch at noon", "lunchatnoon", "dinner", "", "lunc" };
+        for (int i = 0; i < subjects.length; i++) {
+            for (int j = i + 1; j < subjects.length; j++) {
+                assertFalse(subjects[i] + " / " + subjects[j],
+                        SubjectThreading.threadKey(subjects[i])
+                                == SubjectThreading.threadKey(subjects[j]));
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.activity;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.Log;
+
+import com.victor.emailcommon.Logging;
+
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * The caches of the message list, in tiers that are given up one after the other as memory
+ * gets tighter, so the list gets gradually slower rather than the process getting killed:
+ * <ol>
+ * <li>{@link #TIER_OFFSCREEN}: text and layouts of row views that are off screen, rebuilt
+ *     when the view is bound again, and message bodies loaded ahead of being opened;
+ * <li>{@link #TIER_FORMATTERS}: formatted and ellipsized text shared between rows;
+ * <li>{@link #TIER_DRAWING}: row coordinates per width and the decoded icon bitmaps, which
+ *     every row needs again on its next layout or draw.
+ * </ol>
+ * Caches register themselves with a tier; the registry only keeps weak references, so a cache
+ * that belongs to e.g. an adapter goes away with it.  All methods are called on the UI thread.
+ *
+ * <p>The registry also resets the drawing caches of the rows when the font scale or the locale
+ * change, since text measured before no longer fits.
+ */
+public class ListCacheRegistry implements ComponentCallbacks2 {
+    public static final int TIER_OFFSCREEN = 0;
+    public static final int TIER_FORMATTERS = 1;
+    public static final int TIER_DRAWING = 2;
+    private static final String[] TIER_NAMES = { "off-screen", "formatters", "drawing" };
+
+    /** A cache the registry can empty. */
+    public interface TrimmableCache {
+        /** @return an estimate of the bytes the cache holds. */
+        long getRetainedBytes();
+
+        /**
+         * Empty the cache.
+         *
+         * @return an estimate of the bytes freed.
+         */
+        long trim();
+    }
+
+    private static ListCacheRegistry sInstance;
+
+    private static class Entry {
+        final int mTier;
+        final String mName;
+        final WeakReference<TrimmableCache> mCache;
+        /** Bytes freed by all trims so far. */
+        long mFreedBytes;
+
+        Entry(int tier, String name, TrimmableCache cache) {
+            mTier = tier;
+            mName = name;
+            mCache = new WeakReference<TrimmableCache>(cache);
+        }
+    }
+
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    private int mLastTrimLevel = -1;
+    private long mLastFreedBytes;
+    private float mFontScale;
+    private Locale mLocale;
+
+    // The caches of the row views, which are static.
+    private static final TrimmableCache OFFSCREEN_VIEWS = new TrimmableCache() {
+        @Override
+        public long getRetainedBytes() {
+            return MessageListItem.getOffscreenRetainedBytes();
+        }
+
+        @Override
+        public long trim() {
+            return MessageListItem.trimOffscreenViews();
+        }
+    };
+
+    private static final TrimmableCache COORDINATES = new TrimmableCache() {
+        @Override
+        public long getRetainedBytes() {
+            return MessageListItemCoordinates.getCacheRetainedBytes();
+        }
+
+        @Override
+        public long trim() {
+            return MessageListItemCoordinates.trimCache();
+        }
+    };
+
+    private static final TrimmableCache ICONS = new TrimmableCache() {
+        @Override
+        public long getRetainedBytes() {
+            return MessageListItem.getIconBytes();
+        }
+
+        @Override
+        public long trim() {
+            return MessageListItem.releaseIcons();
+        }
+    };
+
+    private ListCacheRegistry() {
+        register(TIER_OFFSCREEN, "off-screen rows", OFFSCREEN_VIEWS);
+        register(TIER_OFFSCREEN, "prefetched bodies", MessageBodyPrefetcher.getBodyCache());
+        register(TIER_FORMATTERS, "sender ellipsis", MessageListItem.getSenderCache());
+        register(TIER_DRAWING, "coordinates", COORDINATES);
+        register(TIER_DRAWING, "icons", ICONS);
+    }
+
+    /**
+     * @return the registry of the process, which listens to the memory levels of the
+     *     application {@code context} belongs to.
+     */
+    public static synchronized ListCacheRegistry getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ListCacheRegistry();
+            Configuration config = context.getResources().getConfiguration();
+            sInstance.mFontScale = config.fontScale;
+            sInstance.mLocale = config.locale;
+            context.getApplicationContext().registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Add a cache to one of the TIER_ constants.  The registry keeps a weak reference; the
+     * caller keeps the cache alive as long as it is in use.
+     */
+    public void register(int tier, String name, TrimmableCache cache) {
+        mEntries.add(new Entry(tier, name, cache));
+    }
+
+    /**
+     * @return the tier to trim up to for a level of {@link ComponentCallbacks2#onTrimMemory},
+     *     or -1 to keep every cache.
+     */
+    /* package */ static int getTierForLevel(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            // next in line to be killed, or about to be: keep only what is cheap to rebuild
+            return TIER_DRAWING;
+        }
+        if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+            return TIER_FORMATTERS;
+        }
+        if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            // includes TRIM_MEMORY_UI_HIDDEN: no row is on screen any more
+            return TIER_OFFSCREEN;
+        }
+        return -1;
+    }
+
+    /**
+     * Empty the caches of {@code tier} and the tiers before it.
+     *
+     * @return an estimate of the bytes freed
+     */
+    public long trimTo(int tier) {
+        long freed = 0;
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            Entry entry = mEntries.get(i);
+            TrimmableCache cache = entry.mCache.get();
+            if (cache == null) {
+                mEntries.remove(i);
+            } else if (entry.mTier <= tier) {
+                long bytes = cache.trim();
+                entry.mFreedBytes += bytes;
+                freed += bytes;
+            }
+        }
+        return freed;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        int tier = getTierForLevel(level);
+        if (tier < 0) {
+            return;
+        }
+        mLastTrimLevel = level;
+        mLastFreedBytes = trimTo(tier);
+        Log.i(Logging.LOG_TAG, "Trim memory level " + level + ": freed about "
+                + mLastFreedBytes / 1024 + " KB of " + TIER_NAMES[tier] + " list caches");
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        if (newConfig.fontScale != mFontScale
+                || (newConfig.locale != null && !newConfig.locale.equals(mLocale))) {
+            mFontScale = newConfig.fontScale;
+            mLocale = newConfig.locale;
+            MessageListItem.resetDrawingCaches();
+        }
+    }
+
+    /** Writes what each cache holds and has freed, each line starting with {@code prefix}. */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("List caches (tier, holds, freed so far); last trim level "
+                + mLastTrimLevel + " freed " + mLastFreedBytes + " B:");
+        for (Entry entry : mEntries) {
+            TrimmableCache cache = entry.mCache.get();
+            writer.print(prefix);
+            writer.println(String.format("  %-18s %-10s %10d B %10d B", entry.mName,
+                    TIER_NAMES[entry.mTier], cache == null ? 0 : cache.getRetainedBytes(),
+                    entry.mFreedBytes));
+        }
+        writer.flush();
+    }
+}
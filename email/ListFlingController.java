@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.victor.email.activity;
+
+import android.os.SystemClock;
+import android.view.View;
+import android.widget.AbsListView;
+import android.widget.ListView;
+
+/**
+ * Draws message rows cheaply while the list flings faster than anyone can read it.  The scroll
+ * speed is estimated from how fast the first visible position changes.  Above
+ * {@link #FAST_SCREENS_PER_SECOND} screens per second, rows the adapter binds get only their
+ * subject, and draw the sender, the date and one line of subject, with no snippet, search
+ * highlighting or subject layout.  Once the speed drops below
+ * {@link #SLOW_SCREENS_PER_SECOND}, or the list stops, the cheap rows get their text a few per
+ * frame, the rows nearest the middle of the list first.
+ *
+ * <p>All methods are called on the UI thread.
+ */
+/* package */ class ListFlingController implements AbsListView.OnScrollListener {
+    /** Above this speed a fling is fast, and rows are bound cheaply. */
+    private static final float FAST_SCREENS_PER_SECOND = 3;
+    /** Below this speed rows can be read again, and the cheap ones get their text. */
+    private static final float SLOW_SCREENS_PER_SECOND = 1;
+    /** Cheap rows given their text per frame, about a row's share of a frame's budget. */
+    private static final int ROWS_PER_FRAME = 2;
+
+    private final AbsListView mListView;
+    private final MessagesAdapter mAdapter;
+
+    private int mScrollState = SCROLL_STATE_IDLE;
+    private boolean mFast;
+    /** The first visible position when it last changed, or -1 before the list scrolls. */
+    private int mLastFirstVisible = -1;
+    private long mLastChangeMillis;
+    private float mRowsPerSecond;
+    private boolean mFinishPosted;
+
+    private final Runnable mFinishRows = new Runnable() {
+        @Override
+        public void run() {
+            mFinishPosted = false;
+            finishCheapRows(ROWS_PER_FRAME);
+        }
+    };
+
+    private ListFlingController(AbsListView listView, MessagesAdapter adapter) {
+        mListView = listView;
+        mAdapter = adapter;
+    }
+
+    /** Start drawing the rows of {@code listView} cheaply during fast flings. */
+    public static ListFlingController attach(AbsListView listView, MessagesAdapter adapter) {
+        ListFlingController controller = new ListFlingController(listView, adapter);
+        adapter.getScrollDispatcher().addListener(listView, controller);
+        adapter.setFlingController(controller);
+        return controller;
+    }
+
+    /** Stop, and give every cheap row its text. */
+    public void detach() {
+        mAdapter.setFlingController(null);
+        mAdapter.getScrollDispatcher().removeListener(this);
+        mListView.removeCallbacks(mFinishRows);
+        mFinishPosted = false;
+        mFast = false;
+        finishCheapRows(Integer.MAX_VALUE);
+    }
+
+    /** @return true if rows bound now should be drawn cheaply. */
+    public boolean isFast() {
+        return mFast;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        mScrollState = scrollState;
+        if (scrollState != SCROLL_STATE_FLING) {
+            setFast(false);
+        }
+        if (scrollState == SCROLL_STATE_IDLE) {
+            mLastFirstVisible = -1;
+            mRowsPerSecond = 0;
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        if (mScrollState != SCROLL_STATE_IDLE) {
+            updateSpeed(firstVisibleItem, visibleItemCount);
+        }
+    }
+
+    private void updateSpeed(int firstVisibleItem, int visibleItemCount) {
+        long now = SystemClock.uptimeMillis();
+        if (mLastFirstVisible < 0) {
+            mLastFirstVisible = firstVisibleItem;
+            mLastChangeMillis = now;
+            return;
+        }
+        long elapsed = Math.max(1, now - mLastChangeMillis);
+        if (firstVisibleItem != mLastFirstVisible) {
+            float rowsPerSecond = Math.abs(firstVisibleItem - mLastFirstVisible) * 1000f / elapsed;
+            mRowsPerSecond = (mRowsPerSecond + rowsPerSecond) / 2;
+            mLastFirstVisible = firstVisibleItem;
+            mLastChangeMillis = now;
+        } else {
+            // not a row went by since the last change, so less than one in that time
+            mRowsPerSecond = Math.min(mRowsPerSecond, 1000f / elapsed);
+        }
+        int screen = Math.max(1, visibleItemCount);
+        if (mScrollState == SCROLL_STATE_FLING
+                && mRowsPerSecond > screen * FAST_SCREENS_PER_SECOND) {
+            setFast(true);
+        } else if (mRowsPerSecond < screen * SLOW_SCREENS_PER_SECOND) {
+            setFast(false);
+        }
+    }
+
+    private void setFast(boolean fast) {
+        if (mFast && !fast && !mFinishPosted) {
+            mFinishPosted = mListView.post(mFinishRows);
+        }
+        mFast = fast;
+    }
+
+    /**
+     * Give up to {@code max} cheap rows on screen their text, those nearest the middle of the
+     * list first, and post the rest for after the next frame.
+     */
+    private void finishCheapRows(int max) {
+        if (mFast) {
+            return;
+        }
+        int middle = mListView.getHeight() / 2;
+        int firstPosition = mListView.getFirstVisiblePosition();
+        if (mListView instanceof ListView) {
+            firstPosition -= ((ListView) mListView).getHeaderViewsCount();
+        }
+        for (int done = 0; done < max; done++) {
+            MessageListItem nearest = null;
+            int nearestIndex = -1;
+            int nearestDistance = Integer.MAX_VALUE;
+            for (int i = 0; i < mListView.getChildCount(); i++) {
+                View child = mListView.getChildAt(i);
+                if (child instanceof MessageListItem && ((MessageListItem) child).mCheap) {
+                    int distance = Math.abs((child.getTop() + child.getBottom()) / 2 - middle);
+                    if (distance < nearestDistance) {
+                        nearest = (MessageListItem) child;
+                        nearestIndex = i;
+                        nearestDistance = distance;
+                    }
+                }
+            }
+            if (nearest == null) {
+                return;
+            }
+            if (!mAdapter.finishCheapRow(nearest, firstPosition + nearestIndex)) {
+                // the row shows another item than the cursor has there, so the data changed
+                // and every row is bound again anyway
+                return;
+            }
+        }
+        if (!mFinishPosted) {
+            mFinishPosted = mListView.post(mFinishRows);
+        }
+    }
+}
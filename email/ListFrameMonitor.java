@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.activity;
+
+import android.text.Spanned;
+import android.view.ViewTreeObserver;
+import android.widget.AbsListView;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Ties dropped frames of the message list to the rows that caused them.  While the list
+ * scrolls, every row the adapter binds and the list lays out and draws is recorded against the
+ * frame it happened in, with the time each phase took.  When a frame ends more than
+ * {@link #JANK_NANOS} after the previous one, it missed a deadline, and its rows are kept.
+ * {@link #dump} lists the worst of them, and compares the cost of headers, long subjects and
+ * highlighted search results in janky frames with all frames.
+ *
+ * <p>A frame ends with a runnable posted from the list's pre-draw, which runs once the
+ * traversal that drew the frame is done; unlike Choreographer frame callbacks this works on
+ * every API level the app supports.  Frames while the list is idle are not counted, since the
+ * gap before them is the user's, not the list's.
+ *
+ * <p>All methods are called on the UI thread.
+ */
+/* package */ class ListFrameMonitor implements ViewTreeObserver.OnPreDrawListener,
+        AbsListView.OnScrollListener {
+    public static final int PHASE_BIND = 0;
+    public static final int PHASE_LAYOUT = 1;
+    public static final int PHASE_DRAW = 2;
+    private static final String[] PHASE_NAMES = { "bind", "layout", "draw" };
+
+    /** One frame at 60 frames per second. */
+    private static final long FRAME_NANOS = 1000000000L / 60;
+    /** A frame this long after the previous one missed at least one vsync. */
+    private static final long JANK_NANOS = FRAME_NANOS * 3 / 2;
+    /** Subjects longer than this take more than a line to lay out in the normal mode. */
+    private static final int LONG_SUBJECT = 80;
+    /** Rows recorded per frame; a frame rarely touches more than a screenful. */
+    private static final int MAX_ROWS_PER_FRAME = 64;
+    /** Rows of janky frames kept for the report. */
+    private static final int WORST_ROWS = 20;
+
+    // Kinds of rows compared in the report; a row is a header or a message, and may also have a
+    // long subject or highlighted search terms.
+    private static final int KIND_HEADER = 0;
+    private static final int KIND_MESSAGE = 1;
+    private static final int KIND_LONG_SUBJECT = 2;
+    private static final int KIND_HIGHLIGHTED = 3;
+    private static final String[] KIND_NAMES = {
+        "headers", "messages", "long subjects", "highlighted",
+    };
+    private static final int ALL_FRAMES = 0;
+    private static final int JANKY_FRAMES = 1;
+
+    /** What one row cost in one frame. */
+    private static class Row {
+        int mPosition;
+        boolean mHeader;
+        int mSubjectLength;
+        boolean mHighlighted;
+        final long[] mNanos = new long[PHASE_NAMES.length];
+        /** How long the frame the row was in took. */
+        long mFrameNanos;
+
+        long getTotalNanos() {
+            return mNanos[PHASE_BIND] + mNanos[PHASE_LAYOUT] + mNanos[PHASE_DRAW];
+        }
+
+        void set(Row other) {
+            mPosition = other.mPosition;
+            mHeader = other.mHeader;
+            mSubjectLength = other.mSubjectLength;
+            mHighlighted = other.mHighlighted;
+            System.arraycopy(other.mNanos, 0, mNanos, 0, mNanos.length);
+            mFrameNanos = other.mFrameNanos;
+        }
+    }
+
+    private static final Comparator<Row> BY_COST = new Comparator<Row>() {
+        @Override
+        public int compare(Row lhs, Row rhs) {
+            long left = lhs.getTotalNanos();
+            long right = rhs.getTotalNanos();
+            return left > right ? -1 : left < right ? 1 : 0;
+        }
+    };
+
+    private final AbsListView mListView;
+    private final MessagesAdapter mAdapter;
+
+    private int mScrollState = SCROLL_STATE_IDLE;
+    private boolean mEndOfFramePosted;
+    /** When the previous frame ended, or 0 if none has since the list started scrolling. */
+    private long mLastFrameEnd;
+
+    private final Row[] mFrameRows = new Row[MAX_ROWS_PER_FRAME];
+    private int mFrameRowCount;
+    private final Row[] mWorstRows = new Row[WORST_ROWS];
+    private int mWorstRowCount;
+
+    private long mFrames;
+    private long mJankyFrames;
+    private long mWorstFrameNanos;
+    /** Rows and their total time by kind, in all frames and in janky frames. */
+    private final long[][] mKindRows = new long[2][KIND_NAMES.length];
+    private final long[][] mKindNanos = new long[2][KIND_NAMES.length];
+    private final long[] mRows = new long[2];
+    private final long[] mRowNanos = new long[2];
+
+    private final Runnable mEndOfFrame = new Runnable() {
+        @Override
+        public void run() {
+            mEndOfFramePosted = false;
+            endFrame();
+        }
+    };
+
+    private ListFrameMonitor(AbsListView listView, MessagesAdapter adapter) {
+        mListView = listView;
+        mAdapter = adapter;
+        for (int i = 0; i < MAX_ROWS_PER_FRAME; i++) {
+            mFrameRows[i] = new Row();
+        }
+        for (int i = 0; i < WORST_ROWS; i++) {
+            mWorstRows[i] = new Row();
+        }
+    }
+
+    /** Start monitoring {@code listView}, which shows the rows of {@code adapter}. */
+    public static ListFrameMonitor attach(AbsListView listView, MessagesAdapter adapter) {
+        ListFrameMonitor monitor = new ListFrameMonitor(listView, adapter);
+        adapter.getScrollDispatcher().addListener(listView, monitor);
+        listView.getViewTreeObserver().addOnPreDrawListener(monitor);
+        adapter.setFrameMonitor(monitor);
+        return monitor;
+    }
+
+    /** Stop monitoring. */
+    public void detach() {
+        mAdapter.setFrameMonitor(null);
+        mAdapter.getScrollDispatcher().removeListener(this);
+        mListView.getViewTreeObserver().removeOnPreDrawListener(this);
+        mListView.removeCallbacks(mEndOfFrame);
+        mEndOfFramePosted = false;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if ((mScrollState == SCROLL_STATE_IDLE) != (scrollState == SCROLL_STATE_IDLE)) {
+            mLastFrameEnd = 0;
+            mFrameRowCount = 0;
+        }
+        mScrollState = scrollState;
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+    }
+
+    @Override
+    public boolean onPreDraw() {
+        if (mScrollState != SCROLL_STATE_IDLE && !mEndOfFramePosted) {
+            mEndOfFramePosted = mListView.post(mEndOfFrame);
+        }
+        return true;
+    }
+
+    /**
+     * Record that {@code view}, at {@code position}, went through {@code phase} since
+     * {@code start}, a {@link System#nanoTime} value.
+     */
+    public void onRow(int phase, int position, MessageListItem view, long start) {
+        if (mScrollState == SCROLL_STATE_IDLE) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        boolean header = view instanceof MessageListItemGroup;
+        Row row = null;
+        for (int i = 0; i < mFrameRowCount; i++) {
+            if (mFrameRows[i].mPosition == position && mFrameRows[i].mHeader == header) {
+                row = mFrameRows[i];
+                break;
+            }
+        }
+        if (row == null) {
+            if (mFrameRowCount == MAX_ROWS_PER_FRAME) {
+                return;
+            }
+            row = mFrameRows[mFrameRowCount++];
+            row.mPosition = position;
+            row.mHeader = header;
+            Arrays.fill(row.mNanos, 0);
+        }
+        row.mNanos[phase] += nanos;
+        row.mSubjectLength = view.mSubject == null ? 0 : view.mSubject.length();
+        row.mHighlighted = view.mSnippet instanceof Spanned;
+    }
+
+    private void endFrame() {
+        long now = System.nanoTime();
+        if (mScrollState == SCROLL_STATE_IDLE) {
+            return;
+        }
+        if (mLastFrameEnd != 0) {
+            long frameNanos = now - mLastFrameEnd;
+            boolean janky = frameNanos > JANK_NANOS;
+            mFrames++;
+            if (janky) {
+                mJankyFrames++;
+                mWorstFrameNanos = Math.max(mWorstFrameNanos, frameNanos);
+            }
+            for (int i = 0; i < mFrameRowCount; i++) {
+                Row row = mFrameRows[i];
+                row.mFrameNanos = frameNanos;
+                addRow(ALL_FRAMES, row);
+                if (janky) {
+                    addRow(JANKY_FRAMES, row);
+                    keepIfWorst(row);
+                }
+            }
+        }
+        mLastFrameEnd = now;
+        mFrameRowCount = 0;
+    }
+
+    private void addRow(int frames, Row row) {
+        long nanos = row.getTotalNanos();
+        mRows[frames]++;
+        mRowNanos[frames] += nanos;
+        addKind(frames, row.mHeader ? KIND_HEADER : KIND_MESSAGE, nanos);
+        if (row.mSubjectLength > LONG_SUBJECT) {
+            addKind(frames, KIND_LONG_SUBJECT, nanos);
+        }
+        if (row.mHighlighted) {
+            addKind(frames, KIND_HIGHLIGHTED, nanos);
+        }
+    }
+
+    private void addKind(int frames, int kind, long nanos) {
+        mKindRows[frames][kind]++;
+        mKindNanos[frames][kind] += nanos;
+    }
+
+    private void keepIfWorst(Row row) {
+        if (mWorstRowCount < WORST_ROWS) {
+            mWorstRows[mWorstRowCount++].set(row);
+            return;
+        }
+        Row cheapest = mWorstRows[0];
+        for (int i = 1; i < WORST_ROWS; i++) {
+            if (mWorstRows[i].getTotalNanos() < cheapest.getTotalNanos()) {
+                cheapest = mWorstRows[i];
+            }
+        }
+        if (row.getTotalNanos() > cheapest.getTotalNanos()) {
+            cheapest.set(row);
+        }
+    }
+
+    public void reset() {
+        mFrames = 0;
+        mJankyFrames = 0;
+        mWorstFrameNanos = 0;
+        mWorstRowCount = 0;
+        for (int frames = ALL_FRAMES; frames <= JANKY_FRAMES; frames++) {
+            Arrays.fill(mKindRows[frames], 0);
+            Arrays.fill(mKindNanos[frames], 0);
+            mRows[frames] = 0;
+            mRowNanos[frames] = 0;
+        }
+    }
+
+    /** Writes the report, each line starting with {@code prefix}, as dumpsys would. */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println(String.format("Message list frames while scrolling: %d, janky: %d,"
+                + " worst %.1f ms", mFrames, mJankyFrames, mWorstFrameNanos / 1e6));
+        writer.print(prefix);
+        writer.println("  Mean ms per row (rows), all frames / janky frames:");
+        writer.print(prefix);
+        writer.println(String.format("    %-14s %7.3f (%d) / %7.3f (%d)", "all rows",
+                mean(mRowNanos[ALL_FRAMES], mRows[ALL_FRAMES]), mRows[ALL_FRAMES],
+                mean(mRowNanos[JANKY_FRAMES], mRows[JANKY_FRAMES]), mRows[JANKY_FRAMES]));
+        for (int kind = 0; kind < KIND_NAMES.length; kind++) {
+            writer.print(prefix);
+            writer.println(String.format("    %-14s %7.3f (%d) / %7.3f (%d)", KIND_NAMES[kind],
+                    mean(mKindNanos[ALL_FRAMES][kind], mKindRows[ALL_FRAMES][kind]),
+                    mKindRows[ALL_FRAMES][kind],
+                    mean(mKindNanos[JANKY_FRAMES][kind], mKindRows[JANKY_FRAMES][kind]),
+                    mKindRows[JANKY_FRAMES][kind]));
+        }
+        Row[] worst = Arrays.copyOf(mWorstRows, mWorstRowCount);
+        Arrays.sort(worst, BY_COST);
+        writer.print(prefix);
+        writer.println("  Costliest rows of janky frames (ms):");
+        for (Row row : worst) {
+            writer.print(prefix);
+            writer.println(String.format("    position %d %s: bind %.3f, layout %.3f, draw %.3f;"
+                    + " subject %d chars%s; frame %.1f",
+                    row.mPosition, row.mHeader ? "header" : "message",
+                    row.mNanos[PHASE_BIND] / 1e6, row.mNanos[PHASE_LAYOUT] / 1e6,
+                    row.mNanos[PHASE_DRAW] / 1e6, row.mSubjectLength,
+                    row.mHighlighted ? ", highlighted" : "", row.mFrameNanos / 1e6));
+        }
+        writer.flush();
+    }
+
+    private static double mean(long nanos, long rows) {
+        return rows == 0 ? 0 : nanos / 1e6 / rows;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.activity;
+
+import android.widget.AbsListView;
+
+/**
+ * The scroll listener of the message list, which passes every scroll event on to the listeners
+ * added to it: the list fragment's own, and those of the helpers that watch the list scroll,
+ * such as {@link ListFlingController}.  A list has a single scroll listener, so rather than
+ * taking it over in turn, they all go through this one, which the adapter owns; see
+ * {@link MessagesAdapter#getScrollDispatcher}.
+ *
+ * <p>Listeners are told in the order they were added.  All methods are called on the UI thread.
+ */
+/* package */ class ListScrollDispatcher implements AbsListView.OnScrollListener {
+    private static final AbsListView.OnScrollListener[] NO_LISTENERS =
+            new AbsListView.OnScrollListener[0];
+
+    /** The list this is the scroll listener of, or null before a listener is added. */
+    private AbsListView mListView;
+    /** Replaced rather than changed, so that a listener may remove itself while it is told. */
+    private AbsListView.OnScrollListener[] mListeners = NO_LISTENERS;
+
+    /**
+     * Tell {@code listener} about the scroll events of {@code listView}, making this the scroll
+     * listener of the list if it is not yet.
+     */
+    public void addListener(AbsListView listView, AbsListView.OnScrollListener listener) {
+        final int count = mListeners.length;
+        AbsListView.OnScrollListener[] listeners = new AbsListView.OnScrollListener[count + 1];
+        System.arraycopy(mListeners, 0, listeners, 0, count);
+        listeners[count] = listener;
+        mListeners = listeners;
+        if (listView != mListView) {
+            mListView = listView;
+            listView.setOnScrollListener(this);
+        }
+    }
+
+    public void removeListener(AbsListView.OnScrollListener listener) {
+        final int count = mListeners.length;
+        for (int i = 0; i < count; i++) {
+            if (mListeners[i] == listener) {
+                AbsListView.OnScrollListener[] listeners =
+                        new AbsListView.OnScrollListener[count - 1];
+                System.arraycopy(mListeners, 0, listeners, 0, i);
+                System.arraycopy(mListeners, i + 1, listeners, i, count - 1 - i);
+                mListeners = listeners;
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        for (AbsListView.OnScrollListener listener : mListeners) {
+            listener.onScrollStateChanged(view, scrollState);
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        for (AbsListView.OnScrollListener listener : mListeners) {
+            listener.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.victor.email.activity;
+
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.AbsListView;
+import android.widget.ListView;
+
+import com.victor.email.list.MemoryAccounting;
+import com.victor.email.list.MessageListStats;
+import com.victor.emailcommon.Logging;
+import com.victor.emailcommon.provider.EmailContent.Body;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the bodies of the messages the user is likely to open next, so that opening one from
+ * the list does not wait for its body.  Whenever the visible rows of the list change, the
+ * candidates are, in order: the unread messages on screen, the other messages on screen, and
+ * {@link #LOOKAHEAD_ROWS} rows further in the direction the list scrolls.  At most
+ * {@link #MAX_LOADS} bodies load at a time; loads still queued for messages that are no longer
+ * candidates are cancelled, and those already running drop what they load.  Nothing is loaded
+ * during a fling, when rows go by unread.
+ *
+ * <p>Bodies are kept in a cache of {@link #CACHE_BYTES} shared by all lists.  Opening a message
+ * from the list takes its body from there with {@link #getBody}, see
+ * {@link MessagesAdapter#onMessageOpen}, and hands it to the message view.  Entries expire
+ * after {@link #MAX_AGE_MILLIS}, since the body may have been downloaded in full meanwhile, and
+ * the cache is the first given up under memory pressure; see {@link ListCacheRegistry}.
+ *
+ * <p>All methods but {@link #getBody} are called on the UI thread.
+ */
+/* package */ class MessageBodyPrefetcher implements AbsListView.OnScrollListener {
+    /** Bodies loading at the same time. */
+    private static final int MAX_LOADS = 2;
+    /** Rows beyond the visible ones, in the direction of scrolling, whose bodies are loaded. */
+    private static final int LOOKAHEAD_ROWS = 4;
+    /** Bodies queued or loading at most; older candidates are cancelled first. */
+    private static final int MAX_CANDIDATES = 8;
+    private static final int CACHE_BYTES = 512 * 1024;
+    /** Bodies larger than this would push out several others, and are not kept. */
+    private static final int MAX_BODY_BYTES = CACHE_BYTES / 4;
+    private static final long MAX_AGE_MILLIS = 60 * 1000;
+
+    /** A loaded body, and when it was loaded. */
+    private static class Entry {
+        final Body mBody;
+        final long mLoadedMillis;
+        final int mBytes;
+
+        Entry(Body body) {
+            mBody = body;
+            mLoadedMillis = SystemClock.uptimeMillis();
+            mBytes = (int) (MemoryAccounting.object(8 * MemoryAccounting.REFERENCE + 3 * 8)
+                    + MemoryAccounting.string(body.mHtmlContent)
+                    + MemoryAccounting.string(body.mTextContent)
+                    + MemoryAccounting.string(body.mHtmlReply)
+                    + MemoryAccounting.string(body.mTextReply)
+                    + MemoryAccounting.string(body.mIntroText));
+        }
+    }
+
+    private static class BodyCache extends LruCache<Long, Entry>
+            implements ListCacheRegistry.TrimmableCache {
+        BodyCache() {
+            super(CACHE_BYTES);
+        }
+
+        @Override
+        protected int sizeOf(Long messageId, Entry entry) {
+            return entry.mBytes;
+        }
+
+        @Override
+        public long getRetainedBytes() {
+            return size();
+        }
+
+        @Override
+        public long trim() {
+            long bytes = size();
+            evictAll();
+            return bytes;
+        }
+    }
+
+    private static final BodyCache sBodies = new BodyCache();
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(MAX_LOADS,
+            MAX_LOADS, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "MessageBodyPrefetcher");
+                }
+            });
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final Context mContext;
+    private final AbsListView mListView;
+    private final MessagesAdapter mAdapter;
+
+    private int mScrollState = SCROLL_STATE_IDLE;
+    private int mFirstVisible = -1;
+    private int mVisibleCount;
+    /** 1 if the list last scrolled down, -1 if up, 0 before it scrolled. */
+    private int mDirection;
+    /** Loads queued or running, by message id; a load removes itself when done. */
+    private final ConcurrentHashMap<Long, Load> mPending = new ConcurrentHashMap<Long, Load>();
+    private final long[] mCandidates = new long[MAX_CANDIDATES];
+    private int mCandidateCount;
+
+    private MessageBodyPrefetcher(Context context, AbsListView listView,
+            MessagesAdapter adapter) {
+        mContext = context.getApplicationContext();
+        mListView = listView;
+        mAdapter = adapter;
+    }
+
+    /** Start loading the bodies of the messages near the visible rows of {@code listView}. */
+    public static MessageBodyPrefetcher attach(Context context, AbsListView listView,
+            MessagesAdapter adapter) {
+        MessageBodyPrefetcher prefetcher = new MessageBodyPrefetcher(context, listView, adapter);
+        adapter.getScrollDispatcher().addListener(listView, prefetcher);
+        return prefetcher;
+    }
+
+    /** Stop, and cancel the loads still pending. */
+    public void detach() {
+        mAdapter.getScrollDispatcher().removeListener(this);
+        mCandidateCount = 0;
+        cancelOtherLoads();
+    }
+
+    /**
+     * @return the prefetched body of {@code messageId}, or null if it was not prefetched or is
+     *     too old; the caller then loads it.  May be called on any thread.
+     */
+    public static Body getBody(long messageId) {
+        Entry entry = sBodies.get(messageId);
+        if (entry != null && SystemClock.uptimeMillis() - entry.mLoadedMillis > MAX_AGE_MILLIS) {
+            sBodies.remove(messageId);
+            entry = null;
+        }
+        MessageListStats.cacheLookup(MessageListStats.CACHE_PREFETCHED_BODY, entry != null);
+        return entry == null ? null : entry.mBody;
+    }
+
+    /* package */ static ListCacheRegistry.TrimmableCache getBodyCache() {
+        return sBodies;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        mScrollState = scrollState;
+        if (scrollState == SCROLL_STATE_FLING) {
+            // what is on screen now is gone before it loads
+            mCandidateCount = 0;
+            cancelOtherLoads();
+        } else if (mFirstVisible >= 0) {
+            prefetch();
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        if (firstVisibleItem != mFirstVisible || visibleItemCount != mVisibleCount) {
+            if (mFirstVisible >= 0 && firstVisibleItem != mFirstVisible) {
+                mDirection = firstVisibleItem > mFirstVisible ? 1 : -1;
+            }
+            mFirstVisible = firstVisibleItem;
+            mVisibleCount = visibleItemCount;
+            if (mScrollState != SCROLL_STATE_FLING) {
+                prefetch();
+            }
+        }
+    }
+
+    private void prefetch() {
+        mCandidateCount = 0;
+        int first = mFirstVisible;
+        if (mListView instanceof ListView) {
+            first -= ((ListView) mListView).getHeaderViewsCount();
+        }
+        int end = first + mVisibleCount;
+        // unread messages on screen, then the rest of the screen, in the direction of scrolling
+        addCandidates(first, end, true);
+        addCandidates(first, end, false);
+        if (mDirection >= 0) {
+            addCandidates(end, end + LOOKAHEAD_ROWS, false);
+        }
+        if (mDirection <= 0) {
+            addCandidates(first - LOOKAHEAD_ROWS, first, false);
+        }
+        cancelOtherLoads();
+        for (int i = 0; i < mCandidateCount; i++) {
+            load(mCandidates[i]);
+        }
+    }
+
+    private void addCandidates(int start, int end, boolean unreadOnly) {
+        start = Math.max(0, start);
+        end = Math.min(mAdapter.getCount(), end);
+        for (int i = 0; i < end - start && mCandidateCount < MAX_CANDIDATES; i++) {
+            int position = mDirection < 0 ? end - 1 - i : start + i;
+            long messageId = mAdapter.getMessageIdAt(position, unreadOnly);
+            if (messageId >= 0 && !isCandidate(messageId)) {
+                mCandidates[mCandidateCount++] = messageId;
+            }
+        }
+    }
+
+    private boolean isCandidate(long messageId) {
+        for (int i = 0; i < mCandidateCount; i++) {
+            if (mCandidates[i] == messageId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Cancel the loads of messages that are not candidates. */
+    private void cancelOtherLoads() {
+        Iterator<Map.Entry<Long, Load>> iterator = mPending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Load> load = iterator.next();
+            if (!isCandidate(load.getKey())) {
+                load.getValue().cancel();
+                iterator.remove();
+            }
+        }
+        sExecutor.purge();
+    }
+
+    private void load(long messageId) {
+        if (mPending.containsKey(messageId) || sBodies.get(messageId) != null) {
+            return;
+        }
+        Load load = new Load(messageId);
+        mPending.put(messageId, load);
+        load.mFuture = sExecutor.submit(load);
+    }
+
+    /**
+     * Loads one body into the cache, on a thread of {@link #sExecutor}.  Cancelling a queued
+     * load takes it off the queue; the provider query of a running one cannot be interrupted,
+     * so it checks whether it was cancelled before the query and before caching the body.
+     */
+    private class Load implements Runnable {
+        final long mMessageId;
+        Future<?> mFuture;
+        private volatile boolean mCancelled;
+
+        Load(long messageId) {
+            mMessageId = messageId;
+        }
+
+        void cancel() {
+            mCancelled = true;
+            mFuture.cancel(false);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                if (mCancelled) {
+                    return;
+                }
+                Body body = Body.restoreBodyWithMessageId(mContext, mMessageId);
+                // a body nobody is about to open would only push out those of the candidates
+                if (body != null && !mCancelled) {
+                    Entry entry = new Entry(body);
+                    if (entry.mBytes <= MAX_BODY_BYTES) {
+                        sBodies.put(mMessageId, entry);
+                    }
+                }
+            } catch (RuntimeException e) {
+                // the message view loads it again, and reports what went wrong
+                Log.w(Logging.LOG_TAG, "Cannot prefetch the body of message " + mMessageId, e);
+            } finally {
+                // a load cancelled while running may have been queued again meanwhile
+                mPending.remove(mMessageId, this);
+            }
+        }
+    }
+}
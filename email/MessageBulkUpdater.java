@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.activity;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.victor.email.Controller;
+import com.victor.email.MessagingController;
+import com.victor.email.list.MessageIdSet;
+import com.victor.emailcommon.Logging;
+import com.victor.emailcommon.provider.Account;
+import com.victor.emailcommon.provider.EmailContent;
+import com.victor.emailcommon.provider.EmailContent.Message;
+import com.victor.emailcommon.provider.EmailContent.MessageColumns;
+import com.victor.emailcommon.provider.Mailbox;
+import com.victor.emailcommon.utility.EmailAsyncTask;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Applies message list actions (favorite, read/unread, move, trash) to many messages at once.
+ *
+ * Instead of one provider update per message, the ids are split into chunks of
+ * {@link #BATCH_SIZE} and each chunk is written with a single
+ * {@link ContentResolver#applyBatch} call.  EmailProvider commits a batch in one transaction,
+ * so observers see one burst of changes per chunk and {@code ThrottlingCursorLoader} collapses
+ * it into a single reload, rather than reloading the list for every message.
+ *
+ * Updates go through {@link Message#SYNCED_CONTENT_URI} so they are uploaded, and as in the
+ * single message paths in {@link Controller}, the pending actions of the accounts touched are
+ * processed right away for accounts served by {@link MessagingController}; Exchange picks the
+ * changes up from the provider by itself.  All work runs on the serial async executor, so
+ * actions are applied in the order they were requested.  If a chunk fails, the chunks after it
+ * are not tried and the callback reports how many messages were written.
+ */
+/* package */ class MessageBulkUpdater {
+    /** Number of messages written per provider batch. */
+    /* package */ static final int BATCH_SIZE = 250;
+
+    private static final String[] MAILBOX_PROJECTION = new String[] {
+        MessageColumns.ID, MessageColumns.ACCOUNT_KEY, MessageColumns.MAILBOX_KEY
+    };
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_ACCOUNT_KEY = 1;
+    private static final int COLUMN_MAILBOX_KEY = 2;
+
+    private final Context mContext;
+
+    /**
+     * Callback invoked on a worker thread once an action has been written, or has failed.
+     */
+    public interface Callback {
+        /**
+         * @param applied the number of messages written
+         * @param requested the number of messages in the action; if more than {@code applied},
+         *     a chunk failed and the remaining messages were left unchanged
+         */
+        void onBulkUpdateFinished(int applied, int requested);
+    }
+
+    public MessageBulkUpdater(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    public void setRead(MessageIdSet ids, boolean read, Callback callback) {
+        update(new MessageIdSet[] { ids },
+                new ContentValues[] { flagValues(MessageColumns.FLAG_READ, read) }, callback);
+    }
+
+    public void setFavorite(MessageIdSet ids, boolean favorite, Callback callback) {
+        update(new MessageIdSet[] { ids },
+                new ContentValues[] { flagValues(MessageColumns.FLAG_FAVORITE, favorite) },
+                callback);
+    }
+
+    /**
+     * Writes read and favorite changes as one action: the messages in {@code read} are marked
+     * read, those in {@code unread} unread, and likewise for the favorite flag.  The chunks may
+     * mix the four sets, and {@code callback} is invoked once, after all of them.
+     */
+    public void setFlags(MessageIdSet read, MessageIdSet unread, MessageIdSet favorite,
+            MessageIdSet unfavorite, Callback callback) {
+        update(new MessageIdSet[] { read, unread, favorite, unfavorite },
+                new ContentValues[] {
+                        flagValues(MessageColumns.FLAG_READ, true),
+                        flagValues(MessageColumns.FLAG_READ, false),
+                        flagValues(MessageColumns.FLAG_FAVORITE, true),
+                        flagValues(MessageColumns.FLAG_FAVORITE, false) },
+                callback);
+    }
+
+    public void move(MessageIdSet ids, long mailboxId, Callback callback) {
+        ContentValues values = new ContentValues();
+        values.put(MessageColumns.MAILBOX_KEY, mailboxId);
+        update(new MessageIdSet[] { ids }, new ContentValues[] { values }, callback);
+    }
+
+    /**
+     * Deletes the messages the way the rest of the app does: they are moved to the trash mailbox
+     * of their account, and only those already in the trash, or in a search mailbox, are deleted
+     * for good.
+     */
+    public void moveToTrash(MessageIdSet ids, final Callback callback) {
+        final MessageIdSet targets = new MessageIdSet(ids);
+        final int requested = targets.size();
+        if (requested == 0) {
+            return;
+        }
+        EmailAsyncTask.runAsyncSerial(new Runnable() {
+            @Override
+            public void run() {
+                int applied = trashInChunks(targets);
+                if (callback != null) {
+                    callback.onBulkUpdateFinished(applied, requested);
+                }
+            }
+        });
+    }
+
+    private static ContentValues flagValues(String column, boolean value) {
+        ContentValues values = new ContentValues();
+        values.put(column, value);
+        return values;
+    }
+
+    /**
+     * Writes {@code values[i]} to every message in {@code idSets[i]}.  The ids are copied, so
+     * the caller may keep changing its sets.
+     */
+    private void update(MessageIdSet[] idSets, final ContentValues[] values,
+            final Callback callback) {
+        final MessageIdSet[] targets = new MessageIdSet[idSets.length];
+        int count = 0;
+        for (int i = 0; i < idSets.length; i++) {
+            targets[i] = new MessageIdSet(idSets[i]);
+            count += targets[i].size();
+        }
+        if (count == 0) {
+            return;
+        }
+        final int requested = count;
+        EmailAsyncTask.runAsyncSerial(new Runnable() {
+            @Override
+            public void run() {
+                HashSet<Long> accounts = new HashSet<Long>();
+                for (MessageIdSet ids : targets) {
+                    for (long[] message : queryMailboxes(ids)) {
+                        accounts.add(message[COLUMN_ACCOUNT_KEY]);
+                    }
+                }
+                int applied = applyInChunks(targets, values);
+                processPendingActions(accounts);
+                if (callback != null) {
+                    callback.onBulkUpdateFinished(applied, requested);
+                }
+            }
+        });
+    }
+
+    /**
+     * Moves the messages to the trash mailbox of their account, creating it if needed, and
+     * deletes those that are in it already.  Must be called on a worker thread.
+     *
+     * @return the number of messages moved or deleted
+     */
+    private int trashInChunks(MessageIdSet ids) {
+        final Controller controller = Controller.getInstance(mContext);
+        // the trash mailbox of every account, and the type of every mailbox seen
+        HashMap<Long, Long> trashIds = new HashMap<Long, Long>();
+        HashMap<Long, Integer> mailboxTypes = new HashMap<Long, Integer>();
+        // the messages to move, by the trash mailbox they go to
+        HashMap<Long, MessageIdSet> moves = new HashMap<Long, MessageIdSet>();
+        MessageIdSet purge = new MessageIdSet();
+        for (long[] message : queryMailboxes(ids)) {
+            long accountId = message[COLUMN_ACCOUNT_KEY];
+            long mailboxId = message[COLUMN_MAILBOX_KEY];
+            Long trashId = trashIds.get(accountId);
+            if (trashId == null) {
+                trashId = controller.findOrCreateMailboxOfType(accountId, Mailbox.TYPE_TRASH);
+                trashIds.put(accountId, trashId);
+            }
+            Integer type = mailboxTypes.get(mailboxId);
+            if (type == null) {
+                type = Mailbox.getMailboxType(mContext, mailboxId);
+                mailboxTypes.put(mailboxId, type);
+            }
+            if (mailboxId == trashId || type == Mailbox.TYPE_SEARCH) {
+                purge.add(message[COLUMN_ID]);
+            } else {
+                MessageIdSet move = moves.get(trashId);
+                if (move == null) {
+                    move = new MessageIdSet();
+                    moves.put(trashId, move);
+                }
+                move.add(message[COLUMN_ID]);
+            }
+        }
+
+        MessageIdSet[] idSets = new MessageIdSet[moves.size() + 1];
+        ContentValues[] values = new ContentValues[idSets.length];
+        int i = 0;
+        for (Long trashId : moves.keySet()) {
+            idSets[i] = moves.get(trashId);
+            values[i] = new ContentValues();
+            values[i++].put(MessageColumns.MAILBOX_KEY, trashId);
+        }
+        // a null value deletes
+        idSets[i] = purge;
+        int applied = applyInChunks(idSets, values);
+        processPendingActions(trashIds.keySet());
+        return applied;
+    }
+
+    /**
+     * Looks up the account and mailbox of the messages, {@link #BATCH_SIZE} at a time.  Must be
+     * called on a worker thread.
+     *
+     * @return the id, account and mailbox of every message found, indexed by the COLUMN_
+     *     constants; messages that no longer exist are left out
+     */
+    private ArrayList<long[]> queryMailboxes(MessageIdSet ids) {
+        final ContentResolver resolver = mContext.getContentResolver();
+        ArrayList<long[]> messages = new ArrayList<long[]>(ids.size());
+        MessageIdSet.IdIterator it = ids.idIterator();
+        StringBuilder selection = new StringBuilder();
+        while (it.hasNext()) {
+            selection.setLength(0);
+            selection.append(MessageColumns.ID).append(" IN (").append(it.next());
+            for (int n = 1; n < BATCH_SIZE && it.hasNext(); n++) {
+                selection.append(',').append(it.next());
+            }
+            selection.append(')');
+            Cursor c = resolver.query(Message.CONTENT_URI, MAILBOX_PROJECTION,
+                    selection.toString(), null, null);
+            if (c == null) {
+                continue;
+            }
+            try {
+                while (c.moveToNext()) {
+                    messages.add(new long[] {
+                            c.getLong(COLUMN_ID), c.getLong(COLUMN_ACCOUNT_KEY),
+                            c.getLong(COLUMN_MAILBOX_KEY) });
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Uploads the changes just written for accounts that keep them as pending actions, as
+     * {@link Controller} does after its single message writes.  Must be called on a worker
+     * thread.
+     */
+    private void processPendingActions(Iterable<Long> accountIds) {
+        final Controller controller = Controller.getInstance(mContext);
+        for (long accountId : accountIds) {
+            Account account = Account.restoreAccountWithId(mContext, accountId);
+            if (account != null && controller.isMessagingController(account)) {
+                MessagingController.getInstance(mContext, controller)
+                        .processPendingActions(accountId);
+            }
+        }
+    }
+
+    /**
+     * Writes {@code values[i]} to every message in {@code idSets[i]}, or deletes them if it is
+     * null.  Must be called on a worker thread.
+     *
+     * @return the number of messages written; stops at the first chunk that fails.
+     */
+    /* package */ int applyInChunks(MessageIdSet[] idSets, ContentValues[] values) {
+        final ContentResolver resolver = mContext.getContentResolver();
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(BATCH_SIZE);
+        int applied = 0;
+        int remaining = 0;
+        for (MessageIdSet ids : idSets) {
+            remaining += ids.size();
+        }
+        for (int i = 0; i < idSets.length; i++) {
+            MessageIdSet.IdIterator it = idSets[i].idIterator();
+            while (it.hasNext()) {
+                Uri uri = ContentUris.withAppendedId(Message.SYNCED_CONTENT_URI, it.next());
+                if (values[i] == null) {
+                    ops.add(ContentProviderOperation.newDelete(uri).build());
+                } else {
+                    ops.add(ContentProviderOperation.newUpdate(uri).withValues(values[i])
+                            .build());
+                }
+                remaining--;
+                if (ops.size() < BATCH_SIZE && remaining > 0) {
+                    continue;
+                }
+                try {
+                    resolver.applyBatch(EmailContent.AUTHORITY, ops);
+                } catch (RemoteException e) {
+                    Log.w(Logging.LOG_TAG, "Bulk message update failed after " + applied, e);
+                    return applied;
+                } catch (OperationApplicationException e) {
+                    Log.w(Logging.LOG_TAG, "Bulk message update failed after " + applied, e);
+                    return applied;
+                }
+                applied += ops.size();
+                ops = new ArrayList<ContentProviderOperation>(BATCH_SIZE);
+            }
+        }
+        return applied;
+    }
+}
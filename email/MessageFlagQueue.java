@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.activity;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.victor.email.list.FlagOverlay;
+import com.victor.email.list.MessageIdSet;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind queue for the read and favorite flags of messages shown in the list.
+ *
+ * Flag changes are visible immediately: {@link MessagesAdapter} asks the queue for the effective
+ * value of each flag when binding a row, so the row reflects the change before the provider does.
+ * The writes themselves are coalesced and flushed through {@link MessageBulkUpdater} once no new
+ * change has arrived for {@link #FLUSH_DELAY_MS}, or at the latest {@link #MAX_DELAY_MS} after the
+ * first pending change.  A flushed batch keeps overriding the cursor until it has landed and the
+ * adapter has been given a cursor whose query started after that, so the list never flickers
+ * back to the old state and reloads once per batch rather than once per message.
+ *
+ * Landing is ordered by {@link #getWriteSequence()}, which counts the batches landed by every
+ * queue.  The loader reads it before querying and the adapter passes that value to
+ * {@link #onCursorChanged(long)}; a batch whose sequence is not above it was in the provider
+ * before the query ran.
+ *
+ * All methods must be called on the UI thread.
+ */
+/* package */ class MessageFlagQueue implements FlagOverlay {
+    /* package */ static final long FLUSH_DELAY_MS = 1000;
+    /* package */ static final long MAX_DELAY_MS = 5000;
+
+    /** Number of batches that have landed, over all queues. */
+    private static final AtomicLong sWriteSequence = new AtomicLong();
+
+    private final MessageBulkUpdater mUpdater;
+    /** Runs the delayed flush, and marks batches landed on the UI thread. */
+    private final Handler mHandler;
+
+    /** Changes not yet handed to the provider. */
+    private FlagChanges mPending = new FlagChanges();
+    /** Changes handed to the provider, oldest first, that the loaded cursor may not reflect. */
+    private final ArrayList<FlagChanges> mInFlight = new ArrayList<FlagChanges>();
+    /** Uptime of the first change in {@link #mPending}, or 0 if there is none. */
+    private long mFirstPendingTime;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private static class FlagChanges {
+        final MessageIdSet mRead = new MessageIdSet();
+        final MessageIdSet mUnread = new MessageIdSet();
+        final MessageIdSet mFavorite = new MessageIdSet();
+        final MessageIdSet mUnfavorite = new MessageIdSet();
+        /** The write sequence once the batch has landed, or 0 while it is being written. */
+        long mLandedSequence;
+
+        boolean isEmpty() {
+            return mRead.isEmpty() && mUnread.isEmpty()
+                    && mFavorite.isEmpty() && mUnfavorite.isEmpty();
+        }
+    }
+
+    public MessageFlagQueue(MessageBulkUpdater updater) {
+        this(updater, new Handler());
+    }
+
+    /* package */ MessageFlagQueue(MessageBulkUpdater updater, Handler handler) {
+        mUpdater = updater;
+        mHandler = handler;
+    }
+
+    /**
+     * @return the number of batches landed so far.  May be called on any thread; a query started
+     *     after reading this value sees every batch up to it.
+     */
+    public static long getWriteSequence() {
+        return sWriteSequence.get();
+    }
+
+    public void setRead(long messageId, boolean read) {
+        if (read) {
+            mPending.mUnread.remove(messageId);
+            mPending.mRead.add(messageId);
+        } else {
+            mPending.mRead.remove(messageId);
+            mPending.mUnread.add(messageId);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Queues a read change for every message in {@code ids}, e.g. the selection.
+     */
+    public void setRead(MessageIdSet ids, boolean read) {
+        if (read) {
+            mPending.mUnread.removeAll(ids);
+            mPending.mRead.or(ids);
+        } else {
+            mPending.mRead.removeAll(ids);
+            mPending.mUnread.or(ids);
+        }
+        scheduleFlush();
+    }
+
+    public void setFavorite(long messageId, boolean favorite) {
+        if (favorite) {
+            mPending.mUnfavorite.remove(messageId);
+            mPending.mFavorite.add(messageId);
+        } else {
+            mPending.mFavorite.remove(messageId);
+            mPending.mUnfavorite.add(messageId);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Queues a favorite change for every message in {@code ids}, e.g. the selection.
+     */
+    public void setFavorite(MessageIdSet ids, boolean favorite) {
+        if (favorite) {
+            mPending.mUnfavorite.removeAll(ids);
+            mPending.mFavorite.or(ids);
+        } else {
+            mPending.mFavorite.removeAll(ids);
+            mPending.mUnfavorite.or(ids);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * @return the read state the list should show for a message, given the cursor's value.
+     */
+    @Override
+    public boolean isRead(long messageId, boolean cursorValue) {
+        if (mPending.mRead.contains(messageId)) {
+            return true;
+        } else if (mPending.mUnread.contains(messageId)) {
+            return false;
+        }
+        for (int i = mInFlight.size() - 1; i >= 0; i--) {
+            FlagChanges changes = mInFlight.get(i);
+            if (changes.mRead.contains(messageId)) {
+                return true;
+            } else if (changes.mUnread.contains(messageId)) {
+                return false;
+            }
+        }
+        return cursorValue;
+    }
+
+    /**
+     * @return the favorite state the list should show for a message, given the cursor's value.
+     */
+    @Override
+    public boolean isFavorite(long messageId, boolean cursorValue) {
+        if (mPending.mFavorite.contains(messageId)) {
+            return true;
+        } else if (mPending.mUnfavorite.contains(messageId)) {
+            return false;
+        }
+        for (int i = mInFlight.size() - 1; i >= 0; i--) {
+            FlagChanges changes = mInFlight.get(i);
+            if (changes.mFavorite.contains(messageId)) {
+                return true;
+            } else if (changes.mUnfavorite.contains(messageId)) {
+                return false;
+            }
+        }
+        return cursorValue;
+    }
+
+    /**
+     * @return true if a change is waiting to be flushed or has not yet reached the list.
+     */
+    @Override
+    public boolean hasPendingChanges() {
+        return !mPending.isEmpty() || !mInFlight.isEmpty();
+    }
+
+    /**
+     * Hands all pending changes to the provider now.  Should be called when the list goes away,
+     * e.g. from {@code onPause()}.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mFirstPendingTime = 0;
+        if (mPending.isEmpty()) {
+            return;
+        }
+        final FlagChanges changes = mPending;
+        mPending = new FlagChanges();
+        mInFlight.add(changes);
+
+        // If part of the batch failed, the next cursor shows what the provider really has.
+        MessageBulkUpdater.Callback landed = new MessageBulkUpdater.Callback() {
+            @Override
+            public void onBulkUpdateFinished(int applied, int requested) {
+                final long sequence = sWriteSequence.incrementAndGet();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        changes.mLandedSequence = sequence;
+                    }
+                });
+            }
+        };
+        mUpdater.setFlags(changes.mRead, changes.mUnread, changes.mFavorite, changes.mUnfavorite,
+                landed);
+    }
+
+    /**
+     * Called when the adapter receives a new cursor.  Batches that landed before its query
+     * started are reflected in it and no longer need to override it; later ones still do.
+     *
+     * @param cursorSequence {@link #getWriteSequence()} as read before the cursor's query
+     */
+    public void onCursorChanged(long cursorSequence) {
+        for (int i = mInFlight.size() - 1; i >= 0; i--) {
+            long landed = mInFlight.get(i).mLandedSequence;
+            if (landed != 0 && landed <= cursorSequence) {
+                mInFlight.remove(i);
+            }
+        }
+    }
+
+    private void scheduleFlush() {
+        long now = SystemClock.uptimeMillis();
+        if (mFirstPendingTime == 0) {
+            mFirstPendingTime = now;
+        }
+        mHandler.removeCallbacks(mFlushRunnable);
+        long flushTime = Math.min(now + FLUSH_DELAY_MS, mFirstPendingTime + MAX_DELAY_MS);
+        mHandler.postAtTime(mFlushRunnable, flushTime);
+    }
+}
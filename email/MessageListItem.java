@@ -32,7 +32,6 @@ import android.text.SpannableStringBuilder;
 import android.text.StaticLayout;
 import android.text.TextPaint;
 import android.text.TextUtils;
-import android.text.TextUtils.TruncateAt;
 import android.text.format.DateUtils;
 import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
@@ -40,13 +39,18 @@ import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewParent;
 import android.view.accessibility.AccessibilityEvent;
 
 import com.victor.email.R;
+import com.victor.email.list.MemoryAccounting;
+import com.victor.email.list.MessageListStats;
 import com.victor.emailcommon.utility.TextUtilities;
 import com.victor.email.view.SplitView;
 import com.google.common.base.Objects;
 
+import java.util.WeakHashMap;
+
 /**
  * This custom View is the list item for the MessageList activity, and serves two purposes:
  * 1.  It's a container to store message metadata (e.g. the ids of the message, mailbox, & account)
@@ -57,6 +61,9 @@ public class MessageListItem extends View {
     /* package */ long mMessageId;
     /* package */ long mMailboxId;
     /* package */ long mAccountId;
+    /** What the view was last bound to; see {@link MessagesAdapter#isBoundTo}. */
+    /* package */ long mBoundVersion;
+    /* package */ int mBoundGeneration = -1;
 
     protected ThreePaneLayout mLayout;
     protected MessagesAdapter mAdapter;
@@ -91,6 +98,8 @@ public class MessageListItem extends View {
     public static final int NEEDS_LAYOUT = -1;
 
     protected static boolean sInit = false;
+    /** Senders ellipsized for their column, shared by all rows. */
+    private static final SenderEllipsisCache sSenderCache = new SenderEllipsisCache(512);
     protected static final TextPaint sDefaultPaint = new TextPaint();
     protected static final TextPaint sBoldPaint = new TextPaint();
     protected static final TextPaint sDatePaint = new TextPaint();
@@ -122,11 +131,20 @@ public class MessageListItem extends View {
     protected static int DATE_TEXT_COLOR_READ;
     protected static int DATE_TEXT_COLOR_UNREAD;
 
+    /** Shared with every row of the same sender through the snapshot's dictionary. */
     public String mSender;
+    /** Dictionary code of {@link #mSender}, unique per sender within one load. */
+    public int mSenderCode;
     public SpannableStringBuilder mText;
     public CharSequence mSnippet;
     protected String mSubject;
     protected StaticLayout mSubjectLayout;
+    /**
+     * Bound during a fast fling: only the subject is set, and the row draws its sender, date
+     * and one line of subject without laying out the subject and snippet.  Cleared when the
+     * adapter binds the text; see {@link ListFlingController}.
+     */
+    /* package */ boolean mCheap;
     public boolean mRead;
     public boolean mHasAttachment = false;
     public boolean mHasInvite = true;
@@ -151,12 +169,31 @@ public class MessageListItem extends View {
     protected Drawable mWideUnreadSelector;
 
     protected CharSequence mFormattedSender;
+    /** The colors calculateSubjectText() last put on {@link #mText}. */
+    private ForegroundColorSpan mSubjectColorSpan;
+    private ForegroundColorSpan mSnippetColorSpan;
     // We must initialize this to something, in case the timestamp of the message is zero (which
     // should be very rare); this is otherwise set in setTimestamp
     protected CharSequence mFormattedDate = "";
 
+    /**
+     * Every live row view, so that under memory pressure the ones off screen can give up their
+     * text; see {@link ListCacheRegistry}.
+     */
+    private static final WeakHashMap<MessageListItem, Boolean> sViews =
+            new WeakHashMap<MessageListItem, Boolean>();
+
     protected void init(Context context) {
         mContext = context;
+        sViews.put(this, Boolean.TRUE);
+        initDrawingCaches(context);
+    }
+
+    /**
+     * Load the resources every row draws with, unless they are loaded; they are released by
+     * {@link #resetDrawingCaches()} and {@link #releaseIcons()}.
+     */
+    private static void initDrawingCaches(Context context) {
         if (!sInit) {
             Resources r = context.getResources();
             sSubjectDescription = r.getString(R.string.message_subject_description).concat(", ");
@@ -215,14 +252,101 @@ public class MessageListItem extends View {
      */
     public static void resetDrawingCaches() {
         MessageListItemCoordinates.resetCaches();
+        sSenderCache.clear();
         sInit = false;
     }
 
+    /* package */ static SenderEllipsisCache getSenderCache() {
+        return sSenderCache;
+    }
+
+    /** @return the bytes of the decoded icons, or 0 if they are not loaded. */
+    /* package */ static long getIconBytes() {
+        if (!sInit) {
+            return 0;
+        }
+        return getBitmapBytes(sAttachmentIcon) + getBitmapBytes(sInviteIcon)
+                + getBitmapBytes(sFavoriteIconOff) + getBitmapBytes(sFavoriteIconOn)
+                + getBitmapBytes(sSelectedIconOff) + getBitmapBytes(sSelectedIconOn)
+                + getBitmapBytes(sStateReplied) + getBitmapBytes(sStateForwarded)
+                + getBitmapBytes(sStateRepliedAndForwarded);
+    }
+
+    private static long getBitmapBytes(Bitmap bitmap) {
+        return bitmap == null ? 0 : (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Let go of the decoded icons; rows decode them again before they next lay out or draw.
+     *
+     * @return the bytes released
+     */
+    /* package */ static long releaseIcons() {
+        long bytes = getIconBytes();
+        sInit = false;
+        sAttachmentIcon = null;
+        sInviteIcon = null;
+        sFavoriteIconOff = null;
+        sFavoriteIconOn = null;
+        sSelectedIconOff = null;
+        sSelectedIconOn = null;
+        sStateReplied = null;
+        sStateForwarded = null;
+        sStateRepliedAndForwarded = null;
+        return bytes;
+    }
+
+    /** @return an estimate of the bytes the text of the views off screen holds. */
+    /* package */ static long getOffscreenRetainedBytes() {
+        long bytes = 0;
+        for (MessageListItem view : sViews.keySet()) {
+            if (view.getParent() == null) {
+                bytes += view.getRetainedBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Drop the text and layouts of the views that are not in a list, e.g. those waiting in the
+     * list's recycler.  They are rebuilt when the view is bound again.
+     *
+     * @return an estimate of the bytes freed
+     */
+    /* package */ static long trimOffscreenViews() {
+        long freed = 0;
+        for (MessageListItem view : sViews.keySet()) {
+            if (view.getParent() == null) {
+                freed += view.releaseText();
+            }
+        }
+        return freed;
+    }
+
+    private long releaseText() {
+        long bytes = getRetainedBytes();
+        mSubject = null;
+        mSnippet = null;
+        mText = null;
+        mSubjectColorSpan = null;
+        mSnippetColorSpan = null;
+        mSubjectLayout = null;
+        mFormattedSender = null;
+        mFormattedDate = "";
+        mTimeFormatted = 0;
+        // not bound to anything any more, so the adapter binds it even to the same item
+        mBoundGeneration = -1;
+        return bytes - getRetainedBytes();
+    }
+
     /**
      * Sets message subject and snippet safely, ensuring the cache is invalidated.
      */
     public void setText(String subject, String snippet, boolean forceUpdate) {
         boolean changed = false;
+        // The heap store hands out its dictionary's instance, so this is usually an identity
+        // check; the mapped store decodes a new string on every call, so there it compares the
+        // characters, which is still far cheaper than laying the text out again.
         if (!Objects.equal(mSubject, subject)) {
             mSubject = subject;
             changed = true;
@@ -234,7 +358,8 @@ public class MessageListItem extends View {
             changed = true;
         }
 
-        if (forceUpdate || changed || (mSubject == null && mSnippet == null) /* first time */) {
+        if (forceUpdate || changed || (mSubject == null && mSnippet == null) /* first time */
+                || mText == null /* bound cheaply or trimmed */) {
             SpannableStringBuilder ssb = new SpannableStringBuilder();
             boolean hasSubject = false;
             if (!TextUtils.isEmpty(mSubject)) {
@@ -255,8 +380,24 @@ public class MessageListItem extends View {
         }
     }
 
+    /**
+     * Sets the subject of a row bound during a fast fling, and leaves the snippet and the
+     * subject layout for {@link #setText} to fill in once the fling slows.
+     */
+    /* package */ void setSubjectOnly(String subject) {
+        if (!Objects.equal(mSubject, subject)) {
+            mSubject = subject;
+            populateContentDescription();
+        }
+        mCheap = true;
+        mText = null;
+        mSubjectLayout = null;
+    }
+
     long mTimeFormatted = 0;
     public void setTimestamp(long timestamp) {
+        MessageListStats.cacheLookup(MessageListStats.CACHE_FORMATTED_DATE,
+                mTimeFormatted == timestamp);
         if (mTimeFormatted != timestamp) {
             mFormattedDate = DateUtils.getRelativeTimeSpanString(mContext, timestamp).toString();
             mTimeFormatted = timestamp;
@@ -318,33 +459,64 @@ public class MessageListItem extends View {
         if (mText == null || mText.length() == 0) {
             return;
         }
+        // Replace the colors of the previous layout rather than piling new spans on the text.
+        mText.removeSpan(mSubjectColorSpan);
+        mText.removeSpan(mSnippetColorSpan);
         boolean hasSubject = false;
         int snippetStart = 0;
         if (!TextUtils.isEmpty(mSubject)) {
             int subjectColor = getFontColor(mRead ? SUBJECT_TEXT_COLOR_READ
                     : SUBJECT_TEXT_COLOR_UNREAD);
-            mText.setSpan(new ForegroundColorSpan(subjectColor), 0, mSubject.length(),
+            mSubjectColorSpan = new ForegroundColorSpan(subjectColor);
+            mText.setSpan(mSubjectColorSpan, 0, mSubject.length(),
                     Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
             snippetStart = mSubject.length() + 1;
         }
         if (!TextUtils.isEmpty(mSnippet)) {
             int snippetColor = getFontColor(mRead ? SNIPPET_TEXT_COLOR_READ
                     : SNIPPET_TEXT_COLOR_UNREAD);
-            mText.setSpan(new ForegroundColorSpan(snippetColor), snippetStart, mText.length(),
+            mSnippetColorSpan = new ForegroundColorSpan(snippetColor);
+            mText.setSpan(mSnippetColorSpan, snippetStart, mText.length(),
                     Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
         }
     }
 
+    // Estimated sizes of the text structures of a view; see getRetainedBytes().
+    /** An empty SpannableStringBuilder with its span arrays. */
+    private static final long SPANNABLE_STRING_BUILDER = 128;
+    /** A span object and its entries in the span arrays. */
+    private static final long SPAN = 32;
+    /** A StaticLayout without its line table. */
+    private static final long STATIC_LAYOUT = 96;
+    /** Ints per line in the line table of a StaticLayout. */
+    private static final int STATIC_LAYOUT_COLUMNS = 5;
+
+    /**
+     * @return an estimate of the heap this view's text retains: the subject and snippet with
+     *     their spans, the subject layout, and the formatted sender and date.  The selector
+     *     drawables share their bitmaps and are not counted.  See {@link MemoryAccounting}.
+     */
+    /* package */ long getRetainedBytes() {
+        long bytes = MemoryAccounting.string(mFormattedDate.length());
+        if (mFormattedSender != null) {
+            bytes += MemoryAccounting.string(mFormattedSender.length());
+        }
+        if (mText != null) {
+            bytes += SPANNABLE_STRING_BUILDER
+                    + MemoryAccounting.align(MemoryAccounting.ARRAY_HEADER + 2L * mText.length())
+                    + SPAN * mText.getSpans(0, mText.length(), Object.class).length;
+        }
+        if (mSubjectLayout != null) {
+            bytes += STATIC_LAYOUT + MemoryAccounting.align(MemoryAccounting.ARRAY_HEADER
+                    + 4L * STATIC_LAYOUT_COLUMNS * (mSubjectLayout.getLineCount() + 1));
+        }
+        return bytes;
+    }
+
     private void calculateDrawingData() {
-        sDefaultPaint.setTextSize(mCoordinates.subjectFontSize);
-        calculateSubjectText();
-        mSubjectLayout = new StaticLayout(mText, sDefaultPaint,
-                mCoordinates.subjectWidth, Alignment.ALIGN_NORMAL, 1, 0, false /* includePad */);
-        if (mCoordinates.subjectLineCount < mSubjectLayout.getLineCount()) {
-            // TODO: ellipsize.
-            int end = mSubjectLayout.getLineEnd(mCoordinates.subjectLineCount - 1);
-            mSubjectLayout = new StaticLayout(mText.subSequence(0, end),
-                    sDefaultPaint, mCoordinates.subjectWidth, Alignment.ALIGN_NORMAL, 1, 0, true);
+        long start = MessageListStats.start();
+        if (!mCheap) {
+            calculateSubjectLayout();
         }
 
         // Now, format the sender for its width
@@ -357,8 +529,22 @@ public class MessageListItem extends View {
             senderPaint.setTextSize(mCoordinates.sendersFontSize);
             senderPaint.setColor(getFontColor(mRead ? SENDERS_TEXT_COLOR_READ
                     : SENDERS_TEXT_COLOR_UNREAD));
-            mFormattedSender = TextUtils.ellipsize(mSender, senderPaint, senderWidth,
-                    TruncateAt.END);
+            mFormattedSender = sSenderCache.ellipsize(mSenderCode, mSender, senderPaint,
+                    senderWidth);
+        }
+        MessageListStats.stop(MessageListStats.TIMER_DRAWING_DATA, start);
+    }
+
+    private void calculateSubjectLayout() {
+        sDefaultPaint.setTextSize(mCoordinates.subjectFontSize);
+        calculateSubjectText();
+        mSubjectLayout = new StaticLayout(mText, sDefaultPaint,
+                mCoordinates.subjectWidth, Alignment.ALIGN_NORMAL, 1, 0, false /* includePad */);
+        if (mCoordinates.subjectLineCount < mSubjectLayout.getLineCount()) {
+            // TODO: ellipsize.
+            int end = mSubjectLayout.getLineEnd(mCoordinates.subjectLineCount - 1);
+            mSubjectLayout = new StaticLayout(mText.subSequence(0, end),
+                    sDefaultPaint, mCoordinates.subjectWidth, Alignment.ALIGN_NORMAL, 1, 0, true);
         }
     }
     @Override
@@ -407,21 +593,44 @@ public class MessageListItem extends View {
 
     @Override
     public void draw(Canvas canvas) {
+        long start = System.nanoTime();
+        initDrawingCaches(mContext);
         // Update the background, before View.draw() draws it.
         setSelected(mAdapter.isSelected(this));
         updateBackground();
         super.draw(canvas);
+        onFramePhase(ListFrameMonitor.PHASE_DRAW, start);
+    }
+
+    /**
+     * Tell the adapter's {@link ListFrameMonitor}, if there is one, that this row went through
+     * {@code phase} since {@code start}.
+     */
+    private void onFramePhase(int phase, long start) {
+        ListFrameMonitor monitor = mAdapter == null ? null : mAdapter.getFrameMonitor();
+        if (monitor != null) {
+            Object position = getTag();
+            monitor.onRow(phase, position instanceof Integer ? (Integer) position : -1, this,
+                    start);
+        }
     }
 
     @Override
     protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+        long start = System.nanoTime();
         super.onLayout(changed, left, top, right, bottom);
+        initDrawingCaches(mContext);
 
         mCoordinates = MessageListItemCoordinates.forWidth(mContext, mViewWidth);
         calculateDrawingData();
+        onFramePhase(ListFrameMonitor.PHASE_LAYOUT, start);
 
         // set visibility of header depending on the display mode of the item list
-        View parent = (View)getParent().getParent().getParent().getParent();
+        View parent = getListContainer();
+        if (parent == null) {
+            // laid out on its own, e.g. by RowRenderBenchmark
+            return;
+        }
         SplitView listViewHeader = (SplitView)UiUtilities.getView(parent, R.id.message_list_header);
         listViewHeader.mDisplayMode = mMode;
         if( mAdapter.isThreadViewAllowed() )
@@ -437,12 +646,25 @@ public class MessageListItem extends View {
 		//	listViewHeader.setVisibility( GONE );
     }
 
+    /**
+     * @return the view four levels up, which holds the list and its column header, or null if
+     *     this item is not attached that deep.
+     */
+    private View getListContainer() {
+        ViewParent parent = getParent();
+        for (int i = 1; i < 4 && parent != null; i++) {
+            parent = parent.getParent();
+        }
+        return parent instanceof View ? (View) parent : null;
+    }
+
     protected int getFontColor(int defaultColor) {
         return isActivated() ? ACTIVATED_TEXT_COLOR : defaultColor;
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
+        long start = MessageListStats.start();
         // Draw the color chip indicating the mailbox this belongs to
         if (mColorChipPaint != null) {
             canvas.drawRect(
@@ -478,13 +700,17 @@ public class MessageListItem extends View {
         }
 
         // Subject and snippet.
-        sDefaultPaint.setTextSize(mCoordinates.subjectFontSize);
-        canvas.save();
-        canvas.translate(
-                mCoordinates.subjectX,
-                mCoordinates.subjectY);
-        mSubjectLayout.draw(canvas);
-        canvas.restore();
+        if (mCheap) {
+            drawSubjectLine(canvas);
+        } else {
+            sDefaultPaint.setTextSize(mCoordinates.subjectFontSize);
+            canvas.save();
+            canvas.translate(
+                    mCoordinates.subjectX,
+                    mCoordinates.subjectY);
+            mSubjectLayout.draw(canvas);
+            canvas.restore();
+        }
 
         // Draw the date
         sDatePaint.setTextSize(mCoordinates.dateFontSize);
@@ -511,9 +737,29 @@ public class MessageListItem extends View {
             iconsLeft -= sInviteIcon.getWidth();
             canvas.drawBitmap(sInviteIcon, iconsLeft, mCoordinates.paperclipY, null);
         }
-
+        MessageListStats.stop(MessageListStats.TIMER_DRAW_MESSAGE, start);
     }
     
+    /**
+     * Draws the subject of a row bound during a fling on one line, cut off at the subject's
+     * width rather than measured.
+     */
+    private void drawSubjectLine(Canvas canvas) {
+        if (TextUtils.isEmpty(mSubject)) {
+            return;
+        }
+        TextPaint paint = mRead ? sDefaultPaint : sBoldPaint;
+        paint.setTextSize(mCoordinates.subjectFontSize);
+        paint.setColor(getFontColor(mRead ? SUBJECT_TEXT_COLOR_READ
+                : SUBJECT_TEXT_COLOR_UNREAD));
+        canvas.save();
+        canvas.clipRect(mCoordinates.subjectX, 0,
+                mCoordinates.subjectX + mCoordinates.subjectWidth, mViewHeight);
+        canvas.drawText(mSubject, 0, mSubject.length(), mCoordinates.subjectX,
+                mCoordinates.subjectY - mCoordinates.subjectAscent, paint);
+        canvas.restore();
+    }
+
     public void changeSendersWidth( int width, boolean change ) {
     	if( change )
 	    	mCoordinates.changeSendersWidth( width );
@@ -30,6 +30,8 @@ import android.view.ViewParent;
 import android.widget.TextView;
 
 import com.victor.email.R;
+import com.victor.email.list.MemoryAccounting;
+import com.victor.email.list.MessageListStats;
 
 /**
  * Represents the coordinates of elements inside a CanvasConversationHeaderView
@@ -236,6 +238,33 @@ public class MessageListItemCoordinates {
     static void resetCaches() {
         mCache.clear();
     }
+
+    /**
+     * Forget the coordinates of every width; rows lay out their width again on their next
+     * layout.
+     *
+     * @return an estimate of the bytes freed
+     */
+    static long trimCache() {
+        long bytes = mCache.size() * MemoryAccounting.object(29 * 4);
+        mCache.clear();
+        return bytes;
+    }
+
+    /**
+     * @return an estimate of the heap the cache retains: one set of coordinates per width seen;
+     *     see {@link MemoryAccounting}.
+     */
+    static long getCacheRetainedBytes() {
+        final int widths = mCache.size();
+        // the SparseArray's key and value arrays start at 10 entries
+        final int capacity = Math.max(10, widths);
+        return MemoryAccounting.object(2 * MemoryAccounting.REFERENCE + 4 + 1)
+                + MemoryAccounting.align(MemoryAccounting.ARRAY_HEADER + 4L * capacity)
+                + MemoryAccounting.align(MemoryAccounting.ARRAY_HEADER
+                        + (long) MemoryAccounting.REFERENCE * capacity)
+                + widths * MemoryAccounting.object(29 * 4);
+    }
     
     /**
      * Returns coordinates for elements inside a conversation header view given
@@ -243,6 +272,7 @@ public class MessageListItemCoordinates {
      */
     public static MessageListItemCoordinates forWidth(Context context, int width) {
         MessageListItemCoordinates coordinates = mCache.get(width);
+        MessageListStats.cacheLookup(MessageListStats.CACHE_COORDINATES, coordinates != null);
         if (coordinates == null) {
             coordinates = new MessageListItemCoordinates();
             mCache.put(width, coordinates);
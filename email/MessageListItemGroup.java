@@ -17,6 +17,7 @@
 package com.victor.email.activity;
 
 import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Typeface;
@@ -25,17 +26,20 @@ import android.text.format.DateUtils;
 import android.text.TextUtils;
 import android.util.AttributeSet;
 
-import com.victor.email.MessageListContext;
 import com.victor.email.activity.MessagesAdapter;
 
 import java.util.Calendar;
 
 import com.victor.email.R;
+import com.victor.email.list.MessageListStats;
 
 public class MessageListItemGroup extends MessageListItem {
 
 	public boolean isGroupItem = true;
 
+	/** What the header shows about its group, e.g. "(12, 3 unread, 1 starred)". */
+	private String mFormattedSummary = "";
+
 	public MessageListItemGroup(Context context) {
         super(context);
         init(context);
@@ -56,6 +60,7 @@ public class MessageListItemGroup extends MessageListItem {
 
     @Override
     protected void onDraw(Canvas canvas) {
+        long start = MessageListStats.start();
         // Draw the checkbox
         if( mMode != MODE_WIDE )
 			canvas.drawBitmap(mAdapter.isSelected(this) ? sSelectedIconOn : sSelectedIconOff,
@@ -69,7 +74,8 @@ public class MessageListItemGroup extends MessageListItem {
 		headingPaint.setTextSize(mCoordinates.sendersFontSize);
 		
 		MessagesAdapter.MessagesCursor c = (MessagesAdapter.MessagesCursor)mAdapter.getCursor();
-		if( c.mListContext.getSortOrder() == MessageListContext.SORT_ORDER_DATE || c.mListContext.getSortOrder() == MessageListContext.SORT_ORDER_DATE_DESC ) {
+		int groupBy = c.getGroupBy();
+		if( groupBy == MessagesAdapter.MessagesCursor.GROUP_BY_DATE ) {
 			// Draw the date
 			if( mMode != MODE_WIDE )
 				canvas.drawText(mFormattedDate, 0, mFormattedDate.length(),
@@ -77,7 +83,7 @@ public class MessageListItemGroup extends MessageListItem {
 			else
 				canvas.drawText(mFormattedDate, 0, mFormattedDate.length(),
 						mCoordinates.sendersX, mCoordinates.sendersY - mCoordinates.sendersAscent, headingPaint);
-		} else if( c.mListContext.getSortOrder() == MessageListContext.SORT_ORDER_SUBJECT || c.mListContext.getSortOrder() == MessageListContext.SORT_ORDER_SUBJECT_DESC ) {
+		} else if( groupBy == MessagesAdapter.MessagesCursor.GROUP_BY_SUBJECT ) {
 			// Subject
 			if (!TextUtils.isEmpty(mSubject)) {
 				if( mMode != MODE_WIDE )
@@ -89,7 +95,7 @@ public class MessageListItemGroup extends MessageListItem {
 						mCoordinates.sendersX, mCoordinates.sendersY - mCoordinates.sendersAscent,
 						headingPaint);
 			}
-		} else if( c.mListContext.getSortOrder() == MessageListContext.SORT_ORDER_SENDERS || c.mListContext.getSortOrder() == MessageListContext.SORT_ORDER_SENDERS_DESC ) {
+		} else if( groupBy == MessagesAdapter.MessagesCursor.GROUP_BY_SENDER ) {
 			// Draw the sender name
 			if( mMode != MODE_WIDE )
 				canvas.drawText(mFormattedSender, 0, mFormattedSender.length(),
@@ -101,9 +107,8 @@ public class MessageListItemGroup extends MessageListItem {
 					headingPaint);
 		}
 
-		// draw the number of items in this group
-		int num = c.numberOfItemsInGroup( (Integer)this.getTag() );
-		String formattedNum = "("+String.valueOf( num )+")";
+		// draw the summary of this group, prepared when the header was bound
+		String formattedNum = mFormattedSummary;
 		int dateX = mCoordinates.dateXEnd - (int)headingPaint.measureText(formattedNum, 0, formattedNum.length());
 		if( mMode != MODE_WIDE )
 			canvas.drawText(formattedNum, 0, formattedNum.length(),
@@ -114,10 +119,27 @@ public class MessageListItemGroup extends MessageListItem {
 
         // set special background
         //this.setBackgroundResource( R.drawable.activated_background );
+        MessageListStats.stop( MessageListStats.TIMER_DRAW_HEADER, start );
+    }
+
+    /**
+     * Set what the header shows about its group: the number of messages, and of those how
+     * many are unread, starred or have attachments.
+     */
+    public void setSummary( int count, int unread, int favorite, int attachments ) {
+		Resources r = getContext().getResources();
+		StringBuilder sb = new StringBuilder( "(" ).append( count );
+		if( unread > 0 )
+			sb.append( ", " ).append( r.getQuantityString( R.plurals.message_list_group_unread, unread, unread ) );
+		if( favorite > 0 )
+			sb.append( ", " ).append( r.getQuantityString( R.plurals.message_list_group_starred, favorite, favorite ) );
+		if( attachments > 0 )
+			sb.append( ", " ).append( r.getQuantityString( R.plurals.message_list_group_attachments, attachments, attachments ) );
+		mFormattedSummary = sb.append( ")" ).toString();
     }
 
-    long mTimeFormatted = 0;
     public void setTimestamp(long timestamp) {
+        MessageListStats.cacheLookup( MessageListStats.CACHE_FORMATTED_DATE, mTimeFormatted == timestamp );
         if (mTimeFormatted != timestamp) {
 			Calendar today = Calendar.getInstance();
 			Calendar c = Calendar.getInstance();
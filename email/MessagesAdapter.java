@@ -26,6 +26,8 @@ import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
+import android.widget.ListView;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import com.victor.email.activity.MessageListFragment;
@@ -34,27 +36,39 @@ import com.victor.email.Email;
 import com.victor.email.MessageListContext;
 import com.victor.email.ResourceHelper;
 import com.victor.email.data.ThrottlingCursorLoader;
+import com.victor.email.list.DateGroupIndex;
+import com.victor.email.list.HeapRowStore;
+import com.victor.email.list.ListDiff;
+import com.victor.email.list.MappedRowStore;
+import com.victor.email.list.MemoryAccounting;
+import com.victor.email.list.MessageIdSet;
+import com.victor.email.list.MessageListModel;
+import com.victor.email.list.MessageListSnapshot;
+import com.victor.email.list.MessageListStats;
+import com.victor.email.list.MessageRowStore;
 import com.victor.emailcommon.Logging;
 import com.victor.emailcommon.mail.MessagingException;
 import com.victor.emailcommon.provider.Account;
 import com.victor.emailcommon.provider.EmailContent;
+import com.victor.emailcommon.provider.EmailContent.Body;
 import com.victor.emailcommon.provider.EmailContent.Message;
 import com.victor.emailcommon.provider.EmailContent.MessageColumns;
 import com.victor.emailcommon.provider.Mailbox;
 import com.victor.emailcommon.utility.TextUtilities;
-import com.victor.emailcommon.utility.Utility;
 import com.google.common.base.Preconditions;
 
-import java.util.ArrayList;
-import java.util.Calendar;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.TimeZone;
 
 
 /**
  * This class implements the adapter for displaying messages based on cursors.
  */
-/* package */ class MessagesAdapter extends CursorAdapter {
+/* package */ class MessagesAdapter extends CursorAdapter implements SectionIndexer {
     private static final String STATE_CHECKED_ITEMS =
             "com.victor.email.activity.MessagesAdapter.checkedItems";
 
@@ -77,6 +91,16 @@ import java.util.Set;
     public static final int COLUMN_FLAGS = 9;
     public static final int COLUMN_SNIPPET = 10;
 
+    // Grouping modes.
+    /** Groups follow the sort order: by day, by thread or by sender. */
+    public static final int GROUPING_BY_SORT_ORDER = MessageListModel.GROUPING_BY_SORT_ORDER;
+    /** Rows keep the sort order and are gathered into conversations by sender. */
+    public static final int GROUPING_CONVERSATIONS_BY_SENDER =
+            MessageListModel.GROUPING_CONVERSATIONS_BY_SENDER;
+    /** Rows keep the sort order and are gathered into conversations by normalized subject. */
+    public static final int GROUPING_CONVERSATIONS_BY_SUBJECT =
+            MessageListModel.GROUPING_CONVERSATIONS_BY_SUBJECT;
+
     private final ResourceHelper mResourceHelper;
 
     /** If true, show color chips. */
@@ -85,18 +109,19 @@ import java.util.Set;
     /** If not null, the query represented by this group of messages */
     private String mQuery;
 
+    /** One of the GROUPING_ constants; applied to every cursor the adapter is given. */
+    private int mGroupingMode = GROUPING_BY_SORT_ORDER;
+
     /**
      * Set of seleced message IDs.
      */
-    private final HashSet<Long> mSelectedSet = new HashSet<Long>();
+    private final MessageIdSet mSelectedSet = new MessageIdSet();
     private final HashSet<Long> mSelectedGroupSet = new HashSet<Long>();
 
     /**
      * Callback from MessageListAdapter.  All methods are called on the UI thread.
      */
     public interface Callback {
-        /** Called when the use starts/unstars a message */
-        void onAdapterFavoriteChanged(MessageListItem itemView, boolean newFavorite);
         /** Called when the user selects/unselects a message */
         void onAdapterSelectedChanged(MessageListItem itemView, boolean newSelected,
                 int mSelectedCount);
@@ -107,6 +132,45 @@ import java.util.Set;
 
     private ThreePaneLayout mLayout;
 
+    /** Applies list actions to many messages at once; created on first use. */
+    private MessageBulkUpdater mBulkUpdater;
+
+    /** Coalesces read and favorite changes made from the list. */
+    private final MessageFlagQueue mFlagQueue;
+
+    /** The list the views of this adapter are attached to; null until the first getView(). */
+    private ViewGroup mListView;
+
+    private static final int VIEW_TYPE_MESSAGE = 0;
+    private static final int VIEW_TYPE_HEADER = 1;
+
+    /**
+     * Lists up to this long are diffed against the new cursor when it is swapped in, so a
+     * reload rebinds only the changed rows and keeps the top of the screen in place.
+     */
+    private static final int MAX_DIFF_ITEMS = 10000;
+    /** Beyond this many insertions and removals, a full relayout is cheaper than diffing. */
+    private static final int MAX_DIFF_EDITS = 256;
+
+    /** Set while swapping in a cursor that leaves every item where it was. */
+    private boolean mSuppressNotify;
+    /** Bumped when a setting every row depends on changes, so that no bound view is reused. */
+    private int mBindGeneration;
+
+    /** The scroll listener of the list, which everything watching it scroll is added to. */
+    private final ListScrollDispatcher mScrollDispatcher = new ListScrollDispatcher();
+    /** Told about every row bound, laid out and drawn while scrolling; null unless attached. */
+    private ListFrameMonitor mFrameMonitor;
+    private ListFlingController mFlingController;
+
+    /** Fast scroll sections are months of the date index. */
+    private static final int SECTION_LEVEL = DateGroupIndex.LEVEL_MONTH;
+    private static final Object[] NO_SECTIONS = new Object[0];
+
+    /** The date index {@link #mSections} was made for. */
+    private DateGroupIndex mSectionIndex;
+    private Object[] mSections = NO_SECTIONS;
+
     /**
      * The actual return type from the loader.
      */
@@ -127,30 +191,41 @@ import java.util.Set;
         public final MessageListContext mListContext;
         public MessageListFragment mListFragment;
 
-        private ArrayList<MessageGroup> mGroups;
         private int mLastPosition = -1;
 
-        private class MessageGroup {
-			public boolean mIsGroupItem;
-			public boolean mIsGroupShown;
-			public int mNewPosition;
-			public int mNumberOfItems;
-			
-			public MessageGroup( boolean isGroupItem, boolean isGroupShown, int newPosition ) {
-				mIsGroupItem = isGroupItem;
-				mIsGroupShown = isGroupShown;
-				mNewPosition = newPosition;
-				mNumberOfItems = 0;
-			}
+        /** Columnar copy of the rows, used to re-sort and regroup without a requery. */
+        private final MessageListSnapshot mSnapshot;
+        /** Display order, groups and what is expanded; this cursor maps positions through it. */
+        private final MessageListModel mModel;
+        /** The sort order the rows are presented in. */
+        private int mSortOrder;
+        /** Position in display order; used when thread view is off. */
+        private int mRowPosition = -1;
+        /** The snapshot row at the current position, or -1. */
+        private int mCurrentRow = -1;
+        /** {@link MessageFlagQueue#getWriteSequence()} as read before the query. */
+        private final long mFlagSequence;
+        /**
+         * The ids and versions of the list as loaded, see {@link #getItems()}, computed on the
+         * loader thread; null once taken, or once the rows are regrouped or re-sorted.
+         */
+        private long[][] mLoadedItems;
+        /** Whether {@link #mLoadedItems} has headers, i.e. thread view was on. */
+        private boolean mLoadedItemsWithHeaders;
 
-			public String toString() {
-				return String.valueOf( mIsGroupItem )+" "+String.valueOf( mIsGroupShown )+" "+String.valueOf( mNewPosition );
-			}
-		}
+        /** See {@link MessageListModel#HEADER_ID_TAG}. */
+        public static final long HEADER_ID_TAG = MessageListModel.HEADER_ID_TAG;
+
+        // What the group headers show.
+        public static final int GROUP_BY_NONE = MessageListModel.GROUP_BY_NONE;
+        public static final int GROUP_BY_DATE = MessageListModel.GROUP_BY_DATE;
+        public static final int GROUP_BY_SUBJECT = MessageListModel.GROUP_BY_SUBJECT;
+        public static final int GROUP_BY_SENDER = MessageListModel.GROUP_BY_SENDER;
 
         private MessagesCursor(Cursor cursor,
                 boolean found, Account account, Mailbox mailbox, boolean isEasAccount,
-                boolean isRefreshable, int countTotalAccounts, MessageListContext listContext, MessageListFragment listFragment) {
+                boolean isRefreshable, int countTotalAccounts, MessageListContext listContext, MessageListFragment listFragment,
+                int querySortOrder, File storeDirectory, long flagSequence) {
             super(cursor);
             mIsFound = found;
             mAccount = account;
@@ -160,138 +235,429 @@ import java.util.Set;
             mCountTotalAccounts = countTotalAccounts;
             mListContext = listContext;
             mListFragment = listFragment;
-            groupItems();
+            mSortOrder = querySortOrder;
+            mFlagSequence = flagSequence;
+            int[] rowHashes = new int[ super.getCount() ];
+            mSnapshot = buildSnapshot( storeDirectory, rowHashes );
+            // the sort order may have been changed in memory since the loader was created, and
+            // the provider sorts subjects verbatim, which splits threads like "Re: X" and "X"
+            int[] order = null;
+            if( mListContext != null && ( mListContext.getSortOrder() != mSortOrder || isSubjectSort( mSortOrder ) ) ) {
+                int sortOrder = mListContext.getSortOrder();
+                int sortBy = getSortKey( sortOrder );
+                if( sortBy != MessageListModel.SORT_BY_NONE )
+                    order = mSnapshot.sort( sortBy, isDescending( sortOrder ) );
+                if( order != null )
+                    mSortOrder = sortOrder;
+            }
+            mModel = new MessageListModel( mSnapshot, order, getSortKey( mSortOrder ),
+                    isDescending( mSortOrder ), TimeZone.getDefault() );
+            mModel.setRowHashes( rowHashes );
+            mLoadedItemsWithHeaders = isThreadView();
+            mLoadedItems = getItems( mLoadedItemsWithHeaders );
+            moveToRow( -1 );
         }
 
 		/**
-		 * Go through the cursor and insert grouping items at the proper positions.
-		 * Grouping items will show as headers in the view and allow accordion-like
-		 * operation. Since we are not allowed to insert into a cursor, we will handle
-		 * this with 2 array lists and special positions (overriding the position methods)
+		 * @return a cursor over rows with the columns of {@link #MESSAGE_PROJECTION}, made the
+		 *     way the loader makes it for a single mailbox but without a provider behind it;
+		 *     used by {@link RowRenderBenchmark}.
 		 */
-        private void groupItems() {
-			Calendar last_date = Calendar.getInstance();
-			Calendar cur_date = Calendar.getInstance();
-			String last_subject = null;
-			String last_sender = null;
-			int numGroupItems = 0;
-			mGroups = new ArrayList<MessageGroup>();
-			MessageGroup lastGroup = null;
-			super.moveToPosition(-1);
-			while( super.moveToNext() ) {
-				cur_date.setTimeInMillis( getLong( COLUMN_DATE ) );
-				if( mListContext.getSortOrder() == MessageListContext.SORT_ORDER_DATE || mListContext.getSortOrder() == MessageListContext.SORT_ORDER_DATE_DESC ) {
-					if( isFirst() || !sameDay( last_date, cur_date ) || !sameWeek( last_date, cur_date ) || !sameMonth( last_date, cur_date ) ) {
-						numGroupItems++;
-						lastGroup = new MessageGroup( true, true, super.getPosition() );
-						mGroups.add( lastGroup );
-					}
-				} else if( mListContext.getSortOrder() == MessageListContext.SORT_ORDER_SUBJECT || mListContext.getSortOrder() == MessageListContext.SORT_ORDER_SUBJECT_DESC ) {
-					if( isFirst() || ( getString( COLUMN_SUBJECT ) == null && last_subject != null ) || !getString( COLUMN_SUBJECT ).equals( last_subject ) ) {
-						numGroupItems++;
-						lastGroup = new MessageGroup( true, true, super.getPosition() );
-						mGroups.add( lastGroup );
-					}
-				} else if( mListContext.getSortOrder() == MessageListContext.SORT_ORDER_SENDERS || mListContext.getSortOrder() == MessageListContext.SORT_ORDER_SENDERS_DESC ) {
-					if( isFirst() || ( getString( COLUMN_DISPLAY_NAME ) == null && last_sender != null ) || !getString( COLUMN_DISPLAY_NAME ).equals( last_sender ) ) {
-						numGroupItems++;
-						lastGroup = new MessageGroup( true, true, super.getPosition() );
-						mGroups.add( lastGroup );
-					}
+		/* package */ static MessagesCursor forRows( Cursor cursor, MessageListFragment listFragment, int sortOrder ) {
+			return new MessagesCursor( cursor, true, null, null, false, false, 1, null, listFragment,
+					sortOrder, null, MessageFlagQueue.getWriteSequence() );
+		}
+
+		/**
+		 * Copy every column the list uses, except the snippet, out of the cursor window, so
+		 * grouping, selection and binding do not have to reposition the cursor.  Very large
+		 * folders are copied to memory-mapped files in {@code storeDirectory}, if there is one,
+		 * rather than onto the heap.  Fills in the hash of every row, snippet included, for
+		 * {@link MessageListModel#setRowHashes}.
+		 */
+		private MessageListSnapshot buildSnapshot( File storeDirectory, int[] rowHashes ) {
+			final int count = super.getCount();
+			MessageListStats.count( MessageListStats.COUNTER_ROWS_LOADED, count );
+			if( storeDirectory != null && count >= MappedRowStore.MIN_ROWS ) {
+				MappedRowStore.Writer writer = null;
+				try {
+					writer = new MappedRowStore.Writer( storeDirectory, count );
+					copyRows( writer, rowHashes );
+					return new MessageListSnapshot( writer.finish() );
+				} catch( IOException e ) {
+					Log.w( Logging.LOG_TAG, "Cannot map " + count + " messages, copying them to the heap", e );
+				} finally {
+					// the cursor may throw while the rows are copied; don't leave the files behind
+					if( writer != null )
+						writer.abort();
 				}
-				MessageGroup mg = new MessageGroup( false, true, super.getPosition() );
-				mGroups.add( mg );
-				if( lastGroup != null )
-					lastGroup.mNumberOfItems++;
-				last_date.setTimeInMillis( cur_date.getTimeInMillis() );
-				last_subject = getString( COLUMN_SUBJECT );
-				last_sender = getString( COLUMN_DISPLAY_NAME );
 			}
-			moveToPosition(-1);
-			//Log.i( "k9Victor", mGroupItems.toString() );
-			//Log.i( "k9Victor", mNewPositions.toString() );
+			HeapRowStore.Writer writer = new HeapRowStore.Writer( count );
+			copyRows( writer, rowHashes );
+			return new MessageListSnapshot( writer.finish() );
 		}
 
-		private boolean sameDay( Calendar d1, Calendar d2 ) {
-			Calendar today = Calendar.getInstance();
-			// check if in same week
-			if( today.getTimeInMillis() - d1.getTimeInMillis() > DateUtils.WEEK_IN_MILLIS )
-				return true;
-			return d1.get( Calendar.YEAR ) == d2.get( Calendar.YEAR ) && d1.get( Calendar.DAY_OF_YEAR ) == d2.get( Calendar.DAY_OF_YEAR );
+		private void copyRows( MessageRowStore.Writer writer, int[] rowHashes ) {
+			super.moveToPosition( -1 );
+			for( int row = 0; super.moveToNext(); row++ ) {
+				int flags = 0;
+				if( getInt( COLUMN_READ ) != 0 )
+					flags |= MessageListSnapshot.FLAG_READ;
+				if( getInt( COLUMN_FAVORITE ) != 0 )
+					flags |= MessageListSnapshot.FLAG_FAVORITE;
+				if( getInt( COLUMN_ATTACHMENTS ) != 0 )
+					flags |= MessageListSnapshot.FLAG_ATTACHMENT;
+				final int messageFlags = getInt( COLUMN_FLAGS );
+				if( ( messageFlags & Message.FLAG_INCOMING_MEETING_INVITE ) != 0 )
+					flags |= MessageListSnapshot.FLAG_INVITE;
+				if( ( messageFlags & Message.FLAG_REPLIED_TO ) != 0 )
+					flags |= MessageListSnapshot.FLAG_REPLIED_TO;
+				if( ( messageFlags & Message.FLAG_FORWARDED ) != 0 )
+					flags |= MessageListSnapshot.FLAG_FORWARDED;
+				final long date = getLong( COLUMN_DATE );
+				final String subject = getString( COLUMN_SUBJECT );
+				final String sender = getString( COLUMN_DISPLAY_NAME );
+				writer.addRow( getLong( COLUMN_ID ), getLong( COLUMN_MAILBOX_KEY ),
+						getLong( COLUMN_ACCOUNT_KEY ), date, flags, subject, sender );
+				// read and favorite are left to the model, which applies the flag overlay
+				int hash = (int)( date ^ ( date >>> 32 ) );
+				hash = hash * 31 + ( flags & ~( MessageListSnapshot.FLAG_READ | MessageListSnapshot.FLAG_FAVORITE ) );
+				hash = hash * 31 + hashOf( subject );
+				hash = hash * 31 + hashOf( sender );
+				rowHashes[ row ] = hash * 31 + hashOf( getString( COLUMN_SNIPPET ) );
+			}
 		}
 
-		private boolean sameWeek( Calendar d1, Calendar d2 ) {
-			Calendar today = Calendar.getInstance();
-			// check if in same 4-weeks period
-			if( today.getTimeInMillis() - d1.getTimeInMillis() > 4 * DateUtils.WEEK_IN_MILLIS )
-				return true;
-			if( today.getTimeInMillis() - d1.getTimeInMillis() <= DateUtils.WEEK_IN_MILLIS )
-				return true;
-			int d1diff = (int)Math.floor( ( today.getTimeInMillis() - d1.getTimeInMillis() ) / DateUtils.WEEK_IN_MILLIS );
-			int d2diff = (int)Math.floor( ( today.getTimeInMillis() - d2.getTimeInMillis() ) / DateUtils.WEEK_IN_MILLIS );
-			return d1diff == d2diff;
+		/** What the fields of a cursor take, besides its snapshot and model. */
+		/* package */ static final long STATE_BYTES = MemoryAccounting.object( 8 * MemoryAccounting.REFERENCE + 8 + 5 * 4 + 4 );
+
+		public MessageListSnapshot getSnapshot() {
+			return mSnapshot;
 		}
 
-		private boolean sameMonth( Calendar d1, Calendar d2 ) {
-			Calendar today = Calendar.getInstance();
-			// check if in same month
-			if( today.getTimeInMillis() - d1.getTimeInMillis() <= 4 * DateUtils.WEEK_IN_MILLIS )
-				return true;
-			// special case of 28+ days until 61
-			if( today.getTimeInMillis() - d1.getTimeInMillis() < 61 * DateUtils.DAY_IN_MILLIS && today.getTimeInMillis() - d2.getTimeInMillis() < 61 * DateUtils.DAY_IN_MILLIS )
+		public MessageListModel getModel() {
+			return mModel;
+		}
+
+		/**
+		 * @return the snapshot row the cursor is positioned on, or -1 if it is before the first
+		 *     or after the last row.
+		 */
+		public int getRow() {
+			return mCurrentRow;
+		}
+
+		public int getSortOrder() {
+			return mSortOrder;
+		}
+
+		/**
+		 * @return the flag write sequence the query started at; see
+		 *     {@link MessageFlagQueue#onCursorChanged(long)}.
+		 */
+		public long getFlagSequence() {
+			return mFlagSequence;
+		}
+
+		/**
+		 * Also releases the snapshot, which for a very large folder unmaps its files right away
+		 * instead of when the snapshot is collected.
+		 */
+		@Override
+		public void close() {
+			super.close();
+			mSnapshot.close();
+		}
+
+		/**
+		 * @return what the rows are grouped by, one of the GROUP_BY_ constants
+		 */
+		public int getGroupBy() {
+			return mModel.getGroupBy();
+		}
+
+		/**
+		 * Regroup the rows in memory.
+		 *
+		 * @param groupingMode one of the GROUPING_ constants of {@link MessagesAdapter}
+		 */
+		public void setGroupingMode( int groupingMode ) {
+			if( groupingMode == mModel.getGroupingMode() )
+				return;
+			mModel.setGroupingMode( groupingMode );
+			mLoadedItems = null;
+			moveToRow( -1 );
+		}
+
+		/**
+		 * Re-sort and regroup the loaded rows in memory, without going back to the provider.
+		 *
+		 * @return false if the rows cannot be sorted in memory and a new query is needed.
+		 */
+		public boolean setSortOrder( int sortOrder ) {
+			if( sortOrder == mSortOrder )
 				return true;
-			int d1diff = (int)Math.floor( ( today.getTimeInMillis() - d1.getTimeInMillis() ) / ( 30.5 * DateUtils.DAY_IN_MILLIS ) );
-			int d2diff = (int)Math.floor( ( today.getTimeInMillis() - d2.getTimeInMillis() ) / ( 30.5 * DateUtils.DAY_IN_MILLIS ) );
-			return d1diff == d2diff;
+			int sortBy = getSortKey( sortOrder );
+			if( sortBy == MessageListModel.SORT_BY_NONE || !mModel.sort( sortBy, isDescending( sortOrder ) ) )
+				return false;
+			mSortOrder = sortOrder;
+			mLoadedItems = null;
+			moveToRow( -1 );
+			return true;
+		}
+
+		/**
+		 * @return the SORT_BY_ key of {@link MessageListSnapshot} for a sort order of
+		 *     {@link MessageListContext}, or {@link MessageListModel#SORT_BY_NONE}.
+		 */
+		private static int getSortKey( int sortOrder ) {
+			if( isSubjectSort( sortOrder ) )
+				return MessageListSnapshot.SORT_BY_SUBJECT;
+			if( isSenderSort( sortOrder ) )
+				return MessageListSnapshot.SORT_BY_SENDER;
+			if( isDateSort( sortOrder ) )
+				return MessageListSnapshot.SORT_BY_DATE;
+			return MessageListModel.SORT_BY_NONE;
+		}
+
+		private static boolean isDescending( int sortOrder ) {
+			return sortOrder == MessageListContext.SORT_ORDER_DATE_DESC
+					|| sortOrder == MessageListContext.SORT_ORDER_SUBJECT_DESC
+					|| sortOrder == MessageListContext.SORT_ORDER_SENDERS_DESC;
+		}
+
+		public static boolean isDateSort( int sortOrder ) {
+			return sortOrder == MessageListContext.SORT_ORDER_DATE || sortOrder == MessageListContext.SORT_ORDER_DATE_DESC;
+		}
+
+		public static boolean isSubjectSort( int sortOrder ) {
+			return sortOrder == MessageListContext.SORT_ORDER_SUBJECT || sortOrder == MessageListContext.SORT_ORDER_SUBJECT_DESC;
+		}
+
+		public static boolean isSenderSort( int sortOrder ) {
+			return sortOrder == MessageListContext.SORT_ORDER_SENDERS || sortOrder == MessageListContext.SORT_ORDER_SENDERS_DESC;
+		}
+
+		private boolean moveToRow( int position ) {
+			int count = super.getCount();
+			int row = mModel.rowAt( position );
+			mRowPosition = position < 0 ? -1 : ( position >= count ? count : position );
+			mCurrentRow = position < 0 || position >= count ? -1 : row;
+			return super.moveToPosition( row );
+		}
+
+		/**
+		 * @return the stable id of the item at the cursor: the message id for rows, a tagged
+		 *     group key hash for headers.
+		 */
+		public long getItemId() {
+			int group = getCurrentGroup();
+			if( group >= 0 )
+				return mModel.getGroupId( group );
+			return mCurrentRow < 0 ? -1 : mSnapshot.getId( mCurrentRow );
+		}
+
+		/**
+		 * @return a hash of everything the list shows for the item at the cursor, so that a view
+		 *     bound to the same item id and version does not need binding again.  Made from the
+		 *     row hashes computed at load time, so it does not read the cursor window.
+		 */
+		public long getItemVersion() {
+			if( mCurrentRow < 0 )
+				return 0;
+			int group = getCurrentGroup();
+			return group >= 0 ? mModel.getGroupVersion( group ) : mModel.getRowVersion( mCurrentRow );
+		}
+
+		/**
+		 * @return the item ids and versions of every list position, as {@link #getItemId()} and
+		 *     {@link #getItemVersion()} would return them, or null if the list is too long to be
+		 *     worth diffing.  The list as loaded is computed on the loader thread and handed out
+		 *     once; after that, or if thread view was switched since, they are computed from the
+		 *     model, without moving the cursor.
+		 */
+		/* package */ long[][] getItems() {
+			final boolean headers = isThreadView();
+			long[][] items = mLoadedItems;
+			mLoadedItems = null;
+			if( items != null && mLoadedItemsWithHeaders == headers )
+				return items;
+			return getItems( headers );
+		}
+
+		private long[][] getItems( boolean headers ) {
+			final int count = headers ? mModel.getVisibleCount() : mModel.getRowCount();
+			if( count > MAX_DIFF_ITEMS )
+				return null;
+			long[][] items = new long[ 2 ][ count ];
+			mModel.getItems( headers, items[ 0 ], items[ 1 ] );
+			return items;
+		}
+
+		private static int hashOf( String value ) {
+			return value == null ? 0 : value.hashCode();
+		}
+
+		/**
+		 * Let the group aggregates account for read and favorite changes that the rows do not
+		 * reflect yet.  Called on the UI thread when the adapter takes the cursor.
+		 */
+		public void setFlagOverlay( MessageFlagQueue overlay ) {
+			mModel.setFlagOverlay( overlay );
+		}
+
+		/**
+		 * Update the group aggregates for a read or favorite change made from the list.  Must be
+		 * called before the change is handed to the flag queue.
+		 *
+		 * @return the group of the message, or -1 if it is not in this cursor
+		 */
+		public int updateGroupFlag( long messageId, int flag, boolean value ) {
+			return mModel.updateGroupFlag( messageId, flag, value );
+		}
+
+		/**
+		 * @return whether the list shows group headers.  Cursors without a list fragment, such
+		 *     as search results, show the rows without them.
+		 */
+		private boolean isThreadView() {
+			return mListFragment != null && mListFragment.isThreadViewAllowed();
+		}
+
+		/**
+		 * @return the group whose header the cursor is on, or -1.
+		 */
+		public int getCurrentGroup() {
+			if( !isThreadView() )
+				return -1;
+			return mModel.headerAt( getPosition() );
+		}
+
+		public int getGroupUnreadCount( int group ) {
+			return mModel.getGroupUnreadCount( group );
+		}
+
+		public int getGroupFavoriteCount( int group ) {
+			return mModel.getGroupFavoriteCount( group );
+		}
+
+		public int getGroupAttachmentCount( int group ) {
+			return mModel.getGroupAttachmentCount( group );
+		}
+
+		public long getGroupNewest( int group ) {
+			return mModel.getGroupNewest( group );
+		}
+
+		public long getGroupOldest( int group ) {
+			return mModel.getGroupOldest( group );
+		}
+
+		public int getGroupSize( int group ) {
+			return mModel.getGroupSize( group );
+		}
+
+		/**
+		 * @return the year/month/week/day index of the rows, by display position, or null if
+		 *     they are not grouped by date.
+		 */
+		public DateGroupIndex getDateIndex() {
+			return mModel.getDateIndex();
+		}
+
+		/**
+		 * @return the list position of the header of a group, or of its first row when thread
+		 *     view is off.
+		 */
+		public int getGroupPosition( int group ) {
+			if( !isThreadView() )
+				return mModel.getGroupDisplayPosition( group );
+			return mModel.getGroupVisiblePosition( group );
+		}
+
+		/**
+		 * @return the group that the list position belongs to.  Only meaningful when groups are
+		 *     contiguous in display order, i.e. when not grouping by conversation.
+		 */
+		public int getGroupAtPosition( int position ) {
+			if( !isThreadView() )
+				return mModel.getGroupAtDisplayPosition( position );
+			return mModel.getGroupAtVisiblePosition( position );
+		}
+
+		public int getGroupAtDisplayPosition( int displayPosition ) {
+			return mModel.getGroupAtDisplayPosition( displayPosition );
+		}
+
+		/**
+		 * @return the display position of the row at a list position; for a header, that of the
+		 *     first row of its group.
+		 */
+		public int getDisplayPositionAt( int position ) {
+			if( !isThreadView() )
+				return position;
+			return mModel.getDisplayPosition( position );
+		}
+
+		/**
+		 * @return the list position showing the row at a display position, which is the header
+		 *     of its group if the group is collapsed.
+		 */
+		public int getPositionOfDisplayPosition( int displayPosition ) {
+			if( !isThreadView() )
+				return displayPosition;
+			return mModel.getVisiblePosition( displayPosition );
+		}
+
+		/**
+		 * Expand or collapse the groups in [fromGroup, toGroup).
+		 */
+		public void setGroupsExpanded( int fromGroup, int toGroup, boolean expanded ) {
+			mModel.setGroupsExpanded( fromGroup, toGroup, expanded );
+		}
+
+		public void setAllGroupsExpanded( boolean expanded ) {
+			mModel.setAllGroupsExpanded( expanded );
+		}
+
+		/**
+		 * Collapse every group whose newest message is older than {@code time}; other groups
+		 * keep their state.
+		 */
+		public void collapseGroupsOlderThan( long time ) {
+			mModel.collapseGroupsOlderThan( time );
+		}
+
+		/**
+		 * Expand the groups that have unread messages and collapse all others.
+		 */
+		public void expandOnlyUnreadGroups() {
+			mModel.expandOnlyUnreadGroups();
 		}
 
 		public int getCount() {
-			if( !mListFragment.isThreadViewAllowed() )
+			if( !isThreadView() )
 				return super.getCount();
 			return getCountVisible();
 		}
 
 		public int getCountVisible() {
-			int count = 0;
-			for( int i = 0; i < mGroups.size(); i++ )
-				if( mGroups.get( i ).mIsGroupShown || mGroups.get( i ).mIsGroupItem )
-					count++;
-			return count;
+			return mModel.getVisibleCount();
 		}
 
 		public int getPosition() {
-			if( !mListFragment.isThreadViewAllowed() )
-				return super.getPosition();
+			if( !isThreadView() )
+				return mRowPosition;
 			return mLastPosition;
 		}
 
-		public int getVisiblePosition( int position ) {
-			if( position < 0 )
-				return position;
-			int vCount = 0, i = 0;
-			for( i = 0; i < mGroups.size(); i++ ) {
-				if( mGroups.get( i ).mIsGroupShown || mGroups.get( i ).mIsGroupItem ) {
-					if( vCount == position )
-						break;
-					vCount++;
-				}
-			}
-			//Log.i( "K9Victor", "getVisiblePosition: "+String.valueOf( position )+" -> "+String.valueOf( i ) );
-			return i;
-		}
-
 		public boolean moveToPosition( int position ) {
-			if( !mListFragment.isThreadViewAllowed() )
-				return super.moveToPosition( position );
+			if( !isThreadView() )
+				return moveToRow( position );
 			int newPosition = position;
-			int vPosition = getVisiblePosition( position );
-			if( vPosition >= 0 && mGroups.size() > 0 ) {
-				if( vPosition >= mGroups.size() )
-					newPosition = mGroups.get( mGroups.size() - 1 ).mNewPosition + 1;
-				else
-					newPosition = mGroups.get( vPosition ).mNewPosition;
-			}
-			if( super.moveToPosition( newPosition ) || newPosition == -1 ) {
+			if( position >= 0 && mModel.getRowCount() > 0 )
+				newPosition = mModel.getDisplayPosition( position );
+			if( moveToRow( newPosition ) || newPosition == -1 ) {
 				mLastPosition = position;
 				//Log.i( "K9Victor", "moveToPosition - position: "+String.valueOf( position )+", newPosition: "+String.valueOf( newPosition )+" true" );
 				return true;
@@ -302,70 +668,73 @@ import java.util.Set;
 		}
 
 		public boolean moveToNext() {
-			if( !mListFragment.isThreadViewAllowed() )
-				return super.moveToNext();
+			if( !isThreadView() )
+				return moveToRow( mRowPosition+1 );
 			return moveToPosition( mLastPosition+1 );
 		}
 
 		public boolean moveToPrevious() {
-			if( !mListFragment.isThreadViewAllowed() )
-				return super.moveToPrevious();
+			if( !isThreadView() )
+				return moveToRow( mRowPosition-1 );
 			return moveToPosition( mLastPosition-1 );
 		}
 
 		public boolean move( int offset ) {
-			if( !mListFragment.isThreadViewAllowed() )
-				return super.move( offset );
+			if( !isThreadView() )
+				return moveToRow( mRowPosition + offset );
 			return moveToPosition( mLastPosition + offset );
 		}
 
 		public boolean moveToFirst() {
-			if( !mListFragment.isThreadViewAllowed() )
-				return super.moveToFirst();
+			if( !isThreadView() )
+				return moveToRow( 0 );
 			return moveToPosition( 0 );
 		}
 
 		public boolean moveToLast() {
-			if( !mListFragment.isThreadViewAllowed() )
-				return super.moveToLast();
+			if( !isThreadView() )
+				return moveToRow( super.getCount() - 1 );
 			return moveToPosition( getCount() - 1 );
 		}
 
 		public boolean isGroupItem() {
-			if( !mListFragment.isThreadViewAllowed() )
+			if( !isThreadView() )
 				return false;
-			//Log.i( "K9Victor", "isGroupItem - mLastPosition: "+String.valueOf( mLastPosition )+", super.getPosition():"+String.valueOf( super.getPosition() )+" "+String.valueOf( mGroupItems.get( mLastPosition ).booleanValue() ) );
-			return mGroups.get( getVisiblePosition( getPosition() ) ).mIsGroupItem;
+			return mModel.headerAt( getPosition() ) >= 0;
 		}
 
 		public void toggleGroup( int position ) {
 			//Log.i( "K9Victor", "toggleGroup: "+String.valueOf( position ) );
 			moveToPosition( position );
-			if( !isGroupItem() )
-				return;
-			int vPosition = getVisiblePosition( getPosition() );
-			boolean show = !mGroups.get( vPosition ).mIsGroupShown;
-			mGroups.get( vPosition ).mIsGroupShown = show;
-			while( ++vPosition < mGroups.size() && !mGroups.get( vPosition ).mIsGroupItem ) {
-				mGroups.get( vPosition ).mIsGroupShown = show;
-			}
-			//Log.i( "K9Victor", mGroups.toString() );
+			int g = mModel.headerAt( position );
+			if( g >= 0 )
+				mModel.toggleGroup( g );
 		}
 
 		public boolean showGroup( int position ) {
 			//Log.i( "K9Victor", "showGroup: "+String.valueOf( position ) );
-			if( !mGroups.get( getVisiblePosition( position ) ).mIsGroupShown ) {
+			int g = mModel.headerAt( position );
+			if( g >= 0 && !mModel.isGroupExpanded( g ) ) {
 				toggleGroup( position );
 				return true;
 			}
 			return false;
 		}
 
+		/**
+		 * Add or remove the ids of every message in the group whose header is at the given
+		 * position.
+		 */
+		public void updateGroupIds( int position, MessageIdSet ids, boolean add ) {
+			int g = mModel.headerAt( position );
+			if( g >= 0 )
+				mModel.updateGroupIds( g, ids, add );
+		}
+
 		public int numberOfItemsInGroup( int position ) {
 			moveToPosition( position );
-			if( !isGroupItem() )
-				return 0;
-			return mGroups.get( getVisiblePosition( getPosition() ) ).mNumberOfItems;
+			int g = mModel.headerAt( getPosition() );
+			return g < 0 ? 0 : mModel.getGroupSize( g );
 		}
 	}
 
@@ -373,23 +742,112 @@ import java.util.Set;
         super(context.getApplicationContext(), null, 0 /* no auto requery */);
         mResourceHelper = ResourceHelper.getInstance(context);
         mCallback = callback;
+        mFlagQueue = new MessageFlagQueue(getBulkUpdater());
+        ListCacheRegistry.getInstance(context);
+    }
+
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        // What the list shows now, taken before the flag queue drops the changes that the new
+        // rows already include.  The new cursor's items were mostly computed on the loader
+        // thread, before the flag overlay was set; a row whose change is still queued may come
+        // out as changed and be bound once more, which binds it as it is.
+        long[][] before = newCursor == getCursor() ? null : getVisibleItems(getCursor());
+        if (newCursor instanceof MessagesCursor) {
+            mFlagQueue.onCursorChanged(((MessagesCursor) newCursor).getFlagSequence());
+            ((MessagesCursor) newCursor).setGroupingMode(mGroupingMode);
+            ((MessagesCursor) newCursor).setFlagOverlay(mFlagQueue);
+        }
+        ListDiff diff = null;
+        if (before != null) {
+            long[][] after = getVisibleItems(newCursor);
+            if (after != null) {
+                diff = ListDiff.compute(before[0], before[1], after[0], after[1],
+                        MAX_DIFF_EDITS);
+            }
+        }
+        if (diff == null) {
+            MessageListStats.count(MessageListStats.COUNTER_FULL_RELOADS, 1);
+            return super.swapCursor(newCursor);
+        }
+        MessageListStats.count(MessageListStats.COUNTER_PARTIAL_RELOADS, 1);
+        if (diff.hasStructuralChanges()) {
+            return swapShifted(newCursor, diff);
+        }
+
+        // Every item is where it was, so the list does not need to lay out again; rebind the
+        // rows whose content changed, which after a flag change round trip is usually none.
+        Cursor oldCursor;
+        mSuppressNotify = true;
+        try {
+            oldCursor = super.swapCursor(newCursor);
+        } finally {
+            mSuppressNotify = false;
+        }
+        rebindVisiblePositions(diff.getChanged());
+        return oldCursor;
+    }
+
+    /**
+     * Swaps in a cursor whose items are those shown with some inserted, removed or moved.  The
+     * list lays out again, but keeps the item at the top of the screen where it is rather than
+     * the position, and since ids are stable it gets back the views of items that stayed, which
+     * are not bound again unless their version changed; see {@link #getView}.
+     */
+    private Cursor swapShifted(Cursor newCursor, ListDiff diff) {
+        ListView list = mListView instanceof ListView ? (ListView) mListView : null;
+        int first = -1;
+        int top = 0;
+        int headers = 0;
+        if (list != null && list.getChildCount() > 0) {
+            headers = list.getHeaderViewsCount();
+            first = list.getFirstVisiblePosition() - headers;
+            top = list.getChildAt(0).getTop();
+        }
+        Cursor oldCursor = super.swapCursor(newCursor);
+        if (first >= 0) {
+            int shifted = diff.getNewPosition(first);
+            if (shifted != first) {
+                list.setSelectionFromTop(shifted + headers, top);
+            }
+        }
+        return oldCursor;
+    }
+
+    /**
+     * @return the item ids and versions of every list position, or null if there is no cursor
+     *     or the list is too long to be worth diffing.
+     */
+    private static long[][] getVisibleItems(Cursor cursor) {
+        if (!(cursor instanceof MessagesCursor) || cursor.isClosed()) {
+            return null;
+        }
+        return ((MessagesCursor) cursor).getItems();
+    }
+
+    @Override
+    public void notifyDataSetChanged() {
+        if (!mSuppressNotify) {
+            super.notifyDataSetChanged();
+        }
     }
 
     public void setLayout(ThreePaneLayout layout) {
         mLayout = layout;
+        mBindGeneration++;
     }
 
     public void onSaveInstanceState(Bundle outState) {
-        outState.putLongArray(STATE_CHECKED_ITEMS, Utility.toPrimitiveLongArray(getSelectedSet()));
+        outState.putByteArray(STATE_CHECKED_ITEMS, mSelectedSet.toByteArray());
     }
 
     public void loadState(Bundle savedInstanceState) {
-        Set<Long> checkedset = getSelectedSet();
-        checkedset.clear();
-        for (long l: savedInstanceState.getLongArray(STATE_CHECKED_ITEMS)) {
-            checkedset.add(l);
+        mSelectedSet.clear();
+        byte[] checked = savedInstanceState.getByteArray(STATE_CHECKED_ITEMS);
+        if (checked != null) {
+            mSelectedSet.or(MessageIdSet.fromByteArray(checked));
         }
-        notifyDataSetChanged();
+        invalidateVisibleItems();
     }
 
     /**
@@ -397,20 +855,209 @@ import java.util.Set;
      */
     public void setShowColorChips(boolean show) {
         mShowColorChips = show;
+        mBindGeneration++;
     }
 
     public void setQuery(String query) {
         mQuery = query;
+        mBindGeneration++;
+    }
+
+    /**
+     * Sets how messages are grouped; see the GROUPING_ constants.  Switching to a conversation
+     * mode regroups the loaded messages in memory, without a new query.
+     */
+    public void setGroupingMode(int groupingMode) {
+        mGroupingMode = groupingMode;
+        MessagesCursor c = (MessagesCursor) getCursor();
+        if (c != null) {
+            c.setGroupingMode(groupingMode);
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Re-sorts the loaded messages in memory.
+     *
+     * @return false if the current cursor cannot be re-sorted, in which case the loader has to
+     *     be restarted with the new sort order.
+     */
+    public boolean setSortOrder(int sortOrder) {
+        MessagesCursor c = (MessagesCursor) getCursor();
+        if (c == null || !c.setSortOrder(sortOrder)) {
+            return false;
+        }
+        notifyDataSetChanged();
+        return true;
+    }
+
+    /**
+     * Expands or collapses, in one operation, every group with messages in the same year, month,
+     * week or day as the given position.  Does nothing unless the list is grouped by date.
+     *
+     * @param level one of the LEVEL_ constants of {@link DateGroupIndex}
+     */
+    public void setDateRangeExpanded(int position, int level, boolean expanded) {
+        DateGroupIndex index = getDateIndex();
+        if (index == null || index.getRowCount() == 0) {
+            return;
+        }
+        MessagesCursor c = (MessagesCursor) getCursor();
+        int node = index.findNode(level, c.getDisplayPositionAt(position));
+        c.setGroupsExpanded(c.getGroupAtDisplayPosition(index.getFirstPosition(level, node)),
+                c.getGroupAtDisplayPosition(index.getEndPosition(level, node) - 1) + 1,
+                expanded);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Collapses or expands every group.
+     */
+    public void setAllGroupsExpanded(boolean expanded) {
+        MessagesCursor c = (MessagesCursor) getCursor();
+        if (c != null) {
+            c.setAllGroupsExpanded(expanded);
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Collapses every group whose newest message is older than {@code time}.
+     */
+    public void collapseGroupsOlderThan(long time) {
+        MessagesCursor c = (MessagesCursor) getCursor();
+        if (c != null) {
+            c.collapseGroupsOlderThan(time);
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Expands the groups that have unread messages and collapses all others.
+     */
+    public void expandOnlyUnreadGroups() {
+        MessagesCursor c = (MessagesCursor) getCursor();
+        if (c != null) {
+            c.expandOnlyUnreadGroups();
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * @return the list position of the first message from the day {@code time} falls on, or the
+     *     nearest after it in list order; -1 if the list is not grouped by date.
+     */
+    public int getPositionForDate(long time) {
+        DateGroupIndex index = getDateIndex();
+        if (index == null || index.getRowCount() == 0) {
+            return -1;
+        }
+        return ((MessagesCursor) getCursor()).getPositionOfDisplayPosition(
+                index.findPosition(time));
+    }
+
+    private DateGroupIndex getDateIndex() {
+        MessagesCursor c = (MessagesCursor) getCursor();
+        return c == null ? null : c.getDateIndex();
+    }
+
+    @Override
+    public Object[] getSections() {
+        DateGroupIndex index = getDateIndex();
+        if (index != mSectionIndex) {
+            mSectionIndex = index;
+            mSections = NO_SECTIONS;
+            if (index != null) {
+                mSections = new Object[index.getNodeCount(SECTION_LEVEL)];
+                for (int node = 0; node < mSections.length; node++) {
+                    mSections[node] = DateUtils.formatDateTime(mContext,
+                            index.getNodeTime(SECTION_LEVEL, node),
+                            DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_YEAR
+                            | DateUtils.FORMAT_NO_MONTH_DAY | DateUtils.FORMAT_ABBREV_MONTH);
+                }
+            }
+        }
+        return mSections;
+    }
+
+    @Override
+    public int getPositionForSection(int section) {
+        DateGroupIndex index = getDateIndex();
+        if (index == null || index.getNodeCount(SECTION_LEVEL) == 0) {
+            return 0;
+        }
+        section = Math.max(0, Math.min(section, index.getNodeCount(SECTION_LEVEL) - 1));
+        return ((MessagesCursor) getCursor()).getPositionOfDisplayPosition(
+                index.getFirstPosition(SECTION_LEVEL, section));
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        DateGroupIndex index = getDateIndex();
+        if (index == null || index.getNodeCount(SECTION_LEVEL) == 0) {
+            return 0;
+        }
+        return index.findNode(SECTION_LEVEL,
+                ((MessagesCursor) getCursor()).getDisplayPositionAt(position));
     }
 
     public Set<Long> getSelectedSet() {
         return mSelectedSet;
     }
 
+    /**
+     * @return the selected message IDs without boxing; preferred over {@link #getSelectedSet()}
+     *     for bulk actions, which can stream over {@link MessageIdSet#idIterator()}.
+     */
+    public MessageIdSet getSelectedIds() {
+        return mSelectedSet;
+    }
+
     public Set<Long> getSelectedGroupSet() {
         return mSelectedGroupSet;
     }
 
+    /**
+     * @return an estimate of the heap the list retains, by structure: the cursor's state, its
+     *     snapshot and model, the selection, the coordinates cache and the views on screen; see
+     *     {@link MemoryAccounting}.  The cursor window is native memory and not counted.
+     */
+    public MemoryAccounting.Report getMemoryReport() {
+        MessagesCursor c = (MessagesCursor) getCursor();
+        MemoryAccounting.Report report =
+                new MemoryAccounting.Report(c == null ? 0 : c.getSnapshot().mCount);
+        if (c != null) {
+            report.add("cursor", MessagesCursor.STATE_BYTES);
+            report.add("snapshot", c.getSnapshot().getRetainedBytes());
+            report.add("model", c.getModel().getRetainedBytes());
+        }
+        report.add("selection", mSelectedSet.getRetainedBytes()
+                + MemoryAccounting.hashSetOfBoxed(mSelectedGroupSet.size()));
+        report.add("coordinates cache", MessageListItemCoordinates.getCacheRetainedBytes());
+        if (mListView != null) {
+            long views = 0;
+            for (int i = 0; i < mListView.getChildCount(); i++) {
+                View child = mListView.getChildAt(i);
+                if (child instanceof MessageListItem) {
+                    views += ((MessageListItem) child).getRetainedBytes();
+                }
+            }
+            report.add("views", views);
+        }
+        return report;
+    }
+
+    /**
+     * @return the updater that applies favorite, read, move and delete actions to a set of
+     *     messages (typically {@link #getSelectedIds()}) in chunked provider batches.
+     */
+    public MessageBulkUpdater getBulkUpdater() {
+        if (mBulkUpdater == null) {
+            mBulkUpdater = new MessageBulkUpdater(mContext);
+        }
+        return mBulkUpdater;
+    }
+
     /**
      * Clear the selection.  It's preferable to calling {@link Set#clear()} on
      * {@link #getSelectedSet()}, because it also notifies observers.
@@ -421,7 +1068,7 @@ import java.util.Set;
             checkedset.clear();
             checkedset = getSelectedGroupSet();
             checkedset.clear();
-            notifyDataSetChanged();
+            invalidateVisibleItems();
         }
     }
 
@@ -433,17 +1080,50 @@ import java.util.Set;
 			return getSelectedSet().contains(itemView.mMessageId);
     }
 
+    @Override
+    public int getViewTypeCount() {
+        return 2;
+    }
+
+    @Override
+    public int getItemViewType( int position ) {
+		MessagesCursor c = (MessagesCursor)getCursor();
+		return c != null && c.moveToPosition( position ) && c.isGroupItem() ? VIEW_TYPE_HEADER : VIEW_TYPE_MESSAGE;
+	}
+
     @Override
     public View getView( int position, View convertView, ViewGroup parent ) {
-		// we should call parent without convertView to make sure new Views are always created
-		// so that system does not reuse ItemGroup view where Item view must be used and vice versa
-		View v = super.getView( position, null, parent );
+		// convertView is always of the view type of the position, so headers and messages are
+		// never recycled into each other; a view that already shows this item as it is now,
+		// which is common when the list lays out again, is returned without binding
+		mListView = parent;
+		if( !mDataValid )
+			throw new IllegalStateException( "this should only be called when the cursor is valid" );
+		MessagesCursor c = (MessagesCursor)getCursor();
+		if( !c.moveToPosition( position ) )
+			throw new IllegalStateException( "couldn't move cursor to position " + position );
+		View v = convertView != null ? convertView : newView( mContext, c, parent );
+		boolean bound = isBoundTo( (MessageListItem)v, c );
+		MessageListStats.cacheLookup( MessageListStats.CACHE_BOUND_VIEW, bound );
+		if( !bound )
+			bindView( v, mContext, c );
 		v.setTag( position );
 		return v;
 	}
 
+    /**
+     * @return true if the view shows the item at the cursor exactly as binding it would.
+     */
+    private boolean isBoundTo(MessageListItem itemView, MessagesCursor c) {
+        return itemView.mBoundGeneration == mBindGeneration
+                && itemView.mMessageId == c.getItemId()
+                && itemView.mBoundVersion == c.getItemVersion()
+                && !itemView.mCheap;
+    }
+
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
+        long start = MessageListStats.start();
         // Reset the view (in case it was recycled) and prepare for binding
         MessageListItem itemView = (MessageListItem) view;
         itemView.bindViewInit(this, mLayout);
@@ -451,36 +1131,122 @@ import java.util.Set;
         // TODO: just move thise all to a MessageListItem.bindTo(cursor) so that the fields can
         // be private, and their inter-dependence when they change can be abstracted away.
 
-        // Load the public fields in the view (for later use)
-        itemView.mMessageId = cursor.getLong(COLUMN_ID);
+        // Load the public fields in the view (for later use).  Everything but the snippet comes
+        // from the cursor's snapshot, which avoids a trip through the cursor window per column.
+        final MessageListSnapshot snapshot = ((MessagesCursor) cursor).getSnapshot();
+        final int row = ((MessagesCursor) cursor).getRow();
+        itemView.mMessageId = snapshot.getId(row);
         if( itemView instanceof MessageListItemGroup )
-			itemView.mMessageId += 1000000; // make this large enough, so it is different than the first normal message row in the group
-        itemView.mMailboxId = cursor.getLong(COLUMN_MAILBOX_KEY);
-        final long accountId = cursor.getLong(COLUMN_ACCOUNT_KEY);
+			itemView.mMessageId = ((MessagesCursor) cursor).getItemId(); // tagged, never a message id
+        itemView.mMailboxId = snapshot.getMailboxKey(row);
+        final long accountId = snapshot.getAccountKey(row);
         itemView.mAccountId = accountId;
 
-        boolean isRead = cursor.getInt(COLUMN_READ) != 0;
+        boolean isRead = mFlagQueue.isRead(itemView.mMessageId,
+                snapshot.hasFlag(row, MessageListSnapshot.FLAG_READ));
         boolean readChanged = isRead != itemView.mRead;
         itemView.mRead = isRead;
-        itemView.mIsFavorite = cursor.getInt(COLUMN_FAVORITE) != 0;
-        final int flags = cursor.getInt(COLUMN_FLAGS);
-        itemView.mHasInvite = (flags & Message.FLAG_INCOMING_MEETING_INVITE) != 0;
-        itemView.mHasBeenRepliedTo = (flags & Message.FLAG_REPLIED_TO) != 0;
-        itemView.mHasBeenForwarded = (flags & Message.FLAG_FORWARDED) != 0;
-        itemView.mHasAttachment = cursor.getInt(COLUMN_ATTACHMENTS) != 0;
-        itemView.setTimestamp(cursor.getLong(COLUMN_DATE));
-        itemView.mSender = cursor.getString(COLUMN_DISPLAY_NAME);
-        itemView.setText(
-                cursor.getString(COLUMN_SUBJECT), cursor.getString(COLUMN_SNIPPET), readChanged);
+        itemView.mIsFavorite = mFlagQueue.isFavorite(itemView.mMessageId,
+                snapshot.hasFlag(row, MessageListSnapshot.FLAG_FAVORITE));
+        itemView.mHasInvite = snapshot.hasFlag(row, MessageListSnapshot.FLAG_INVITE);
+        itemView.mHasBeenRepliedTo = snapshot.hasFlag(row, MessageListSnapshot.FLAG_REPLIED_TO);
+        itemView.mHasBeenForwarded = snapshot.hasFlag(row, MessageListSnapshot.FLAG_FORWARDED);
+        itemView.mHasAttachment = snapshot.hasFlag(row, MessageListSnapshot.FLAG_ATTACHMENT);
+        itemView.setTimestamp(snapshot.getTimestamp(row));
+        itemView.mSender = snapshot.getSender(row);
+        itemView.mSenderCode = snapshot.getSenderCode(row);
+        if (mFlingController != null && mFlingController.isFast()
+                && !(itemView instanceof MessageListItemGroup)) {
+            // Nobody reads a row going by this fast; the snippet and its highlighting wait.
+            itemView.setSubjectOnly(snapshot.getSubject(row));
+            MessageListStats.count(MessageListStats.COUNTER_CHEAP_ROWS, 1);
+        } else {
+            bindText(itemView, cursor, snapshot, row, readChanged);
+        }
         itemView.mColorChipPaint =
             mShowColorChips ? mResourceHelper.getAccountColorPaint(accountId) : null;
 
+        if (itemView instanceof MessageListItemGroup) {
+            MessagesCursor c = (MessagesCursor) cursor;
+            int group = c.getCurrentGroup();
+            if (group >= 0) {
+                // A header is shown read once everything in its group is.
+                itemView.mRead = c.getGroupUnreadCount(group) == 0;
+                ((MessageListItemGroup) itemView).setSummary(c.getGroupSize(group),
+                        c.getGroupUnreadCount(group), c.getGroupFavoriteCount(group),
+                        c.getGroupAttachmentCount(group));
+            }
+        }
+        itemView.mBoundVersion = ((MessagesCursor) cursor).getItemVersion();
+        itemView.mBoundGeneration = mBindGeneration;
+        MessageListStats.stop(MessageListStats.TIMER_BIND, start);
+        if (mFrameMonitor != null) {
+            mFrameMonitor.onRow(ListFrameMonitor.PHASE_BIND, cursor.getPosition(), itemView,
+                    start);
+        }
+    }
+
+    private void bindText(MessageListItem itemView, Cursor cursor, MessageListSnapshot snapshot,
+            int row, boolean forceUpdate) {
+        itemView.mCheap = false;
+        itemView.setText(
+                snapshot.getSubject(row), cursor.getString(COLUMN_SNIPPET), forceUpdate);
         if (mQuery != null && itemView.mSnippet != null) {
             itemView.mSnippet =
                 TextUtilities.highlightTermsInText(cursor.getString(COLUMN_SNIPPET), mQuery);
         }
     }
 
+    /**
+     * Binds the text of a row that was bound cheaply during a fling, if it still shows the
+     * item at {@code position}; setting the text lays the row out again.
+     *
+     * @return false if the row is left as it is
+     */
+    /* package */ boolean finishCheapRow(MessageListItem itemView, int position) {
+        MessagesCursor c = (MessagesCursor) getCursor();
+        if (!itemView.mCheap || c == null || !c.moveToPosition(position)
+                || itemView.mMessageId != c.getItemId()) {
+            return false;
+        }
+        bindText(itemView, c, c.getSnapshot(), c.getRow(), false);
+        MessageListStats.count(MessageListStats.COUNTER_FINISHED_ROWS, 1);
+        return true;
+    }
+
+    /**
+     * @return the id of the message at {@code position}, or -1 if there is none or the row is a
+     *     group header; with {@code unreadOnly}, also -1 if the message is read.
+     */
+    /* package */ long getMessageIdAt(int position, boolean unreadOnly) {
+        MessagesCursor c = (MessagesCursor) getCursor();
+        if (c == null || !c.moveToPosition(position) || c.isGroupItem()) {
+            return -1;
+        }
+        final MessageListSnapshot snapshot = c.getSnapshot();
+        final int row = c.getRow();
+        final long messageId = snapshot.getId(row);
+        if (unreadOnly && mFlagQueue.isRead(messageId,
+                snapshot.hasFlag(row, MessageListSnapshot.FLAG_READ))) {
+            return -1;
+        }
+        return messageId;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        MessagesCursor c = (MessagesCursor) getCursor();
+        if (c == null || !c.moveToPosition(position)) {
+            return 0;
+        }
+        return c.getItemId();
+    }
+
     @Override
     public View newView(Context context, Cursor cursor, ViewGroup parent) {
 		if( ((MessagesCursor)cursor).isGroupItem() ) {
@@ -495,6 +1261,26 @@ import java.util.Set;
         return item;
     }
 
+    /**
+     * @return the scroll listener of the list.  The list fragment adds its own scroll listener
+     *     to it rather than setting one on the list.
+     */
+    /* package */ ListScrollDispatcher getScrollDispatcher() {
+        return mScrollDispatcher;
+    }
+
+    /* package */ void setFrameMonitor(ListFrameMonitor monitor) {
+        mFrameMonitor = monitor;
+    }
+
+    /* package */ ListFrameMonitor getFrameMonitor() {
+        return mFrameMonitor;
+    }
+
+    /* package */ void setFlingController(ListFlingController controller) {
+        mFlingController = controller;
+    }
+
     public boolean isThreadViewAllowed() {
 		return mCallback.isThreadViewAllowed();
 	}
@@ -522,17 +1308,15 @@ import java.util.Set;
 			}
 			int position = (Integer)itemView.getTag();
 			MessagesCursor c = (MessagesCursor)getCursor();
-			if( c.showGroup( position ) )
+			boolean expanded = c.showGroup( position );
+			if( expanded )
 				itemView.getParent().getParent().requestLayout();
-			c.moveToPosition( position );
-			while( c.moveToNext() && !c.isGroupItem() ) {
-				if (newSelected) {
-					mSelectedSet.add( c.getLong(COLUMN_ID) );
-				} else {
-					mSelectedSet.remove( c.getLong(COLUMN_ID) );
-				}
-			}
-			notifyDataSetChanged();
+			c.updateGroupIds( position, mSelectedSet, newSelected );
+			// the rows of the group only need redrawing, unless expanding it just revealed them
+			if( expanded )
+				notifyDataSetChanged();
+			else
+				invalidateVisibleItems();
 		} else {
 			if (newSelected) {
 				mSelectedSet.add(itemView.mMessageId);
@@ -546,7 +1330,8 @@ import java.util.Set;
     }
 
     /**
-     * This is used as a callback from the list items, to set the favorite state
+     * This is used as a callback from the list items, to set the favorite state.  The provider
+     * write is queued on the flag queue.
      *
      * <p>Must be called on the UI thread.
      *
@@ -554,9 +1339,199 @@ import java.util.Set;
      * @param newFavorite the new value of the favorite flag (star state)
      */
     public void updateFavorite(MessageListItem itemView, boolean newFavorite) {
+        int group = updateGroupFlag(itemView.mMessageId, MessageListSnapshot.FLAG_FAVORITE,
+                newFavorite);
+        mFlagQueue.setFavorite(itemView.mMessageId, newFavorite);
         changeFavoriteIcon(itemView, newFavorite);
-        if (mCallback != null) {
-            mCallback.onAdapterFavoriteChanged(itemView, newFavorite);
+        rebindVisibleGroup(group);
+    }
+
+    /**
+     * Called by the list fragment when the user opens a message from the list.  Marks it read
+     * through the flag queue, so flipping through messages doesn't reload the list for each one.
+     *
+     * <p>Must be called on the UI thread.
+     *
+     * @return the body of the message if {@link MessageBodyPrefetcher} loaded it, which the
+     *     fragment passes on to the message view so it does not load the body again; else null
+     */
+    public Body onMessageOpen(long messageId) {
+        setMessageRead(messageId, true);
+        return MessageBodyPrefetcher.getBody(messageId);
+    }
+
+    /**
+     * Marks a message read or unread.  The row is updated right away; the provider write is
+     * queued and flushed together with other flag changes.
+     *
+     * <p>Must be called on the UI thread.
+     */
+    public void setMessageRead(long messageId, boolean read) {
+        int group = updateGroupFlag(messageId, MessageListSnapshot.FLAG_READ, read);
+        mFlagQueue.setRead(messageId, read);
+        rebindVisibleMessage(messageId);
+        rebindVisibleGroup(group);
+    }
+
+    /**
+     * Marks every selected message read or unread.  The rows update right away, and the whole
+     * selection is handed to the provider in one flag batch without waiting for the queue's delay.
+     *
+     * <p>Must be called on the UI thread.
+     */
+    public void setSelectedRead(boolean read) {
+        if (mSelectedSet.isEmpty()) {
+            return;
+        }
+        updateSelectedFlags(MessageListSnapshot.FLAG_READ, read);
+        mFlagQueue.setRead(mSelectedSet, read);
+        mFlagQueue.flush();
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Stars or unstars every selected message, like {@link #setSelectedRead}.
+     *
+     * <p>Must be called on the UI thread.
+     */
+    public void setSelectedFavorite(boolean favorite) {
+        if (mSelectedSet.isEmpty()) {
+            return;
+        }
+        updateSelectedFlags(MessageListSnapshot.FLAG_FAVORITE, favorite);
+        mFlagQueue.setFavorite(mSelectedSet, favorite);
+        mFlagQueue.flush();
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Moves every selected message to {@code mailboxId} in chunked provider batches, and clears
+     * the selection.  Pending flag changes are written first.
+     *
+     * <p>Must be called on the UI thread.
+     */
+    public void moveSelected(long mailboxId, MessageBulkUpdater.Callback callback) {
+        mFlagQueue.flush();
+        getBulkUpdater().move(mSelectedSet, mailboxId, callback);
+        clearSelection();
+    }
+
+    /**
+     * Deletes every selected message in chunked provider batches, and clears the selection.
+     * Like deleting a single message, this moves them to the trash of their account; only
+     * messages already in the trash are deleted for good.  Pending flag changes are written
+     * first.
+     *
+     * <p>Must be called on the UI thread.
+     */
+    public void deleteSelected(MessageBulkUpdater.Callback callback) {
+        mFlagQueue.flush();
+        getBulkUpdater().moveToTrash(mSelectedSet, callback);
+        clearSelection();
+    }
+
+    /**
+     * Updates the group aggregates of the current cursor for a flag change of every selected
+     * message.  Like {@link #updateGroupFlag}, must be called before the change is queued.
+     */
+    private void updateSelectedFlags(int flag, boolean value) {
+        MessagesCursor c = (MessagesCursor) getCursor();
+        if (c != null) {
+            MessageIdSet.IdIterator it = mSelectedSet.idIterator();
+            while (it.hasNext()) {
+                c.updateGroupFlag(it.next(), flag, value);
+            }
+        }
+    }
+
+    /**
+     * Updates the group aggregates of the current cursor for a flag change.  Must be called
+     * before the change is queued, as the cursor compares it with what the queue shows.
+     *
+     * @return the group of the message in the current cursor, or -1.
+     */
+    private int updateGroupFlag(long messageId, int flag, boolean value) {
+        MessagesCursor c = (MessagesCursor) getCursor();
+        return c == null ? -1 : c.updateGroupFlag(messageId, flag, value);
+    }
+
+    /**
+     * Rebinds the header of a group, if it is on screen, so its summary shows the current
+     * aggregates.
+     */
+    private void rebindVisibleGroup(int group) {
+        MessagesCursor c = (MessagesCursor) getCursor();
+        if (mListView == null || c == null || group < 0) {
+            return;
+        }
+        final int position = c.getGroupPosition(group);
+        for (int i = mListView.getChildCount() - 1; i >= 0; i--) {
+            View child = mListView.getChildAt(i);
+            if (child instanceof MessageListItemGroup && (Integer) child.getTag() == position
+                    && c.moveToPosition(position)) {
+                bindView(child, mContext, c);
+                child.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Rebinds the on-screen rows at the given positions, sorted ascending.
+     */
+    private void rebindVisiblePositions(int[] positions) {
+        Cursor c = getCursor();
+        if (mListView == null || c == null || positions.length == 0) {
+            return;
+        }
+        for (int i = mListView.getChildCount() - 1; i >= 0; i--) {
+            View child = mListView.getChildAt(i);
+            if (child instanceof MessageListItem
+                    && Arrays.binarySearch(positions, (Integer) child.getTag()) >= 0
+                    && c.moveToPosition((Integer) child.getTag())) {
+                bindView(child, mContext, c);
+                child.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Redraws the on-screen rows, e.g. after the selection changed, without binding them.
+     */
+    private void invalidateVisibleItems() {
+        if (mListView == null) {
+            return;
+        }
+        for (int i = mListView.getChildCount() - 1; i >= 0; i--) {
+            mListView.getChildAt(i).invalidate();
+        }
+    }
+
+    /**
+     * Writes out queued read and favorite changes immediately.  Call when the list is paused.
+     */
+    public void flushPendingFlags() {
+        mFlagQueue.flush();
+    }
+
+    /**
+     * Rebinds the row showing {@code messageId}, if it is on screen, without touching any
+     * other row.
+     */
+    private void rebindVisibleMessage(long messageId) {
+        Cursor c = getCursor();
+        if (mListView == null || c == null) {
+            return;
+        }
+        for (int i = mListView.getChildCount() - 1; i >= 0; i--) {
+            View child = mListView.getChildAt(i);
+            if (!(child instanceof MessageListItem) || child instanceof MessageListItemGroup) {
+                continue;
+            }
+            MessageListItem item = (MessageListItem) child;
+            if (item.mMessageId == messageId && c.moveToPosition((Integer) item.getTag())) {
+                bindView(item, mContext, c);
+                item.invalidate();
+            }
         }
     }
 
@@ -584,6 +1559,10 @@ import java.util.Set;
         private final long mMailboxId;
         private final MessageListContext mListContext;
         private MessageListFragment mListFragment;
+        /** The sort order of the query, which the list may later re-sort in memory. */
+        private final int mQuerySortOrder;
+        /** {@link MessageFlagQueue#getWriteSequence()} as read before the last query. */
+        private long mFlagSequence;
 
         public MessagesCursorLoader(Context context, MessageListContext listContext, MessageListFragment listFragment) {
             // Initialize with no where clause.  We'll set it later.
@@ -595,14 +1574,26 @@ import java.util.Set;
             mMailboxId = listContext.getMailboxId();
             mListContext = listContext;
             mListFragment = listFragment;
+            mQuerySortOrder = listContext.getSortOrder();
         }
 
         @Override
         public Cursor loadInBackground() {
             // Build the where cause (which can't be done on the UI thread.)
             setSelection(Message.buildMessageListSelection(mContext, mAccountId, mMailboxId));
-            // Then do a query to get the cursor
-            return loadExtras(super.loadInBackground());
+            // Then do a query to get the cursor; flag batches landed by now are in its rows
+            mFlagSequence = MessageFlagQueue.getWriteSequence();
+            long start = MessageListStats.start();
+            Cursor cursor = super.loadInBackground();
+            MessageListStats.stop(MessageListStats.TIMER_QUERY, start);
+            start = MessageListStats.start();
+            cursor = loadExtras(cursor);
+            MessageListStats.stop(MessageListStats.TIMER_LOAD_EXTRAS, start);
+            return cursor;
+        }
+
+        protected long getFlagSequence() {
+            return mFlagSequence;
         }
 
         private Cursor loadExtras(Cursor baseCursor) {
@@ -643,7 +1634,8 @@ import java.util.Set;
                 boolean found, Account account, Mailbox mailbox, boolean isEasAccount,
                 boolean isRefreshable, int countTotalAccounts) {
             return new MessagesCursor(cursor, found, account, mailbox, isEasAccount,
-                    isRefreshable, countTotalAccounts, mListContext, mListFragment);
+                    isRefreshable, countTotalAccounts, mListContext, mListFragment,
+                    mQuerySortOrder, mContext.getCacheDir(), mFlagSequence);
         }
     }
 
@@ -653,9 +1645,9 @@ import java.util.Set;
         private SearchResultsCursor(Cursor cursor,
                 boolean found, Account account, Mailbox mailbox, boolean isEasAccount,
                 boolean isRefreshable, int countTotalAccounts,
-                Mailbox searchedMailbox, int resultsCount) {
+                Mailbox searchedMailbox, int resultsCount, long flagSequence) {
             super(cursor, found, account, mailbox, isEasAccount,
-                    isRefreshable, countTotalAccounts, null, null);
+                    isRefreshable, countTotalAccounts, null, null, -1, null, flagSequence);
             mSearchedMailbox = searchedMailbox;
             mResultsCount = resultsCount;
         }
@@ -718,7 +1710,8 @@ import java.util.Set;
                 boolean found, Account account, Mailbox mailbox, boolean isEasAccount,
                 boolean isRefreshable, int countTotalAccounts) {
             return new SearchResultsCursor(cursor, found, account, mailbox, isEasAccount,
-                    isRefreshable, countTotalAccounts, mSearchedMailbox, mResultsCount);
+                    isRefreshable, countTotalAccounts, mSearchedMailbox, mResultsCount,
+                    getFlagSequence());
         }
     }
 }
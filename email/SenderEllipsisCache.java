@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.activity;
+
+import android.graphics.Typeface;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.text.TextUtils.TruncateAt;
+
+import com.victor.email.list.MemoryAccounting;
+import com.victor.email.list.MessageListStats;
+
+/**
+ * Senders ellipsized to the width of their column, shared by all rows.  Most rows of a folder
+ * come from a few senders, and rows are laid out at a couple of widths in two paints, so
+ * measuring each sender once per width and paint saves measuring it on every layout.
+ *
+ * <p>Entries are keyed by the sender's dictionary code, the typeface, the text size and the
+ * width, in a fixed table where each key has one slot; a colliding key replaces the entry.
+ * Codes are only unique within one load, so an entry also keeps its sender and is only used
+ * for the same string.  Hits allocate nothing.  The cache is emptied when fonts or the
+ * configuration change, and under memory pressure as a {@link ListCacheRegistry} formatter.
+ *
+ * <p>Not thread safe; used on the UI thread.
+ */
+/* package */ class SenderEllipsisCache implements ListCacheRegistry.TrimmableCache {
+    private static class Entry {
+        int mSenderCode;
+        String mSender;
+        Typeface mTypeface;
+        float mTextSize;
+        int mWidth;
+        CharSequence mEllipsized;
+    }
+
+    private final Entry[] mEntries;
+    private final int mMask;
+    private int mSize;
+
+    /** @param capacity the number of slots, a power of two */
+    public SenderEllipsisCache(int capacity) {
+        mEntries = new Entry[capacity];
+        mMask = capacity - 1;
+    }
+
+    /**
+     * @return {@code sender} ellipsized at the end to fit {@code width} pixels in {@code paint},
+     *     as {@link TextUtils#ellipsize} would.
+     */
+    public CharSequence ellipsize(int senderCode, String sender, TextPaint paint, int width) {
+        final Typeface typeface = paint.getTypeface();
+        final float textSize = paint.getTextSize();
+        int hash = senderCode * 31 + width;
+        hash = hash * 31 + Float.floatToIntBits(textSize);
+        hash = hash * 31 + System.identityHashCode(typeface);
+        final int slot = (hash ^ (hash >>> 16)) & mMask;
+        Entry entry = mEntries[slot];
+        if (entry != null && entry.mSenderCode == senderCode && entry.mWidth == width
+                && entry.mTextSize == textSize && entry.mTypeface == typeface
+                && TextUtils.equals(entry.mSender, sender)) {
+            MessageListStats.cacheLookup(MessageListStats.CACHE_SENDER_ELLIPSIS, true);
+            return entry.mEllipsized;
+        }
+        MessageListStats.cacheLookup(MessageListStats.CACHE_SENDER_ELLIPSIS, false);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries[slot] = entry;
+            mSize++;
+        }
+        entry.mSenderCode = senderCode;
+        entry.mSender = sender;
+        entry.mTypeface = typeface;
+        entry.mTextSize = textSize;
+        entry.mWidth = width;
+        entry.mEllipsized = TextUtils.ellipsize(sender, paint, width, TruncateAt.END);
+        return entry.mEllipsized;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mEntries.length; i++) {
+            mEntries[i] = null;
+        }
+        mSize = 0;
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        long bytes = MemoryAccounting.array(mEntries)
+                + mSize * MemoryAccounting.object(4 * MemoryAccounting.REFERENCE + 3 * 4);
+        for (Entry entry : mEntries) {
+            // the sender is the dictionary's; the ellipsized copy is this cache's own
+            if (entry != null && entry.mEllipsized != entry.mSender) {
+                bytes += MemoryAccounting.string(entry.mEllipsized.length());
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public long trim() {
+        long bytes = getRetainedBytes() - MemoryAccounting.array(mEntries);
+        clear();
+        return bytes;
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.activity;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Debug;
+import android.view.View.MeasureSpec;
+
+import com.victor.email.MessageListContext;
+import com.victor.emailcommon.provider.EmailContent.Message;
+
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures what one row of the message list costs while the list scrolls: binding it
+ * ({@link MessagesAdapter#bindView}), laying it out and drawing it.  Messages and group headers
+ * are measured at several widths, read and unread, and each phase is reported as time and bytes
+ * allocated per row.  {@link #assertWithinBudget} fails when a kind of row no longer fits its
+ * share of a frame.
+ *
+ * <p>Nothing here needs a device.  A Robolectric test creates it with the application context
+ * and a started {@link MessageListFragment}, calls {@link #run} and then
+ * {@link #assertWithinBudget}, so a change that makes rows slower fails on the JVM before it
+ * reaches a phone.  Times on the JVM are not those of a device, but they move with the code.
+ * Allocations are counted per thread by the JVM's thread bean, or by {@link Debug} on a device.
+ */
+/* package */ class RowRenderBenchmark {
+    /** One frame at 60 frames per second. */
+    public static final long FRAME_NANOS = 1000000000L / 60;
+    /** Rows a fast fling brings on screen in one frame. */
+    public static final int ROWS_PER_FRAME = 4;
+    /**
+     * What binding, laying out and drawing one row may take together.  The new rows of a frame
+     * get half of it; the list, the rest of the window and the compositor need the other half.
+     */
+    public static final long ROW_BUDGET_NANOS = FRAME_NANOS / 2 / ROWS_PER_FRAME;
+    /** What one row may allocate; more than this in every frame keeps the collector busy. */
+    public static final long ROW_ALLOCATION_BUDGET = 16 * 1024;
+
+    /** Widths in pixels of a phone in portrait and landscape, and of a tablet's list pane. */
+    public static final int[] DEFAULT_WIDTHS = { 480, 800, 1280 };
+
+    public static final int PHASE_BIND = 0;
+    public static final int PHASE_LAYOUT = 1;
+    public static final int PHASE_DRAW = 2;
+    private static final String[] PHASE_NAMES = { "bind", "layout", "draw" };
+
+    private static final String[] SENDERS = {
+        "Ann", "Bob Smith", "Carla Maria Hernandez-Whitfield", "dev-announce@lists.example.com",
+        "Jean-Baptiste Emmanuel Zorg", "Li Wei", "Support Team at Example Corporation",
+    };
+    private static final String[] SUBJECTS = {
+        "Lunch?", "Re: Quarterly planning", "Fwd: Your itinerary for the conference in October",
+        "[dev] Build failures on the release branch after the dependency update", "Re: Re: Hi",
+        "Invitation: Design review @ Wed 10:00 - 11:00", "",
+    };
+    private static final String[] SNIPPETS = {
+        "Sounds good, see you there.",
+        "Attached are the numbers from last quarter. The summary is on the first page and the"
+                + " details follow; let me know if anything is unclear before Thursday.",
+        "",
+        "Hi all, the nightly builds have been red since yesterday evening. It looks like the"
+                + " update pulled in an incompatible version of the annotation processor.",
+    };
+
+    /** Cost per row of one kind of row at one width. */
+    public static class Result {
+        public final boolean mHeader;
+        public final int mWidth;
+        public final boolean mRead;
+        public final int mRows;
+        /** Nanoseconds per row, indexed by the PHASE_ constants. */
+        public final long[] mNanosPerRow = new long[PHASE_NAMES.length];
+        /** Bytes allocated per row, indexed by the PHASE_ constants; -1 if not counted. */
+        public final long[] mBytesPerRow = new long[PHASE_NAMES.length];
+
+        /* package */ Result(boolean header, int width, boolean read, int rows) {
+            mHeader = header;
+            mWidth = width;
+            mRead = read;
+            mRows = rows;
+        }
+
+        public long getNanosPerRow() {
+            long total = 0;
+            for (long nanos : mNanosPerRow) {
+                total += nanos;
+            }
+            return total;
+        }
+
+        /** @return the bytes allocated per row, or -1 if allocations could not be counted. */
+        public long getBytesPerRow() {
+            long total = 0;
+            for (long bytes : mBytesPerRow) {
+                if (bytes < 0) {
+                    return -1;
+                }
+                total += bytes;
+            }
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(mHeader ? "header" : "message")
+                    .append(" width=").append(mWidth).append(mRead ? " read" : " unread");
+            for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+                sb.append(phase == 0 ? ": " : ", ").append(PHASE_NAMES[phase]).append(' ')
+                        .append(mNanosPerRow[phase]).append(" ns ")
+                        .append(mBytesPerRow[phase]).append(" B");
+            }
+            return sb.append("; total ").append(getNanosPerRow()).append(" ns ")
+                    .append(getBytesPerRow()).append(" B per row").toString();
+        }
+    }
+
+    private final Context mContext;
+    private final MessageListFragment mListFragment;
+    private final MessagesAdapter mAdapter;
+    private final List<Result> mResults = new ArrayList<Result>();
+
+    /**
+     * @param listFragment decides, as in the app, whether rows are grouped under headers;
+     *     headers are only measured if it allows thread view.
+     */
+    public RowRenderBenchmark(Context context, MessageListFragment listFragment) {
+        mContext = context;
+        mListFragment = listFragment;
+        mAdapter = new MessagesAdapter(context, new MessagesAdapter.Callback() {
+            @Override
+            public void onAdapterFavoriteChanged(MessageListItem itemView, boolean newFavorite) {
+            }
+
+            @Override
+            public void onAdapterSelectedChanged(MessageListItem itemView, boolean newSelected,
+                    int mSelectedCount) {
+            }
+
+            @Override
+            public boolean isThreadViewAllowed() {
+                return mListFragment.isThreadViewAllowed();
+            }
+        });
+    }
+
+    /**
+     * Bind, lay out and draw {@code rows} rows of each kind at each width, read and unread, each
+     * after as many rows again to warm up.
+     *
+     * @return the results, which are also kept for {@link #report} and
+     *     {@link #assertWithinBudget}
+     */
+    public List<Result> run(int rows, int[] widths) {
+        mResults.clear();
+        AllocationCounter allocations = new AllocationCounter();
+        try {
+            for (boolean read : new boolean[] { true, false }) {
+                MessagesAdapter.MessagesCursor cursor = MessagesAdapter.MessagesCursor.forRows(
+                        createRows(rows, read), mListFragment,
+                        MessageListContext.SORT_ORDER_DATE_DESC);
+                closeCursor(mAdapter.swapCursor(cursor));
+                // every message row in view, as when the user scrolls through an open folder
+                mAdapter.setAllGroupsExpanded(true);
+                int[] messages = findPositions(cursor, false);
+                int[] headers = findPositions(cursor, true);
+                for (int width : widths) {
+                    if (messages.length > 0) {
+                        mResults.add(measure(cursor, new MessageListItem(mContext), messages,
+                                false, width, read, rows, allocations));
+                    }
+                    if (headers.length > 0) {
+                        mResults.add(measure(cursor, new MessageListItemGroup(mContext), headers,
+                                true, width, read, rows, allocations));
+                    }
+                }
+            }
+        } finally {
+            allocations.close();
+            closeCursor(mAdapter.swapCursor(null));
+        }
+        return mResults;
+    }
+
+    private Result measure(MessagesAdapter.MessagesCursor cursor, MessageListItem view,
+            int[] positions, boolean header, int width, boolean read, int rows,
+            AllocationCounter allocations) {
+        int widthSpec = MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY);
+        int heightSpec = MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
+        view.measure(widthSpec, heightSpec);
+        Bitmap bitmap = Bitmap.createBitmap(width, Math.max(1, view.getMeasuredHeight()),
+                Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        long[] nanos = new long[PHASE_NAMES.length];
+        long[] bytes = new long[PHASE_NAMES.length];
+
+        // The first rows at a width build its coordinates and the row's selectors, and the JIT
+        // compiles the rest.
+        renderRows(cursor, view, positions, rows, widthSpec, heightSpec, canvas, allocations,
+                nanos, bytes);
+        Result result = new Result(header, width, read, rows);
+        nanos = new long[PHASE_NAMES.length];
+        bytes = new long[PHASE_NAMES.length];
+        renderRows(cursor, view, positions, rows, widthSpec, heightSpec, canvas, allocations,
+                nanos, bytes);
+        for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+            result.mNanosPerRow[phase] = nanos[phase] / rows;
+            result.mBytesPerRow[phase] = bytes[phase] < 0 ? -1 : bytes[phase] / rows;
+        }
+        bitmap.recycle();
+        return result;
+    }
+
+    /**
+     * Bind, lay out and draw {@code view} for {@code rows} positions in turn, as a recycled
+     * view is while scrolling, adding the time and allocations of each phase to {@code nanos}
+     * and {@code bytes}.
+     */
+    private void renderRows(MessagesAdapter.MessagesCursor cursor, MessageListItem view,
+            int[] positions, int rows, int widthSpec, int heightSpec, Canvas canvas,
+            AllocationCounter allocations, long[] nanos, long[] bytes) {
+        final int width = MeasureSpec.getSize(widthSpec);
+        for (int i = 0; i < rows; i++) {
+            cursor.moveToPosition(positions[i % positions.length]);
+            long allocated = allocations.get();
+            long start = System.nanoTime();
+            mAdapter.bindView(view, mContext, cursor);
+            long bound = System.nanoTime();
+            long allocatedBound = allocations.get();
+
+            long layoutStart = System.nanoTime();
+            view.measure(widthSpec, heightSpec);
+            view.layout(0, 0, width, view.getMeasuredHeight());
+            long laidOut = System.nanoTime();
+            long allocatedLaidOut = allocations.get();
+
+            long drawStart = System.nanoTime();
+            view.draw(canvas);
+            long drawn = System.nanoTime();
+            long allocatedDrawn = allocations.get();
+
+            nanos[PHASE_BIND] += bound - start;
+            nanos[PHASE_LAYOUT] += laidOut - layoutStart;
+            nanos[PHASE_DRAW] += drawn - drawStart;
+            addAllocations(bytes, PHASE_BIND, allocated, allocatedBound, allocations);
+            addAllocations(bytes, PHASE_LAYOUT, allocatedBound, allocatedLaidOut, allocations);
+            addAllocations(bytes, PHASE_DRAW, allocatedLaidOut, allocatedDrawn, allocations);
+        }
+    }
+
+    private static void addAllocations(long[] bytes, int phase, long before, long after,
+            AllocationCounter allocations) {
+        if (before < 0 || after < 0 || bytes[phase] < 0) {
+            bytes[phase] = -1;
+        } else {
+            bytes[phase] += Math.max(0, after - before - allocations.getOverhead());
+        }
+    }
+
+    /** @return the display positions of the headers, or of the messages, in the cursor. */
+    private static int[] findPositions(MessagesAdapter.MessagesCursor cursor, boolean headers) {
+        int[] positions = new int[cursor.getCount()];
+        int count = 0;
+        for (int position = 0; position < positions.length; position++) {
+            if (cursor.moveToPosition(position) && cursor.isGroupItem() == headers) {
+                positions[count++] = position;
+            }
+        }
+        int[] found = new int[count];
+        System.arraycopy(positions, 0, found, 0, count);
+        return found;
+    }
+
+    /**
+     * @return {@code count} messages over the days before now, newest first as the provider
+     *     returns them, with senders, subjects and snippets of the lengths real mail has.
+     */
+    private static Cursor createRows(int count, boolean read) {
+        MatrixCursor cursor = new MatrixCursor(MessagesAdapter.MESSAGE_PROJECTION, count);
+        Random random = new Random(count);
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            // about three messages a day
+            time -= random.nextInt(16 * 60 * 60 * 1000);
+            int flags = 0;
+            if (random.nextInt(4) == 0) {
+                flags |= Message.FLAG_REPLIED_TO;
+            }
+            if (random.nextInt(8) == 0) {
+                flags |= Message.FLAG_FORWARDED;
+            }
+            String subject = SUBJECTS[random.nextInt(SUBJECTS.length)];
+            cursor.addRow(new Object[] {
+                i + 1L, 1L, 1L,
+                SENDERS[random.nextInt(SENDERS.length)],
+                subject.length() == 0 ? subject : subject + " (" + random.nextInt(count) + ")",
+                time,
+                read ? 1 : 0,
+                random.nextInt(10) == 0 ? 1 : 0,
+                random.nextInt(6) == 0 ? 1 : 0,
+                flags,
+                SNIPPETS[random.nextInt(SNIPPETS.length)],
+            });
+        }
+        return cursor;
+    }
+
+    private static void closeCursor(Cursor cursor) {
+        if (cursor != null) {
+            cursor.close();
+        }
+    }
+
+    public List<Result> getResults() {
+        return mResults;
+    }
+
+    public void report(PrintWriter writer) {
+        writer.println("Row budget " + ROW_BUDGET_NANOS + " ns, " + ROW_ALLOCATION_BUDGET
+                + " B per row");
+        for (Result result : mResults) {
+            writer.println(result);
+        }
+        writer.flush();
+    }
+
+    /** Checks the results against {@link #ROW_BUDGET_NANOS} and {@link #ROW_ALLOCATION_BUDGET}. */
+    public void assertWithinBudget() {
+        assertWithinBudget(ROW_BUDGET_NANOS, ROW_ALLOCATION_BUDGET);
+    }
+
+    /**
+     * @throws AssertionError naming every kind of row that takes longer than
+     *     {@code nanosPerRow} or allocates more than {@code bytesPerRow}.  Allocations are not
+     *     checked where they could not be counted.
+     */
+    public void assertWithinBudget(long nanosPerRow, long bytesPerRow) {
+        StringBuilder failures = new StringBuilder();
+        for (Result result : mResults) {
+            if (result.getNanosPerRow() > nanosPerRow || result.getBytesPerRow() > bytesPerRow) {
+                failures.append("\n  ").append(result);
+            }
+        }
+        if (failures.length() > 0) {
+            throw new AssertionError("Rows over the budget of " + nanosPerRow + " ns and "
+                    + bytesPerRow + " B per row:" + failures);
+        }
+    }
+
+    /** Counts the bytes the current thread has allocated. */
+    private static class AllocationCounter {
+        private final Object mThreadBean;
+        private final Method mGetThreadAllocatedBytes;
+        private final long mThreadId = Thread.currentThread().getId();
+        /** What reading the counter allocates itself. */
+        private final long mOverhead;
+
+        AllocationCounter() {
+            Object bean = null;
+            Method method = null;
+            try {
+                bean = Class.forName("java.lang.management.ManagementFactory")
+                        .getMethod("getThreadMXBean").invoke(null);
+                method = Class.forName("com.sun.management.ThreadMXBean")
+                        .getMethod("getThreadAllocatedBytes", long.class);
+            } catch (Exception e) {
+                // Not a HotSpot JVM; on a device Dalvik counts while asked to.
+                bean = null;
+                method = null;
+                Debug.startAllocCounting();
+            }
+            mThreadBean = bean;
+            mGetThreadAllocatedBytes = method;
+            long first = get();
+            long second = get();
+            mOverhead = first < 0 ? 0 : second - first;
+        }
+
+        /** @return the bytes allocated so far, or -1 if they cannot be counted. */
+        long get() {
+            if (mGetThreadAllocatedBytes == null) {
+                return Debug.getThreadAllocSize();
+            }
+            try {
+                return (Long) mGetThreadAllocatedBytes.invoke(mThreadBean, mThreadId);
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+
+        long getOverhead() {
+            return mOverhead;
+        }
+
+        void close() {
+            if (mGetThreadAllocatedBytes == null) {
+                Debug.stopAllocCounting();
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.activity;
+
+import android.content.ComponentCallbacks2;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests of {@link ListCacheRegistry}.
+ */
+@SmallTest
+public class ListCacheRegistryTests extends AndroidTestCase {
+
+    /** Holds a fixed number of bytes until trimmed. */
+    private static class FakeCache implements ListCacheRegistry.TrimmableCache {
+        long mBytes;
+        int mTrims;
+
+        FakeCache(long bytes) {
+            mBytes = bytes;
+        }
+
+        @Override
+        public long getRetainedBytes() {
+            return mBytes;
+        }
+
+        @Override
+        public long trim() {
+            long freed = mBytes;
+            mBytes = 0;
+            mTrims++;
+            return freed;
+        }
+    }
+
+    public void testTierForLevel() {
+        assertEquals(-1, ListCacheRegistry.getTierForLevel(0));
+        assertEquals(ListCacheRegistry.TIER_OFFSCREEN, ListCacheRegistry.getTierForLevel(
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+        assertEquals(ListCacheRegistry.TIER_FORMATTERS, ListCacheRegistry.getTierForLevel(
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+        assertEquals(ListCacheRegistry.TIER_DRAWING, ListCacheRegistry.getTierForLevel(
+                ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL));
+        assertEquals(ListCacheRegistry.TIER_OFFSCREEN, ListCacheRegistry.getTierForLevel(
+                ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+        assertEquals(ListCacheRegistry.TIER_FORMATTERS, ListCacheRegistry.getTierForLevel(
+                ComponentCallbacks2.TRIM_MEMORY_BACKGROUND));
+        assertEquals(ListCacheRegistry.TIER_DRAWING, ListCacheRegistry.getTierForLevel(
+                ComponentCallbacks2.TRIM_MEMORY_MODERATE));
+        assertEquals(ListCacheRegistry.TIER_DRAWING, ListCacheRegistry.getTierForLevel(
+                ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+    }
+
+    public void testTrimToStopsAtTier() {
+        ListCacheRegistry registry = ListCacheRegistry.getInstance(getContext());
+        // the registry holds weak references; the locals keep the caches alive
+        FakeCache offscreen = new FakeCache(100);
+        FakeCache formatters = new FakeCache(20);
+        FakeCache drawing = new FakeCache(3);
+        registry.register(ListCacheRegistry.TIER_OFFSCREEN, "test off-screen", offscreen);
+        registry.register(ListCacheRegistry.TIER_FORMATTERS, "test formatters", formatters);
+        registry.register(ListCacheRegistry.TIER_DRAWING, "test drawing", drawing);
+
+        // the app's own caches may free something too
+        assertTrue(registry.trimTo(ListCacheRegistry.TIER_OFFSCREEN) >= 100);
+        assertEquals(1, offscreen.mTrims);
+        assertEquals(0, formatters.mTrims);
+        assertEquals(0, drawing.mTrims);
+        assertEquals(20, formatters.getRetainedBytes());
+
+        assertTrue(registry.trimTo(ListCacheRegistry.TIER_FORMATTERS) >= 20);
+        assertEquals(2, offscreen.mTrims);
+        assertEquals(1, formatters.mTrims);
+        assertEquals(0, drawing.mTrims);
+
+        assertTrue(registry.trimTo(ListCacheRegistry.TIER_DRAWING) >= 3);
+        assertEquals(1, drawing.mTrims);
+        assertEquals(0, drawing.getRetainedBytes());
+    }
+
+    public void testTrimmedHeaderFormatsDateAgain() {
+        final long timestamp = System.currentTimeMillis();
+        MessageListItemGroup header = new MessageListItemGroup(getContext());
+        header.setTimestamp(timestamp);
+        assertTrue(header.mFormattedDate.length() > 0);
+
+        // off screen, so the trim drops the header's date along with the rest of its text
+        ListCacheRegistry.getInstance(getContext()).trimTo(ListCacheRegistry.TIER_OFFSCREEN);
+        assertEquals(0, header.mFormattedDate.length());
+
+        // bound again to the same header, it must format the date rather than draw nothing
+        header.setTimestamp(timestamp);
+        assertTrue(header.mFormattedDate.length() > 0);
+    }
+}
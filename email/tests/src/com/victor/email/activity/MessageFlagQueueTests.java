@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.victor.email.activity;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.victor.email.list.MessageIdSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests of {@link MessageFlagQueue}.  The provider is replaced by an updater that records the
+ * batches it is given, and the UI thread by a handler that runs what is posted to it only when
+ * the test says so.
+ */
+@SmallTest
+public class MessageFlagQueueTests extends AndroidTestCase {
+    private RecordingUpdater mUpdater;
+    private ManualHandler mHandler;
+    private MessageFlagQueue mQueue;
+
+    /** Records the flag batches instead of writing them. */
+    private static class RecordingUpdater extends MessageBulkUpdater {
+        /** Read, unread, favorite and unfavorite ids of every batch. */
+        final ArrayList<MessageIdSet[]> mBatches = new ArrayList<MessageIdSet[]>();
+        final ArrayList<Callback> mCallbacks = new ArrayList<Callback>();
+
+        RecordingUpdater(Context context) {
+            super(context);
+        }
+
+        @Override
+        public void setFlags(MessageIdSet read, MessageIdSet unread, MessageIdSet favorite,
+                MessageIdSet unfavorite, Callback callback) {
+            mBatches.add(new MessageIdSet[] {
+                    new MessageIdSet(read), new MessageIdSet(unread),
+                    new MessageIdSet(favorite), new MessageIdSet(unfavorite) });
+            mCallbacks.add(callback);
+        }
+    }
+
+    /**
+     * Keeps what is posted until {@link #runPosted}.  Callbacks that were removed are kept too,
+     * which only runs the queue's flush once more than it would.
+     */
+    private static class ManualHandler extends Handler {
+        private final ArrayList<Runnable> mPosted = new ArrayList<Runnable>();
+
+        ManualHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message message, long uptimeMillis) {
+            mPosted.add(message.getCallback());
+            return true;
+        }
+
+        void runPosted() {
+            ArrayList<Runnable> posted = new ArrayList<Runnable>(mPosted);
+            mPosted.clear();
+            for (Runnable runnable : posted) {
+                runnable.run();
+            }
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mUpdater = new RecordingUpdater(getContext());
+        mHandler = new ManualHandler();
+        mQueue = new MessageFlagQueue(mUpdater, mHandler);
+    }
+
+    private static void assertIds(MessageIdSet ids, long... expected) {
+        assertEquals(Arrays.toString(expected), Arrays.toString(ids.toLongArray()));
+    }
+
+    /** Lands the batch the updater was given {@code batch}-th, as its worker thread would. */
+    private void land(int batch) {
+        mUpdater.mCallbacks.get(batch).onBulkUpdateFinished(1, 1);
+        mHandler.runPosted();
+    }
+
+    public void testChangesShowBeforeFlush() {
+        assertFalse(mQueue.hasPendingChanges());
+        mQueue.setRead(1, true);
+        mQueue.setFavorite(2, true);
+        assertTrue(mQueue.hasPendingChanges());
+        assertTrue(mQueue.isRead(1, false));
+        assertTrue(mQueue.isFavorite(2, false));
+        // other messages show what the cursor has
+        assertFalse(mQueue.isRead(2, false));
+        assertTrue(mQueue.isRead(2, true));
+        assertFalse(mQueue.isFavorite(1, false));
+
+        mQueue.setRead(1, false);
+        assertFalse(mQueue.isRead(1, true));
+        assertEquals(0, mUpdater.mBatches.size());
+    }
+
+    public void testFlushCoalescesIntoOneBatch() {
+        mQueue.setRead(1, true);
+        mQueue.setRead(1, false);
+        mQueue.setFavorite(2, true);
+        mQueue.setFavorite(3, false);
+        MessageIdSet selection = new MessageIdSet();
+        selection.add(4);
+        selection.add(5);
+        mQueue.setRead(selection, true);
+        mQueue.flush();
+
+        assertEquals(1, mUpdater.mBatches.size());
+        MessageIdSet[] batch = mUpdater.mBatches.get(0);
+        assertIds(batch[0], 4, 5);
+        assertIds(batch[1], 1);
+        assertIds(batch[2], 2);
+        assertIds(batch[3], 3);
+
+        // nothing left to write
+        mQueue.flush();
+        assertEquals(1, mUpdater.mBatches.size());
+    }
+
+    public void testBatchOverridesCursorsQueriedBeforeItLanded() {
+        mQueue.setFavorite(5, true);
+        mQueue.flush();
+        assertTrue(mQueue.isFavorite(5, false));
+
+        // not landed yet: no cursor can have it
+        mQueue.onCursorChanged(Long.MAX_VALUE);
+        assertTrue(mQueue.isFavorite(5, false));
+
+        land(0);
+        final long landed = MessageFlagQueue.getWriteSequence();
+        mQueue.onCursorChanged(landed - 1);
+        assertTrue(mQueue.isFavorite(5, false));
+        assertTrue(mQueue.hasPendingChanges());
+
+        mQueue.onCursorChanged(landed);
+        assertFalse(mQueue.isFavorite(5, false));
+        assertFalse(mQueue.hasPendingChanges());
+    }
+
+    public void testBatchesLandIndependently() {
+        mQueue.setRead(6, true);
+        mQueue.flush();
+        mQueue.setRead(7, true);
+        mQueue.flush();
+        assertEquals(2, mUpdater.mBatches.size());
+
+        // the second batch lands first; the first one still overrides
+        land(1);
+        mQueue.onCursorChanged(MessageFlagQueue.getWriteSequence());
+        assertTrue(mQueue.isRead(6, false));
+        assertFalse(mQueue.isRead(7, false));
+    }
+
+    public void testNewerChangeWinsOverBatchInFlight() {
+        mQueue.setRead(8, true);
+        mQueue.flush();
+        mQueue.setRead(8, false);
+        assertFalse(mQueue.isRead(8, true));
+        mQueue.flush();
+        // the newer batch wins over the older one, too
+        assertFalse(mQueue.isRead(8, true));
+    }
+}